@@ -0,0 +1,82 @@
+package com.ocean.proxy.server.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目标访问控制检查，entries 条条目中一半为域名、一半为 IPv4 网段，分别检查命中与未命中的域名和 IP
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessControlBenchmark {
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private Path aclFile;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < entries / 2; i++) {
+            lines.add("deny host" + i + ".example.com");
+            lines.add("deny 10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".0/24");
+        }
+        aclFile = Files.createTempFile("acl", ".txt");
+        Files.write(aclFile, lines, StandardCharsets.UTF_8);
+        Properties properties = new Properties();
+        properties.setProperty("proxy.acl.file", aclFile.toString());
+        properties.setProperty("proxy.acl.reload", "false");
+        // 未命中的域名不解析，只测量规则匹配
+        properties.setProperty("proxy.acl.resolve", "false");
+        AccessControl.init(properties);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(aclFile);
+    }
+
+    @Benchmark
+    public boolean domainHit() {
+        return AccessControl.isAllowed("www.host4242.example.com");
+    }
+
+    @Benchmark
+    public boolean domainMiss() {
+        return AccessControl.isAllowed("www.other.example.org");
+    }
+
+    @Benchmark
+    public boolean ipHit() {
+        return AccessControl.isAllowed("10.0.42.7");
+    }
+
+    @Benchmark
+    public boolean ipMiss() {
+        return AccessControl.isAllowed("192.168.1.10");
+    }
+}
@@ -0,0 +1,60 @@
+package com.ocean.proxy.server.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户名密码认证：cached 为缓存命中（HMAC + 常量时间比较），uncached 为每次重新计算 PBKDF2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthServiceBenchmark {
+
+    @Param({"cached", "uncached"})
+    public String mode;
+
+    private Path userFile;
+
+    @Setup
+    public void setup() throws IOException {
+        userFile = Files.createTempFile("user", ".txt");
+        Files.write(userFile, Collections.singletonList("ocean=" + AuthService.hash("asdqwe123")), StandardCharsets.UTF_8);
+        Properties properties = new Properties();
+        properties.setProperty("auth.file", userFile.toString());
+        properties.setProperty("auth.reload", "false");
+        properties.setProperty("auth.cache.ttl", "cached".equals(mode) ? "3600" : "0");
+        AuthService.init(properties);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(userFile);
+    }
+
+    @Benchmark
+    public boolean checkAuth() {
+        return AuthService.checkAuth("ocean", "asdqwe123");
+    }
+}
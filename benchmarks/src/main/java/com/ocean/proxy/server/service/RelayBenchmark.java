@@ -0,0 +1,189 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.LogManager;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环上经过 DataTransHandler 的端到端转发
+ * 客户端 -> 转发监听 -> DataTransHandler -> 回显服务，数据原样返回客户端。
+ * throughput 每次操作向每个会话写入 chunkSize 字节并读回，结果中的 megabytes 为每秒往返的 MB 数；
+ * roundTrip 测量单个小包往返耗时，结果给出 p99 等分位数。
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RelayBenchmark {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int ROUND_TRIP_SIZE = 64;
+
+    @Param({"bio", "nio"})
+    public String engine;
+
+    @Param({"16384", "65536"})
+    public int bufferSize;
+
+    @Param({"1", "16", "64"})
+    public int sessions;
+
+    private ServerSocket echoServer;
+
+    private ServerSocket relayServer;
+
+    private final List<Socket> clients = new ArrayList<>();
+
+    private final List<OutputStream> outputs = new ArrayList<>();
+
+    private final List<DataInputStream> inputs = new ArrayList<>();
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    private final byte[] readBuffer = new byte[CHUNK_SIZE];
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("log.level", "WARN");
+        properties.setProperty("proxy.relay.engine", engine);
+        properties.setProperty("proxy.buffer.minSize", String.valueOf(bufferSize));
+        properties.setProperty("proxy.buffer.maxSize", String.valueOf(bufferSize));
+        LogManager.init(properties);
+        DataTransHandler.init(properties);
+
+        echoServer = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        startDaemon("echo-acceptor", () -> {
+            while (!echoServer.isClosed()) {
+                Socket socket = echoServer.accept();
+                startDaemon("echo", () -> echo(socket));
+            }
+        });
+        int echoPort = echoServer.getLocalPort();
+        relayServer = DataTransHandler.createServerSocket(0);
+        startDaemon("relay-acceptor", () -> {
+            while (!relayServer.isClosed()) {
+                Socket client = relayServer.accept();
+                Socket target = Dialer.connect(InetAddress.getLoopbackAddress(), echoPort);
+                DataTransHandler.bindClientAndTarget(client, target);
+            }
+        });
+        for (int i = 0; i < sessions; i++) {
+            Socket client = new Socket();
+            client.setTcpNoDelay(true);
+            client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), relayServer.getLocalPort()));
+            clients.add(client);
+            outputs.add(client.getOutputStream());
+            inputs.add(new DataInputStream(client.getInputStream()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+        relayServer.close();
+        echoServer.close();
+    }
+
+    /**
+     * 所有会话同时发送一块数据后再逐个读回，会话之间并行转发
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Traffic traffic) throws IOException {
+        for (OutputStream output : outputs) {
+            output.write(chunk);
+        }
+        for (DataInputStream input : inputs) {
+            input.readFully(readBuffer, 0, CHUNK_SIZE);
+        }
+        traffic.megabytes += (double) CHUNK_SIZE * sessions / (1024 * 1024);
+    }
+
+    /**
+     * 轮流在各个会话上发送一个小包并等待回显
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws IOException {
+        int index = next;
+        next = index + 1 == sessions ? 0 : index + 1;
+        outputs.get(index).write(chunk, 0, ROUND_TRIP_SIZE);
+        inputs.get(index).readFully(readBuffer, 0, ROUND_TRIP_SIZE);
+    }
+
+    /**
+     * 每秒往返的数据量，MB
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    private static void echo(Socket socket) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        InputStream input = socket.getInputStream();
+        OutputStream output = socket.getOutputStream();
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        socket.close();
+    }
+
+    private static void startDaemon(String name, IoTask task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception ignored) {
+                // 关闭监听或连接时退出
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private interface IoTask {
+
+        void run() throws Exception;
+    }
+}
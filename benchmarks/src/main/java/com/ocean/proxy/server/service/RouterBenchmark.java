@@ -0,0 +1,79 @@
+package com.ocean.proxy.server.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由规则匹配，rules 条规则中一半为域名后缀、一半为 IPv4 网段，分别查询命中与未命中的域名和 IP
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    @Param({"100", "10000"})
+    public int rules;
+
+    private Path ruleFile;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < rules / 2; i++) {
+            lines.add("domain site" + i + ".example.com reject");
+            lines.add("cidr 10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".0/24 reject 443");
+        }
+        ruleFile = Files.createTempFile("route", ".txt");
+        Files.write(ruleFile, lines, StandardCharsets.UTF_8);
+        Properties properties = new Properties();
+        properties.setProperty("proxy.route.file", ruleFile.toString());
+        Router.init(properties);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(ruleFile);
+    }
+
+    @Benchmark
+    public Object domainHit() {
+        return Router.route("www.site42.example.com", 443);
+    }
+
+    @Benchmark
+    public Object domainMiss() {
+        return Router.route("www.other.example.org", 443);
+    }
+
+    @Benchmark
+    public Object ipHit() {
+        return Router.route("10.0.42.7", 443);
+    }
+
+    @Benchmark
+    public Object ipMiss() {
+        return Router.route("192.168.1.10", 443);
+    }
+}
@@ -0,0 +1,61 @@
+package com.ocean.proxy.server.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SOCKS5 连接请求解析，分别覆盖 IPv4、域名、IPv6 三种地址类型
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Socks5RequestBenchmark {
+
+    @Param({"ipv4", "domain", "ipv6"})
+    public String addressType;
+
+    private byte[] request;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{0x05, 0x01, 0x00});
+        if ("ipv4".equals(addressType)) {
+            out.write(0x01);
+            out.write(new byte[]{(byte) 192, (byte) 168, 1, 10});
+        } else if ("domain".equals(addressType)) {
+            byte[] domain = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+            out.write(0x03);
+            out.write(domain.length);
+            out.write(domain);
+        } else {
+            out.write(0x04);
+            out.write(new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01});
+        }
+        out.write(new byte[]{0x01, (byte) 0xBB});
+        request = out.toByteArray();
+    }
+
+    @Benchmark
+    public Object decodeSocks5Request() throws IOException {
+        return SocksCodec.decodeSocks5Request(ByteBuffer.wrap(request));
+    }
+}
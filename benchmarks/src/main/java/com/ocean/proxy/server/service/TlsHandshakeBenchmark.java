@@ -0,0 +1,148 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.LogManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环上客户端到 TLS 端口的握手耗时，完整握手与恢复会话的握手对比
+ * 服务端与 TLS 端口相同：接收的连接经 TlsService 包装并握手，完成后写回一个字节；
+ * full 每次握手后让客户端会话失效，下一次只能完整握手，resumed 复用客户端缓存的会话。
+ * 结束时输出服务端统计的每次握手 CPU 时间与恢复比例。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TlsHandshakeBenchmark {
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    public String protocol;
+
+    private Path keystore;
+
+    private ServerSocket serverSocket;
+
+    private SSLSocketFactory clientFactory;
+
+    @Setup
+    public void setup() throws Exception {
+        keystore = Files.createTempFile("tls", ".p12");
+        Files.delete(keystore);
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "proxy", "-keyalg", "EC", "-keysize", "256",
+                "-sigalg", "SHA256withECDSA", "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", "changeit", "-keypass", "changeit")
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed");
+        }
+        Properties properties = new Properties();
+        properties.setProperty("log.level", "WARN");
+        properties.setProperty("proxy.tls.enable", "true");
+        properties.setProperty("proxy.tls.keystore", keystore.toString());
+        properties.setProperty("proxy.tls.keystorePassword", "changeit");
+        properties.setProperty("proxy.tls.protocols", protocol);
+        LogManager.init(properties);
+        TlsService.init(properties);
+
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    SSLSocket socket = TlsService.wrap(serverSocket.accept());
+                    if (TlsService.handshake(socket)) {
+                        socket.getOutputStream().write(1);
+                        socket.close();
+                    }
+                } catch (IOException ignored) {
+                    // 关闭监听时退出
+                }
+            }
+        }, "tls-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        clientFactory = context.getSocketFactory();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        serverSocket.close();
+        Files.deleteIfExists(keystore);
+        long full = TlsService.getHandshakeHistogram(false).getCount();
+        long resumed = TlsService.getHandshakeHistogram(true).getCount();
+        System.out.printf("%nserver cpu per handshake: full %.1fus, resumed %.1fus, resumption rate %.2f%n",
+                full == 0 ? 0 : TlsService.getHandshakeCpuSeconds(false) * 1e6 / full,
+                resumed == 0 ? 0 : TlsService.getHandshakeCpuSeconds(true) * 1e6 / resumed,
+                TlsService.getResumptionRate());
+    }
+
+    @Benchmark
+    public int full() throws IOException {
+        return handshake(false);
+    }
+
+    @Benchmark
+    public int resumed() throws IOException {
+        return handshake(true);
+    }
+
+    private int handshake(boolean resume) throws IOException {
+        try (Socket raw = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             SSLSocket socket = (SSLSocket) clientFactory.createSocket(raw, "localhost", raw.getPort(), true)) {
+            raw.setTcpNoDelay(true);
+            socket.setEnabledProtocols(new String[]{protocol});
+            socket.startHandshake();
+            // 读到服务端的字节时 TLS1.3 的会话票据也已收到
+            int value = socket.getInputStream().read();
+            if (!resume) {
+                socket.getSession().invalidate();
+            }
+            return value;
+        }
+    }
+}
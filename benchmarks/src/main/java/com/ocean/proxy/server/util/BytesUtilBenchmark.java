@@ -0,0 +1,59 @@
+package com.ocean.proxy.server.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BytesUtil 中握手阶段用到的转换
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BytesUtilBenchmark {
+
+    // SOCKS 报文中常见的长度：端口 2 字节、IPv4 4 字节、IPv6 16 字节、最长域名 255 字节
+    @Param({"2", "4", "16", "255"})
+    public int length;
+
+    private byte[] data;
+
+    private byte[] number;
+
+    @Setup
+    public void setup() {
+        data = new byte[length + 1];
+        new Random(42).nextBytes(data);
+        number = new byte[Math.min(length, 8)];
+        System.arraycopy(data, 0, number, 0, number.length);
+    }
+
+    @Benchmark
+    public byte[] splitBytes() {
+        return BytesUtil.splitBytes(data, 1, length);
+    }
+
+    @Benchmark
+    public long toNumberH() {
+        return BytesUtil.toNumberH(number);
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return BytesUtil.toHexString(data);
+    }
+}
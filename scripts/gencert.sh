@@ -0,0 +1,14 @@
+#!/bin/sh
+# 生成 TLS 端口使用的自签名证书 conf/server.p12，客户端需要信任该证书或跳过验证
+# 例：bin/gencert.sh proxy.example.com changeit
+cd `dirname $0`
+cd ..
+DEPLOY_DIR=`pwd`
+
+CONF_DIR=$DEPLOY_DIR/conf
+HOST=${1:-localhost}
+PASSWORD=${2:-changeit}
+
+keytool -genkeypair -alias proxy -keyalg EC -keysize 256 -sigalg SHA256withECDSA -validity 3650 \
+    -dname "CN=$HOST" -ext "SAN=DNS:$HOST" -storetype PKCS12 \
+    -keystore $CONF_DIR/server.p12 -storepass $PASSWORD -keypass $PASSWORD
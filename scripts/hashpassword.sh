@@ -0,0 +1,13 @@
+#!/bin/sh
+# 生成 user.txt 使用的密码散列
+# 例：bin/hashpassword.sh ocean >> conf/user.txt
+cd `dirname $0`
+cd ..
+DEPLOY_DIR=`pwd`
+
+CONF_DIR=$DEPLOY_DIR/conf
+LIB_DIR=$DEPLOY_DIR/lib
+MAIN_DIR=$DEPLOY_DIR/main
+MAIN_JARS=`ls $MAIN_DIR | grep .jar |awk '{print "'$MAIN_DIR'/"$0}'`
+
+java -Dfile.encoding=UTF-8 -Dloader.path=$CONF_DIR,$LIB_DIR -Dloader.main=com.ocean.proxy.server.tool.HashPassword -jar $MAIN_JARS "$@"
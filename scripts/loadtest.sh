@@ -0,0 +1,17 @@
+#!/bin/sh
+# 本机回环压测，参数见 loadtest.sh --help
+# 例：bin/loadtest.sh --mode=socks5 --concurrency=200 --duration=30 --payload=16384
+#     bin/loadtest.sh --mode=socks5 --embedded=true --proxy=127.0.0.1:19109   在本进程内按 conf 配置启动代理后压测
+cd `dirname $0`
+cd ..
+DEPLOY_DIR=`pwd`
+
+CONF_DIR=$DEPLOY_DIR/conf
+LIB_DIR=$DEPLOY_DIR/lib
+MAIN_DIR=$DEPLOY_DIR/main
+MAIN_JARS=`ls $MAIN_DIR | grep .jar |awk '{print "'$MAIN_DIR'/"$0}'`
+
+JAVA_OPTS=" -Djava.awt.headless=true -Djava.net.preferIPv4Stack=true -Dfile.encoding=UTF-8"
+JAVA_MEM_OPTS=" -server -Xms512m -Xmx512m "
+
+java $JAVA_OPTS $JAVA_MEM_OPTS -Dloader.path=$CONF_DIR,$LIB_DIR -Dloader.main=com.ocean.proxy.server.tool.LoadTest -jar $MAIN_JARS "$@"
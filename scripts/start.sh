@@ -19,11 +19,23 @@ if [ $(echo $MAIN_JARS | wc -l) -gt 1 ];then
   exit
 fi
 
+# 停机等待秒数，应比 proxy.shutdown.timeout 稍长
+SHUTDOWN_WAIT=${SHUTDOWN_WAIT:-40}
 KILLPID=`ps -ef | grep java | grep "$DEPLOY_DIR" | awk '{print $2}'`
-if [ $KILLPID ]; then
-  echo 'kill current running pid:'$KILLPID
+if [ "$KILLPID" ]; then
+  echo 'stop current running pid:'$KILLPID
+  # SIGTERM 触发优雅停机：停止接收新连接，等待已有会话结束
   kill $KILLPID
-  sleep 2
+  WAITED=0
+  while kill -0 $KILLPID 2>/dev/null; do
+    if [ $WAITED -ge $SHUTDOWN_WAIT ]; then
+      echo "pid $KILLPID still running after ${SHUTDOWN_WAIT}s, kill -9"
+      kill -9 $KILLPID
+      break
+    fi
+    sleep 1
+    WAITED=`expr $WAITED + 1`
+  done
 fi
 
 JAVA_OPTS=" -Djava.awt.headless=true -Djava.net.preferIPv4Stack=true -Dfile.encoding=UTF-8"
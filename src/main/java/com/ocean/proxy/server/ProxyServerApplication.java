@@ -1,80 +1,177 @@
 package com.ocean.proxy.server;
 
 
+import com.ocean.proxy.server.log.LogManager;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.AccessControl;
+import com.ocean.proxy.server.service.AcceptorGroup;
+import com.ocean.proxy.server.service.AdmissionControl;
 import com.ocean.proxy.server.service.AuthService;
+import com.ocean.proxy.server.service.BindService;
+import com.ocean.proxy.server.service.DataTransHandler;
+import com.ocean.proxy.server.service.Dialer;
+import com.ocean.proxy.server.service.DnsResolver;
 import com.ocean.proxy.server.service.ForwardService;
+import com.ocean.proxy.server.service.HandshakeReader;
+import com.ocean.proxy.server.service.HttpProxyServer;
+import com.ocean.proxy.server.service.MetricsService;
+import com.ocean.proxy.server.service.MuxTunnel;
+import com.ocean.proxy.server.service.RateLimiter;
+import com.ocean.proxy.server.service.Router;
+import com.ocean.proxy.server.service.SessionMonitor;
+import com.ocean.proxy.server.service.ShutdownService;
 import com.ocean.proxy.server.service.Socks4ProxyServer;
 import com.ocean.proxy.server.service.Socks5ProxyServer;
+import com.ocean.proxy.server.service.TlsService;
+import com.ocean.proxy.server.service.UdpRelayService;
 
+import javax.net.ssl.SSLSocket;
 import java.io.InputStream;
-import java.net.ServerSocket;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.util.Properties;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ProxyServerApplication {
 
+    private static final Logger log = Logger.get("server");
+
+    private static final LongAdder REJECTED_COUNT = new LongAdder();
+
     // 全局线程池，最大2000线程，队列100，超时20秒
     public static final ThreadPoolExecutor GLOBAL_EXECUTOR = new ThreadPoolExecutor(
             300, 2000, 20L, TimeUnit.SECONDS,
             new LinkedBlockingQueue<>(100),
-            new ThreadPoolExecutor.AbortPolicy()
+            (task, pool) -> {
+                REJECTED_COUNT.increment();
+                throw new RejectedExecutionException("Task " + task + " rejected from " + pool);
+            }
     );
 
+    // 实际执行任务的执行器，proxy.executor=virtual 时为虚拟线程执行器，否则为 GLOBAL_EXECUTOR
+    private static volatile ExecutorService executor = GLOBAL_EXECUTOR;
+
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * GLOBAL_EXECUTOR 拒绝的任务数
+     */
+    public static long getRejectedCount() {
+        return REJECTED_COUNT.sum();
+    }
+
+    public static boolean isVirtualExecutor() {
+        return executor != GLOBAL_EXECUTOR;
+    }
+
+    /**
+     * 根据 proxy.executor 选择执行器：pool 使用 GLOBAL_EXECUTOR；virtual 为每个任务创建虚拟线程，
+     * 没有线程数上限也不会拒绝任务。虚拟线程需要 JDK 21+，通过反射获取，低版本JDK回退到线程池
+     */
+    private static void initExecutor(Properties properties) {
+        String mode = properties.getProperty("proxy.executor", "pool").trim();
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                executor = (ExecutorService) method.invoke(null);
+                log.info("use virtual thread executor");
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                log.warn("virtual threads not supported by current jdk, fallback to thread pool");
+            }
+        } else if (!"pool".equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("unknown proxy.executor: " + mode);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        String port;
-        boolean authEnable = false;
+        Properties properties = new Properties();
+        InputStream resourceAsStream = ProxyServerApplication.class.getClassLoader().getResourceAsStream("application.properties");
+        if (resourceAsStream != null) {
+            properties.load(resourceAsStream);
+        }
+        LogManager.init(properties);
+        // 端口优先级：启动参数 > 系统属性 > application.properties
+        String port = properties.getProperty("proxy.port");
+        if (System.getProperty("proxy.port") != null) {
+            port = System.getProperty("proxy.port");
+        }
         if (args != null && args.length > 0) {
             port = args[0];
-        } else {
-            Properties properties = System.getProperties();
-            port = properties.getProperty("proxy.port");
-
-            if (port == null) {
-                InputStream resourceAsStream = ProxyServerApplication.class.getClassLoader().getResourceAsStream("application.properties");
-                properties = new Properties();
-                properties.load(resourceAsStream);
-                port = properties.getProperty("proxy.port");
-                String authConfig = properties.getProperty("auth.enable");
-                if (authConfig != null && authConfig.equals("true")) {
-                    AuthService.init();
-                    authEnable = true;
-                }
-                ForwardService.startForwardServer(properties);
-            }
         }
+        boolean authEnable = false;
+        String authConfig = properties.getProperty("auth.enable");
+        if (authConfig != null && authConfig.equals("true")) {
+            AuthService.init(properties);
+            authEnable = true;
+        }
+        initExecutor(properties);
+        DnsResolver.init(properties);
+        Dialer.init(properties);
+        Router.init(properties);
+        AccessControl.init(properties);
+        HttpProxyServer.init(properties);
+        TlsService.init(properties);
+        DataTransHandler.init(properties);
+        SessionMonitor.init(properties);
+        UdpRelayService.init(properties);
+        BindService.init(properties);
+        RateLimiter.init(properties);
+        AdmissionControl.init(properties);
+        ShutdownService.init(properties);
+        MetricsService.init(properties);
+        MuxTunnel.init(properties);
+        ForwardService.startForwardServer(properties);
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(port))) {
-            System.out.println("Proxy Server is running on port " + port + ". support socks4 and socks5");
-            while (true) {
-                // 等待客户端连接
-                Socket clientSocket = serverSocket.accept();
-                String clientInfo = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
-                System.out.println("==================" + clientInfo + "==================");
-                System.out.println("Accepted connection from " + clientInfo);
-                final boolean auth = authEnable;
-                // 开启一个线程处理客户端连接
-                GLOBAL_EXECUTOR.execute(() -> {
-                    try {
-                        InputStream clientInput = clientSocket.getInputStream();
-                        int version = clientInput.read(); //版本， socks5的值是0x05, socks4的值是0x04
-                        System.out.println("socks version:" + version);
-                        if (version == 5) {
-                            Socks5ProxyServer.handleClient(clientSocket, auth);
-                        } else if (version == 4) {
-                            Socks4ProxyServer.handleClient(clientSocket);
-                        } else {
-                            System.out.println("error protocol version!");
-                            clientSocket.close();
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        // 接收线程数、连接队列长度、是否使用 SO_REUSEPORT
+        int acceptorThreads = Integer.parseInt(properties.getProperty("proxy.acceptor.threads", "1").trim());
+        int backlog = Integer.parseInt(properties.getProperty("proxy.acceptor.backlog", "1024").trim());
+        boolean reusePort = Boolean.parseBoolean(properties.getProperty("proxy.acceptor.reusePort", "true").trim());
+        final boolean auth = authEnable;
+        AcceptorGroup acceptorGroup = AcceptorGroup.start("proxy", Integer.parseInt(port), acceptorThreads, backlog, reusePort,
+                clientSocket -> AdmissionControl.submit(clientSocket, () -> handleConnection(clientSocket, auth)));
+        log.info("Proxy Server is running on port {}. support socks4, socks5{}", port, HttpProxyServer.isEnabled() ? " and http" : "");
+        if (TlsService.isEnabled()) {
+            // TLS 连接包装为 SSLSocket，监听不使用通道；握手在任务线程内完成后与明文端口的处理相同
+            AcceptorGroup.start("tls", TlsService.getPort(), acceptorThreads, backlog, reusePort, false, socket -> {
+                SSLSocket clientSocket = TlsService.wrap(socket);
+                AdmissionControl.submit(clientSocket, () -> {
+                    if (TlsService.handshake(clientSocket)) {
+                        handleConnection(clientSocket, auth);
                     }
-                    System.out.println("==================" + clientInfo + "==================");
                 });
+            });
+            log.info("Proxy Server is running on tls port {}", TlsService.getPort());
+        }
+        acceptorGroup.await();
+    }
+
+    /**
+     * 处理一个客户端连接：根据第一个字节判断协议后交给对应的服务，大写字母开头的是 HTTP 请求
+     */
+    private static void handleConnection(Socket clientSocket, boolean auth) {
+        String clientInfo = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
+        log.info("Accepted connection from {}", clientInfo);
+        try {
+            // 握手数据整块读入缓冲区，版本号只查看不消费，由各协议的解析器完整解析
+            HandshakeReader reader = new HandshakeReader(clientSocket);
+            int version = reader.peek(); //版本， socks5的值是0x05, socks4的值是0x04
+            log.debug("socks version:{}", version);
+            if (version == 5) {
+                Socks5ProxyServer.handleClient(reader, auth);
+            } else if (version == 4) {
+                Socks4ProxyServer.handleClient(reader);
+            } else if (HttpProxyServer.accepts(version)) {
+                HttpProxyServer.handleClient(reader, auth);
+            } else {
+                log.warn("error protocol version {} from {}", version, clientInfo);
+                clientSocket.close();
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("handle connection failed {}", clientInfo, e);
         }
     }
 
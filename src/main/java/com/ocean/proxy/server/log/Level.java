@@ -0,0 +1,20 @@
+package com.ocean.proxy.server.log;
+
+/**
+ * 日志级别，数值越大越重要
+ */
+public enum Level {
+
+    TRACE, DEBUG, INFO, WARN, ERROR, OFF;
+
+    static Level parse(String value, Level defaultLevel) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultLevel;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.ocean.proxy.server.log;
+
+/**
+ * 一条待输出的日志，参数在写日志线程中才格式化
+ */
+class LogEvent {
+
+    final long time;
+
+    final Level level;
+
+    final String category;
+
+    final String thread;
+
+    final String message;
+
+    final Object[] args;
+
+    LogEvent(Level level, String category, String message, Object[] args) {
+        this.time = System.currentTimeMillis();
+        this.level = level;
+        this.category = category;
+        this.thread = Thread.currentThread().getName();
+        this.message = message;
+        this.args = args;
+    }
+}
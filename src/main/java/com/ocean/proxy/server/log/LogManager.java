@@ -0,0 +1,220 @@
+package com.ocean.proxy.server.log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志管理
+ * 业务线程只把日志事件放进无锁环形队列，由单独的写日志线程批量取出、格式化后一次写出；
+ * 队列满时直接丢弃并计数，不会阻塞握手与转发线程。丢弃数量会在队列空闲时补记一条警告。
+ */
+public class LogManager {
+
+    private static final int BATCH_SIZE = 512;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private static final LongAdder droppedCount = new LongAdder();
+
+    private static final LongAdder writtenCount = new LongAdder();
+
+    private static volatile Level defaultLevel = Level.INFO;
+
+    private static volatile Properties levelConfig = new Properties();
+
+    private static volatile LogRing ring = new LogRing(65536);
+
+    private static volatile Writer output = consoleWriter();
+
+    private static volatile boolean stopping;
+
+    private static final Thread writerThread;
+
+    private static final Thread shutdownHook = new Thread(LogManager::shutdown, "log-shutdown");
+
+    static {
+        writerThread = new Thread(LogManager::run, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * log.level 默认级别，log.level.<分类> 单个分类的级别，可选 TRACE/DEBUG/INFO/WARN/ERROR/OFF
+     * log.file 日志文件路径，不配置时输出到控制台
+     * log.bufferSize 等待写出的日志条数上限，超出的日志被丢弃
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        defaultLevel = Level.parse(properties.getProperty("log.level"), Level.INFO);
+        Properties levels = new Properties();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("log.level.")) {
+                levels.setProperty(name.substring("log.level.".length()), properties.getProperty(name));
+            }
+        }
+        levelConfig = levels;
+        for (Logger logger : loggers.values()) {
+            logger.level = levelOf(logger.getCategory());
+        }
+        int bufferSize = Integer.parseInt(properties.getProperty("log.bufferSize", "65536").trim());
+        ring = new LogRing(bufferSize);
+        String file = properties.getProperty("log.file", "").trim();
+        if (!file.isEmpty()) {
+            File parent = new File(file).getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("create log directory failed: " + parent);
+            }
+            output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+        }
+    }
+
+    static Logger getLogger(String category) {
+        return loggers.computeIfAbsent(category, c -> new Logger(c, levelOf(c)));
+    }
+
+    private static Level levelOf(String category) {
+        return Level.parse(levelConfig.getProperty(category), defaultLevel);
+    }
+
+    static void publish(LogEvent event) {
+        if (!ring.offer(event)) {
+            droppedCount.increment();
+        }
+    }
+
+    /**
+     * 队列满被丢弃的日志条数
+     */
+    public static long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public static long getWrittenCount() {
+        return writtenCount.sum();
+    }
+
+    /**
+     * 不再在 JVM 退出时自动停止写日志线程，由调用方在自己的退出流程最后调用 shutdown，
+     * 避免各个关闭钩子并发执行时退出流程中的日志丢失
+     */
+    public static void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // 已经在退出
+        }
+    }
+
+    /**
+     * 停止写日志线程，等待已入队的日志写出
+     */
+    public static void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        LogRing current = ring;
+        long reportedDropped = 0;
+        while (true) {
+            int count = 0;
+            LogEvent event;
+            while (count < BATCH_SIZE && (event = current.poll()) != null) {
+                format(event, dateFormat, batch);
+                count++;
+            }
+            if (count == 0) {
+                if (current != ring) {
+                    // 配置后换了新队列，旧队列已取空
+                    current = ring;
+                    continue;
+                }
+                long dropped = droppedCount.sum();
+                if (dropped > reportedDropped) {
+                    format(new LogEvent(Level.WARN, "log", "dropped {} log events, queue is full", new Object[]{dropped - reportedDropped}),
+                            dateFormat, batch);
+                    reportedDropped = dropped;
+                    write(batch);
+                }
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            writtenCount.add(count);
+            write(batch);
+        }
+    }
+
+    private static void write(StringBuilder batch) {
+        Writer writer = output;
+        try {
+            writer.append(batch);
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("write log failed: " + e.getMessage());
+        }
+        batch.setLength(0);
+    }
+
+    private static void format(LogEvent event, SimpleDateFormat dateFormat, StringBuilder out) {
+        out.append(dateFormat.format(new Date(event.time))).append(' ');
+        out.append(event.level.name());
+        for (int i = event.level.name().length(); i < 5; i++) {
+            out.append(' ');
+        }
+        out.append(" [").append(event.thread).append("] ").append(event.category).append(" - ");
+        Object[] args = event.args;
+        int argIndex = 0;
+        String message = event.message;
+        int start = 0;
+        int index;
+        while ((index = message.indexOf("{}", start)) >= 0) {
+            out.append(message, start, index);
+            if (args != null && argIndex < args.length) {
+                out.append(args[argIndex++]);
+            } else {
+                out.append("{}");
+            }
+            start = index + 2;
+        }
+        out.append(message, start, message.length());
+        out.append(System.lineSeparator());
+        if (args != null && argIndex < args.length && args[args.length - 1] instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+
+    private static Writer consoleWriter() {
+        return new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+    }
+}
@@ -0,0 +1,64 @@
+package com.ocean.proxy.server.log;
+
+/**
+ * 按分类输出的日志记录器
+ * 消息中的 {} 依次替换为参数，最后一个参数是异常且没有对应的 {} 时输出异常堆栈。
+ * 级别判断在调用线程完成，格式化与写出都在写日志线程中进行，调用方不会被 IO 阻塞。
+ */
+public final class Logger {
+
+    private final String category;
+
+    volatile Level level;
+
+    Logger(String category, Level level) {
+        this.category = category;
+        this.level = level;
+    }
+
+    /**
+     * 获取分类对应的日志记录器，级别由 log.level.<分类> 配置
+     */
+    public static Logger get(String category) {
+        return LogManager.getLogger(category);
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void trace(String message, Object... args) {
+        log(Level.TRACE, message, args);
+    }
+
+    public void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    public void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    private void log(Level level, String message, Object[] args) {
+        if (level.ordinal() < this.level.ordinal()) {
+            return;
+        }
+        LogManager.publish(new LogEvent(level, category, message, args));
+    }
+}
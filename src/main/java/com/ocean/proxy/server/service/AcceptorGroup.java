@@ -0,0 +1,204 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 一个监听端口的接收线程组
+ * 支持 SO_REUSEPORT 时每个接收线程独占一个绑定同一端口的监听 Socket，由内核在它们之间分发新连接；
+ * 不支持时多个接收线程共用一个监听 Socket。接收线程只负责 accept 并交给处理器，不做其他工作。
+ */
+public class AcceptorGroup {
+
+    private static final Logger log = Logger.get("acceptor");
+
+    private static final List<AcceptorGroup> GROUPS = new CopyOnWriteArrayList<>();
+
+    private final String name;
+
+    private final int port;
+
+    private final Consumer<Socket> handler;
+
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+
+    private final CountDownLatch terminated;
+
+    private final LongAdder acceptedCount = new LongAdder();
+
+    private final LongAdder acceptErrorCount = new LongAdder();
+
+    private volatile long acceptRate;
+
+    private long lastAcceptedCount;
+
+    private volatile boolean closed;
+
+    /**
+     * 启动接收线程
+     *
+     * @param name      名称，用于线程名与日志
+     * @param port      监听端口
+     * @param threads   接收线程数
+     * @param backlog   等待 accept 的连接队列长度，0 使用默认值
+     * @param reusePort 是否尝试使用 SO_REUSEPORT
+     * @param handler   新连接处理器，在接收线程内调用，应尽快返回
+     */
+    public static AcceptorGroup start(String name, int port, int threads, int backlog, boolean reusePort,
+                                      Consumer<Socket> handler) throws IOException {
+        return start(name, port, threads, backlog, reusePort, DataTransHandler.isNioEngine(), handler);
+    }
+
+    /**
+     * 启动接收线程
+     *
+     * @param channel 是否使用 ServerSocketChannel 监听，接收的连接带有 SocketChannel；
+     *                连接需要包装为 SSLSocket 等只能按流读写时应为 false
+     * @see #start(String, int, int, int, boolean, Consumer)
+     */
+    public static AcceptorGroup start(String name, int port, int threads, int backlog, boolean reusePort,
+                                      boolean channel, Consumer<Socket> handler) throws IOException {
+        AcceptorGroup group = new AcceptorGroup(name, port, threads, handler);
+        group.bind(threads, backlog, reusePort, channel);
+        for (int i = 0; i < threads; i++) {
+            ServerSocket serverSocket = group.serverSockets.get(i % group.serverSockets.size());
+            Runnable loop = () -> group.acceptLoop(serverSocket);
+            if (ProxyServerApplication.isVirtualExecutor()) {
+                ProxyServerApplication.getExecutor().execute(loop);
+            } else {
+                new Thread(loop, name + "-acceptor-" + i).start();
+            }
+        }
+        group.scheduleRate();
+        GROUPS.add(group);
+        return group;
+    }
+
+    private AcceptorGroup(String name, int port, int threads, Consumer<Socket> handler) {
+        this.name = name;
+        this.port = port;
+        this.handler = handler;
+        this.terminated = new CountDownLatch(threads);
+    }
+
+    private void bind(int threads, int backlog, boolean reusePort, boolean channel) throws IOException {
+        if (threads > 1 && reusePort) {
+            if (DataTransHandler.isReusePortSupported()) {
+                for (int i = 0; i < threads; i++) {
+                    serverSockets.add(DataTransHandler.createServerSocket(port, backlog, true, channel));
+                }
+                log.info("{} listen on port {} with {} acceptors (SO_REUSEPORT)", name, port, threads);
+                return;
+            }
+            log.warn("SO_REUSEPORT not supported, {} acceptors share one server socket", name);
+        }
+        serverSockets.add(DataTransHandler.createServerSocket(port, backlog, false, channel));
+        log.info("{} listen on port {} with {} acceptors", name, port, threads);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        try {
+            while (!closed && !serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (closed || serverSocket.isClosed()) {
+                        break;
+                    }
+                    // 例如文件句柄耗尽，稍等后继续接收，不让监听退出
+                    acceptErrorCount.increment();
+                    log.error("{} accept failed", name, e);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+                acceptedCount.increment();
+                try {
+                    handler.accept(socket);
+                } catch (RuntimeException e) {
+                    // 处理器异常只影响当前连接，不能让接收线程退出
+                    log.error("{} handle connection failed", name, e);
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    private void scheduleRate() {
+        SessionMonitor.timer().newTimeout(() -> {
+            long count = acceptedCount.sum();
+            acceptRate = count - lastAcceptedCount;
+            lastAcceptedCount = count;
+            if (!closed) {
+                scheduleRate();
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止接收新连接
+     */
+    public void close() {
+        closed = true;
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 等待所有接收线程退出
+     */
+    public void await() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * 已启动的全部接收线程组
+     */
+    public static List<AcceptorGroup> groups() {
+        return GROUPS;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.sum();
+    }
+
+    public long getAcceptErrorCount() {
+        return acceptErrorCount.sum();
+    }
+
+    /**
+     * 最近一秒接收的连接数
+     */
+    public long getAcceptRate() {
+        return acceptRate;
+    }
+}
@@ -0,0 +1,263 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.CidrTree;
+import com.ocean.proxy.server.util.DomainTrie;
+import com.ocean.proxy.server.util.FileWatcher;
+import com.ocean.proxy.server.util.IpUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 目标访问控制
+ * 按 ACL 文件决定客户端能否访问某个目标，在 SOCKS4/SOCKS5 CONNECT 与 UDP 转发时检查，
+ * 拒绝时 SOCKS5 返回 0x02、SOCKS4 返回 0x5B，UDP 数据报直接丢弃。
+ * 每行一条：allow|deny 值，值为域名后缀、IP 或 CIDR 网段；最具体的条目生效（最长后缀 / 最长前缀），
+ * 同一个值出现多次时以最后一条为准，都不匹配时使用 proxy.acl.default。
+ * 目标为域名且没有匹配的域名条目时，解析后按 IP 检查，任一地址被拒绝即拒绝，避免通过域名访问内网；
+ * 解析失败时拒绝，检查过的地址交给路由直接连接，不再重新解析。
+ * 条目编译为紧凑的后缀树与前缀树，十万级条目下查询耗时基本不变；文件变化时重新加载并整体替换，加载失败保留原规则。
+ */
+public class AccessControl {
+
+    private static final Logger log = Logger.get("acl");
+
+    private static final int DENY = 0;
+
+    private static final int ALLOW = 1;
+
+    // 没有任何条目且默认允许时为 null，检查直接通过
+    private static volatile Rules rules;
+
+    private static volatile boolean defaultAllow = true;
+
+    private static volatile boolean resolve = true;
+
+    private static final LongAdder deniedCount = new LongAdder();
+
+    /**
+     * 允许访问但检查时没有解析域名，连接时照常解析
+     */
+    public static final InetAddress[] UNRESOLVED = new InetAddress[0];
+
+    /**
+     * proxy.acl.file ACL 文件路径，不配置时使用 classpath 中的 acl.txt
+     * proxy.acl.default 没有条目匹配时是否允许：allow/deny
+     * proxy.acl.resolve 目标为域名时是否解析后按 IP 检查
+     * proxy.acl.reload 文件变化时是否自动重新加载
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        defaultAllow = !"deny".equalsIgnoreCase(properties.getProperty("proxy.acl.default", "allow").trim());
+        resolve = Boolean.parseBoolean(properties.getProperty("proxy.acl.resolve", "true").trim());
+        boolean reload = Boolean.parseBoolean(properties.getProperty("proxy.acl.reload", "true").trim());
+        String file = properties.getProperty("proxy.acl.file");
+        Path path;
+        if (file != null && !file.trim().isEmpty()) {
+            path = Paths.get(file.trim());
+        } else {
+            URL url = AccessControl.class.getClassLoader().getResource("acl.txt");
+            if (url == null) {
+                rules = defaultAllow ? null : new Rules();
+                return;
+            }
+            if (!"file".equals(url.getProtocol())) {
+                // 打包在 jar 中，无法监听变化
+                try (InputStream input = url.openStream()) {
+                    apply(load(input));
+                }
+                return;
+            }
+            try {
+                path = Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        try (InputStream input = Files.newInputStream(path)) {
+            apply(load(input));
+        }
+        if (reload) {
+            FileWatcher.watch(path, () -> reload(path));
+        }
+    }
+
+    private static void reload(Path path) {
+        try (InputStream input = Files.newInputStream(path)) {
+            apply(load(input));
+        } catch (Exception e) {
+            log.error("reload acl failed, keep current rules", e);
+        }
+    }
+
+    private static void apply(Rules loaded) {
+        rules = loaded.size == 0 && defaultAllow ? null : loaded;
+        log.info("load {} acl entries: {} domain, {} cidr, default {}", loaded.size,
+                loaded.domains.size(), loaded.cidrs.size(), defaultAllow ? "allow" : "deny");
+    }
+
+    private static Rules load(InputStream input) throws IOException {
+        Rules loaded = new Rules();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int comment = line.indexOf('#');
+                String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (text.isEmpty()) {
+                    continue;
+                }
+                try {
+                    loaded.add(text);
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("invalid acl entry at line " + number + ": " + line, e);
+                }
+            }
+        }
+        loaded.domains.trim();
+        loaded.cidrs.trim();
+        return loaded;
+    }
+
+    /**
+     * 检查 TCP 目标，目标为域名且需要按网段检查时同步解析（走 DnsResolver 缓存）
+     * 直连时应只连接返回的地址：连接时重新解析可能得到没有检查过的地址，例如超时后迟到的解析结果或缓存过期后的新结果
+     *
+     * @param host 目标域名或 IP
+     * @return 拒绝时返回 null；允许时返回检查过的地址，没有解析时返回 UNRESOLVED
+     */
+    public static InetAddress[] checkTarget(String host) {
+        Rules current = rules;
+        if (current == null) {
+            return UNRESOLVED;
+        }
+        InetAddress literal = IpUtil.parseLiteral(host);
+        if (literal != null) {
+            return check(current.cidrs.longestMatch(literal.getAddress())) ? UNRESOLVED : null;
+        }
+        int decision = current.domains.longestMatch(host);
+        if (decision != DomainTrie.NO_MATCH || !resolve || current.cidrs.size() == 0) {
+            return check(decision) ? UNRESOLVED : null;
+        }
+        InetAddress[] addresses;
+        try {
+            addresses = DnsResolver.resolve(host);
+        } catch (UnknownHostException e) {
+            // 无法确认地址是否在被拒绝的网段内，按拒绝处理
+            log.debug("deny unresolved target {} {}", host, e.toString());
+            deniedCount.increment();
+            return null;
+        }
+        return check(decide(current, addresses)) ? addresses : null;
+    }
+
+    /**
+     * 检查已解析的目标，不会发起 DNS 查询，用于 UDP 转发
+     *
+     * @param host    目标为域名时的域名，IP 目标为 null
+     * @param address 目标地址
+     */
+    public static boolean isAllowed(String host, InetAddress address) {
+        Rules current = rules;
+        if (current == null) {
+            return true;
+        }
+        int decision = host != null ? current.domains.longestMatch(host) : DomainTrie.NO_MATCH;
+        if (decision == DomainTrie.NO_MATCH) {
+            decision = current.cidrs.longestMatch(address.getAddress());
+        }
+        return check(decision);
+    }
+
+    /**
+     * 域名解析出多个地址时，任一地址被拒绝即拒绝
+     */
+    private static int decide(Rules current, InetAddress[] addresses) {
+        int decision = CidrTree.NO_MATCH;
+        for (InetAddress address : addresses) {
+            int value = current.cidrs.longestMatch(address.getAddress());
+            if (value == DENY) {
+                return DENY;
+            }
+            if (value == ALLOW) {
+                decision = ALLOW;
+            }
+        }
+        return decision;
+    }
+
+    private static boolean check(int decision) {
+        boolean allowed = decision == CidrTree.NO_MATCH ? defaultAllow : decision == ALLOW;
+        if (!allowed) {
+            deniedCount.increment();
+        }
+        return allowed;
+    }
+
+    public static int getEntryCount() {
+        Rules current = rules;
+        return current == null ? 0 : current.size;
+    }
+
+    /**
+     * 被拒绝的目标数
+     */
+    public static long getDeniedCount() {
+        return deniedCount.sum();
+    }
+
+    /**
+     * 一次加载的全部条目，加载完成后只读
+     */
+    private static class Rules {
+
+        final DomainTrie domains = new DomainTrie();
+
+        final CidrTree cidrs = new CidrTree();
+
+        int size;
+
+        void add(String text) {
+            String[] fields = text.split("\\s+");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("expect: allow|deny value");
+            }
+            int action;
+            if ("allow".equalsIgnoreCase(fields[0])) {
+                action = ALLOW;
+            } else if ("deny".equalsIgnoreCase(fields[0])) {
+                action = DENY;
+            } else {
+                throw new IllegalArgumentException("unknown action: " + fields[0]);
+            }
+            String value = fields[1];
+            int slash = value.indexOf('/');
+            InetAddress address = IpUtil.parseLiteral(slash >= 0 ? value.substring(0, slash) : value);
+            if (address != null) {
+                byte[] bytes = address.getAddress();
+                int prefixLength = slash >= 0 ? Integer.parseInt(value.substring(slash + 1)) : bytes.length * 8;
+                cidrs.add(bytes, prefixLength, action);
+            } else if (slash >= 0) {
+                throw new IllegalArgumentException("invalid cidr: " + value);
+            } else {
+                domains.add(value, action);
+            }
+            size++;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ocean.proxy.server.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 单个转发方向使用的自适应缓冲区
+ * 从最小规格开始，连续读满缓冲区说明是大流量传输，升级到更大规格以减少系统调用；
+ * 连续多次只读到少量数据说明是交互式会话，退回较小规格，把大缓冲区还给缓冲区池。
+ * 只能由一个线程使用。
+ */
+public class AdaptiveBuffer {
+
+    // 连续读满多少次后升级
+    private static final int GROW_THRESHOLD = 2;
+
+    // 连续多少次读取不足当前容量的 1/4 后降级
+    private static final int SHRINK_THRESHOLD = 8;
+
+    private final BufferPool pool;
+
+    private ByteBuffer buffer;
+
+    private int index;
+
+    private int fullReads;
+
+    private int smallReads;
+
+    public AdaptiveBuffer(BufferPool pool) {
+        this.pool = pool;
+        this.index = 0;
+        this.buffer = pool.acquire(index);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * 堆内缓冲区的底层数组，供流式读写使用
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * 记录一次读取的字节数，必要时更换缓冲区规格。更换后旧缓冲区中的数据不会保留，应在数据写出后调用
+     *
+     * @param bytesRead 本次读取字节数
+     */
+    public void record(int bytesRead) {
+        int capacity = buffer.capacity();
+        if (bytesRead >= capacity) {
+            smallReads = 0;
+            if (++fullReads >= GROW_THRESHOLD && index < pool.sizeClassCount() - 1) {
+                resize(index + 1);
+            }
+        } else if (bytesRead < capacity >> 2) {
+            fullReads = 0;
+            if (++smallReads >= SHRINK_THRESHOLD && index > 0) {
+                resize(index - 1);
+            }
+        } else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+    }
+
+    private void resize(int newIndex) {
+        pool.release(buffer);
+        index = newIndex;
+        buffer = pool.acquire(index);
+        fullReads = 0;
+        smallReads = 0;
+    }
+
+    /**
+     * 归还缓冲区，之后不能再使用
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.TokenBucket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接准入控制
+ * 接收线程拿到新连接后先在这里检查全局并发连接数、单 IP 并发连接数与单 IP 新建连接速率，
+ * 超出限制或任务执行器已满时直接以 RST 关闭连接，不提交任何任务，也不会让接收线程退出。
+ * 准入的连接在关闭时调用 release 归还名额，release 可重复调用。
+ */
+public class AdmissionControl {
+
+    private static final Logger log = Logger.get("acceptor");
+
+    public static final String REASON_GLOBAL = "global";
+
+    public static final String REASON_IP = "ip";
+
+    public static final String REASON_RATE = "rate";
+
+    public static final String REASON_EXECUTOR = "executor";
+
+    private static volatile int maxConnections = 0;
+
+    private static volatile int maxConnectionsPerIp = 0;
+
+    private static volatile long ratePerIp = 0;
+
+    private static volatile int burstPerIp = 0;
+
+    private static final AtomicInteger connectionCount = new AtomicInteger();
+
+    // 已提交还未执行完的连接处理任务数，即正在握手的连接
+    private static final AtomicInteger handshakeCount = new AtomicInteger();
+
+    // 已准入且还未归还名额的连接 -> 客户端 IP
+    private static final Map<Socket, String> ADMITTED = new ConcurrentHashMap<>();
+
+    private static final Map<String, AtomicInteger> IP_CONNECTIONS = new ConcurrentHashMap<>();
+
+    private static final Map<String, TokenBucket> IP_RATES = new ConcurrentHashMap<>();
+
+    private static final LongAdder rejectedGlobal = new LongAdder();
+
+    private static final LongAdder rejectedIp = new LongAdder();
+
+    private static final LongAdder rejectedRate = new LongAdder();
+
+    private static final LongAdder rejectedExecutor = new LongAdder();
+
+    private static volatile boolean sweeping;
+
+    /**
+     * proxy.admission.maxConnections 全局并发连接数上限，0 表示不限制
+     * proxy.admission.maxConnectionsPerIp 单个客户端 IP 的并发连接数上限，0 表示不限制
+     * proxy.admission.ratePerIp 单个客户端 IP 每秒新建连接数上限，0 表示不限制
+     * proxy.admission.burstPerIp 单个客户端 IP 允许的突发新建连接数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        maxConnections = Integer.parseInt(properties.getProperty("proxy.admission.maxConnections", "0").trim());
+        maxConnectionsPerIp = Integer.parseInt(properties.getProperty("proxy.admission.maxConnectionsPerIp", "0").trim());
+        ratePerIp = Long.parseLong(properties.getProperty("proxy.admission.ratePerIp", "0").trim());
+        burstPerIp = Integer.parseInt(properties.getProperty("proxy.admission.burstPerIp", "20").trim());
+        IP_RATES.clear();
+        if (ratePerIp > 0 && !sweeping) {
+            sweeping = true;
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * 在接收线程内调用：准入检查通过后把连接处理任务提交到任务执行器，否则直接关闭连接
+     *
+     * @param socket 新接收的连接
+     * @param task   连接处理任务，任务结束时连接若已关闭会自动归还名额
+     */
+    public static void submit(Socket socket, Runnable task) {
+        String reason = admit(socket);
+        if (reason != null) {
+            reject(socket, reason);
+            return;
+        }
+        try {
+            handshakeCount.incrementAndGet();
+            ProxyServerApplication.getExecutor().execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    handshakeCount.decrementAndGet();
+                    // 握手失败等情况连接已在任务内关闭；转交给会话的连接由会话关闭时归还
+                    if (socket.isClosed()) {
+                        release(socket);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            handshakeCount.decrementAndGet();
+            release(socket);
+            reject(socket, REASON_EXECUTOR);
+        }
+    }
+
+    /**
+     * 检查并占用名额
+     *
+     * @return 拒绝原因，准入时返回 null
+     */
+    private static String admit(Socket socket) {
+        String ip = socket.getInetAddress().getHostAddress();
+        long rate = ratePerIp;
+        if (rate > 0) {
+            TokenBucket bucket = IP_RATES.computeIfAbsent(ip,
+                    k -> new TokenBucket(rate, Math.max(1, burstPerIp * TimeUnit.SECONDS.toMillis(1) / rate)));
+            if (!bucket.tryConsume(1)) {
+                return REASON_RATE;
+            }
+        }
+        int max = maxConnections;
+        if (connectionCount.incrementAndGet() > max && max > 0) {
+            connectionCount.decrementAndGet();
+            return REASON_GLOBAL;
+        }
+        AtomicInteger ipCount = IP_CONNECTIONS.compute(ip, (k, count) -> {
+            if (count == null) {
+                count = new AtomicInteger();
+            }
+            count.incrementAndGet();
+            return count;
+        });
+        int maxPerIp = maxConnectionsPerIp;
+        if (maxPerIp > 0 && ipCount.get() > maxPerIp) {
+            releaseIp(ip);
+            connectionCount.decrementAndGet();
+            return REASON_IP;
+        }
+        ADMITTED.put(socket, ip);
+        return null;
+    }
+
+    /**
+     * 连接关闭时归还名额，未准入或已归还的连接忽略
+     */
+    public static void release(Socket socket) {
+        String ip = ADMITTED.remove(socket);
+        if (ip == null) {
+            return;
+        }
+        releaseIp(ip);
+        connectionCount.decrementAndGet();
+    }
+
+    private static void releaseIp(String ip) {
+        IP_CONNECTIONS.computeIfPresent(ip, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+    }
+
+    /**
+     * 快速拒绝：SO_LINGER 为 0 时关闭直接发送 RST，不进入 TIME_WAIT
+     */
+    private static void reject(Socket socket, String reason) {
+        if (REASON_GLOBAL.equals(reason)) {
+            rejectedGlobal.increment();
+        } else if (REASON_IP.equals(reason)) {
+            rejectedIp.increment();
+        } else if (REASON_RATE.equals(reason)) {
+            rejectedRate.increment();
+        } else {
+            rejectedExecutor.increment();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("reject connection from {} ({})", socket.getRemoteSocketAddress(), reason);
+        }
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 定期丢弃已经回满的速率令牌桶，避免大量不同 IP 使 Map 无限增长
+     */
+    private static void scheduleSweep() {
+        SessionMonitor.timer().newTimeout(() -> {
+            IP_RATES.values().removeIf(TokenBucket::isFull);
+            scheduleSweep();
+        }, 60, TimeUnit.SECONDS);
+    }
+
+    public static int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * 正在握手（连接处理任务还未结束）的连接数
+     */
+    public static int getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * 按原因统计的拒绝连接数
+     *
+     * @param reason REASON_GLOBAL/REASON_IP/REASON_RATE/REASON_EXECUTOR
+     */
+    public static long getRejectedCount(String reason) {
+        switch (reason) {
+            case REASON_GLOBAL:
+                return rejectedGlobal.sum();
+            case REASON_IP:
+                return rejectedIp.sum();
+            case REASON_RATE:
+                return rejectedRate.sum();
+            default:
+                return rejectedExecutor.sum();
+        }
+    }
+}
@@ -1,42 +1,336 @@
 package com.ocean.proxy.server.service;
 
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.FileWatcher;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Description:
+ * Description: 用户名密码认证
+ * 用户文件每行一个用户：用户名=密码，密码可以是明文（兼容旧文件）或 PBKDF2 散列
+ * pbkdf2-sha256$迭代次数$盐(Base64)$散列(Base64)，散列可用 tool.HashPassword 生成。
+ * PBKDF2 计算代价高，验证通过后把 HMAC(进程随机密钥, 密码) 缓存 auth.cache.ttl 秒，
+ * 同一用户再次认证只需一次 HMAC 与常量时间比较；缓存有上限，按 LRU 淘汰。
+ * 用户文件是本地文件时监听其变化，重新加载后整体替换用户表（写时复制），已建立的会话不受影响，
+ * 被修改或删除的用户的缓存随之失效。
  *
  * @author Ocean
  * datetime: 2025/1/21 17:07
  */
 public class AuthService {
 
-    private static final Map<String, String> userMap = new HashMap<>();
+    private static final Logger log = Logger.get("auth");
+
+    private static final String PBKDF2_PREFIX = "pbkdf2-sha256$";
+
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final int DEFAULT_ITERATIONS = 100000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // 用户名 -> 凭据，重新加载时整体替换
+    private static volatile Map<String, Credential> userMap = Collections.emptyMap();
+
+    // 不存在的用户也做一次同样代价的校验，避免通过耗时判断用户是否存在
+    private static final Credential DUMMY = Credential.parse(hash("dummy", DEFAULT_ITERATIONS));
+
+    // 进程内随机密钥，缓存中只保存 HMAC，不保存明文密码
+    private static final byte[] CACHE_KEY = randomBytes(32);
+
+    // Mac 不是线程安全的，每个线程初始化一次，避免每次认证重新查找算法实现
+    private static final ThreadLocal<Mac> CACHE_MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(CACHE_KEY, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static volatile long cacheTtlMillis = TimeUnit.SECONDS.toMillis(300);
 
-    public static void init(){
-        InputStream resourceAsStream = AuthService.class.getClassLoader().getResourceAsStream("user.txt");
-        if (resourceAsStream != null) {
-            Properties properties = new Properties();
+    private static volatile LruCache cache = new LruCache(10000);
+
+    private static final LongAdder cacheHitCount = new LongAdder();
+
+    private static final LongAdder verifyCount = new LongAdder();
+
+    private static final LongAdder failureCount = new LongAdder();
+
+    /**
+     * auth.file 用户文件路径，不配置时使用 classpath 中的 user.txt
+     * auth.cache.ttl 验证结果缓存秒数，0 表示不缓存
+     * auth.cache.size 最多缓存的用户数
+     * auth.reload 用户文件变化时是否自动重新加载
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        cacheTtlMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("auth.cache.ttl", "300").trim()));
+        cache = new LruCache(Integer.parseInt(properties.getProperty("auth.cache.size", "10000").trim()));
+        boolean reload = Boolean.parseBoolean(properties.getProperty("auth.reload", "true").trim());
+        String file = properties.getProperty("auth.file");
+        Path path = null;
+        if (file != null && !file.trim().isEmpty()) {
+            path = Paths.get(file.trim());
+        } else {
+            URL url = AuthService.class.getClassLoader().getResource("user.txt");
+            if (url == null) {
+                log.warn("user.txt not found, all authentication will fail");
+                return;
+            }
+            if (!"file".equals(url.getProtocol())) {
+                // 打包在 jar 中，无法监听变化
+                try (InputStream input = url.openStream()) {
+                    userMap = load(input);
+                } catch (IOException e) {
+                    throw new IllegalStateException("load user.txt failed", e);
+                }
+                return;
+            }
             try {
-                properties.load(resourceAsStream);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                path = Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
             }
-            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
-                userMap.put(entry.getKey().toString(), entry.getValue().toString());
+        }
+        try (InputStream input = Files.newInputStream(path)) {
+            userMap = load(input);
+        } catch (IOException e) {
+            throw new IllegalStateException("load user file failed: " + path, e);
+        }
+        log.info("load {} users from {}", userMap.size(), path);
+        if (reload) {
+            Path userFile = path;
+            try {
+                FileWatcher.watch(userFile, () -> reload(userFile));
+            } catch (IOException e) {
+                log.warn("watch user file failed, hot reload disabled: {}", e.toString());
             }
         }
     }
 
+    /**
+     * 校验用户名密码
+     */
     public static boolean checkAuth(String username, String passwd) {
-        if (userMap.containsKey(username)) {
-            if (userMap.get(username).equals(passwd)) {
-                return true;
+        Credential credential = userMap.get(username);
+        byte[] password = passwd.getBytes(StandardCharsets.UTF_8);
+        if (credential != null && cacheTtlMillis > 0) {
+            CacheEntry entry = cache.get(username);
+            // 凭据对象不同说明用户文件已重新加载且该用户已修改
+            if (entry != null && entry.credential == credential && entry.expireAt > System.currentTimeMillis()) {
+                if (MessageDigest.isEqual(entry.digest, hmac(password))) {
+                    cacheHitCount.increment();
+                    return true;
+                }
+            }
+        }
+        verifyCount.increment();
+        boolean success = (credential != null ? credential : DUMMY).verify(password) && credential != null;
+        if (!success) {
+            failureCount.increment();
+            return false;
+        }
+        if (cacheTtlMillis > 0) {
+            cache.put(username, new CacheEntry(credential, hmac(password), System.currentTimeMillis() + cacheTtlMillis));
+        }
+        return true;
+    }
+
+    /**
+     * 生成 PBKDF2 散列，用于写入用户文件
+     *
+     * @param password   明文密码
+     * @param iterations 迭代次数
+     */
+    public static String hash(String password, int iterations) {
+        byte[] salt = randomBytes(16);
+        byte[] hash = pbkdf2(password.getBytes(StandardCharsets.UTF_8), salt, iterations, 32);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PBKDF2_PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    public static String hash(String password) {
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    public static int getUserCount() {
+        return userMap.size();
+    }
+
+    public static long getCacheHitCount() {
+        return cacheHitCount.sum();
+    }
+
+    public static long getVerifyCount() {
+        return verifyCount.sum();
+    }
+
+    public static long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    private static Map<String, Credential> load(InputStream input) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, Credential> users = new HashMap<>();
+        int plain = 0;
+        for (String username : properties.stringPropertyNames()) {
+            String value = properties.getProperty(username).trim();
+            Credential credential = Credential.parse(value);
+            if (credential.plain != null) {
+                plain++;
             }
+            users.put(username, credential);
         }
-        return false;
+        if (plain > 0) {
+            log.warn("{} users use plaintext password, use HashPassword to generate hashed password", plain);
+        }
+        return Collections.unmodifiableMap(users);
+    }
+
+    private static void reload(Path path) {
+        try (InputStream input = Files.newInputStream(path)) {
+            Map<String, Credential> users = load(input);
+            userMap = users;
+            log.info("reload {} users from {}", users.size(), path);
+        } catch (Exception e) {
+            // 文件可能正在写入，保留原用户表，等待下一次变化
+            log.error("reload user file failed, keep current users", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] password) {
+        return CACHE_MAC.get().doFinal(password);
+    }
+
+    private static byte[] pbkdf2(byte[] password, byte[] salt, int iterations, int length) {
+        char[] chars = new String(password, StandardCharsets.UTF_8).toCharArray();
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+            return factory.generateSecret(new PBEKeySpec(chars, salt, iterations, length * 8)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
     }
 
+    /**
+     * 用户文件中的一条凭据，明文与散列二选一
+     */
+    private static class Credential {
+
+        final byte[] plain;
+
+        final int iterations;
+
+        final byte[] salt;
+
+        final byte[] hash;
+
+        private Credential(byte[] plain, int iterations, byte[] salt, byte[] hash) {
+            this.plain = plain;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        static Credential parse(String value) {
+            if (!value.startsWith(PBKDF2_PREFIX)) {
+                return new Credential(value.getBytes(StandardCharsets.UTF_8), 0, null, null);
+            }
+            String[] parts = value.substring(PBKDF2_PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("invalid password hash: " + value);
+            }
+            Base64.Decoder decoder = Base64.getDecoder();
+            return new Credential(null, Integer.parseInt(parts[0]), decoder.decode(parts[1]), decoder.decode(parts[2]));
+        }
 
+        /**
+         * 常量时间比较
+         */
+        boolean verify(byte[] password) {
+            if (plain != null) {
+                return MessageDigest.isEqual(plain, password);
+            }
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations, hash.length));
+        }
+    }
+
+    private static class CacheEntry {
+
+        final Credential credential;
+
+        final byte[] digest;
+
+        final long expireAt;
+
+        CacheEntry(Credential credential, byte[] digest, long expireAt) {
+            this.credential = credential;
+            this.digest = digest;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 按访问顺序淘汰的定长缓存
+     */
+    private static class LruCache {
+
+        private final Map<String, CacheEntry> map;
+
+        LruCache(int maxSize) {
+            this.map = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized CacheEntry get(String username) {
+            return map.get(username);
+        }
+
+        synchronized void put(String username, CacheEntry entry) {
+            map.put(username, entry);
+        }
+    }
 }
@@ -0,0 +1,412 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.SocksCodec.SocksRequest;
+import com.ocean.proxy.server.util.HashedWheelTimer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SOCKS5 BIND 命令
+ * 每个 BIND 请求从配置的端口范围中取一个端口开启临时监听，第一个响应返回监听地址；
+ * 所有等待中的监听共用一个 Selector 线程 accept，不占用任务执行器的线程；
+ * 对端连入后发送第二个响应（对端地址），之后与 CONNECT 一样转发数据，监听随即关闭。
+ * 等待超过 proxy.bind.timeout 或控制连接关闭时放弃监听，同时等待的监听数不超过 proxy.bind.maxPending。
+ */
+public class BindService {
+
+    private static final Logger log = Logger.get("socks5");
+
+    private static final byte[] EMPTY_ADDRESS = {0, 0, 0, 0};
+
+    // 端口范围，portFrom 为 0 时使用系统分配的临时端口
+    private static volatile int portFrom = 0;
+
+    private static volatile int portTo = 0;
+
+    private static volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private static volatile int maxPending = 256;
+
+    private static final AtomicInteger nextPort = new AtomicInteger();
+
+    private static final AtomicInteger pendingCount = new AtomicInteger();
+
+    private static final LongAdder acceptedCount = new LongAdder();
+
+    private static final LongAdder timeoutCount = new LongAdder();
+
+    private static volatile AcceptLoop acceptLoop;
+
+    /**
+     * proxy.bind.portRange 监听端口范围，如 40000-40099，不配置时使用系统分配的临时端口
+     * proxy.bind.timeout 等待对端连入的超时毫秒数
+     * proxy.bind.maxPending 同时等待的 BIND 监听数上限
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        String range = properties.getProperty("proxy.bind.portRange", "").trim();
+        if (range.isEmpty()) {
+            portFrom = 0;
+            portTo = 0;
+        } else {
+            String[] parts = range.split("-");
+            portFrom = Integer.parseInt(parts[0].trim());
+            portTo = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : portFrom;
+            if (portFrom <= 0 || portTo < portFrom || portTo > 65535) {
+                throw new IllegalArgumentException("invalid proxy.bind.portRange: " + range);
+            }
+        }
+        timeoutMillis = Long.parseLong(properties.getProperty("proxy.bind.timeout", "60000").trim());
+        maxPending = Integer.parseInt(properties.getProperty("proxy.bind.maxPending", "256").trim());
+    }
+
+    /**
+     * 处理 BIND 请求：开启监听并发送第一个响应，之后由 accept 线程等待对端连入，调用方线程立即返回
+     * 失败时已向客户端返回错误响应
+     *
+     * @param reader  客户端的握手读取器，控制连接之后由 BIND 负责关闭
+     * @param request BIND 请求，DST.ADDR 为 IP 时只接受来自该 IP 的连接
+     * @param user    认证用户名，未认证为 null
+     * @return 是否已开始监听
+     */
+    public static boolean bind(HandshakeReader reader, SocksRequest request, String user) throws IOException {
+        Socket controlSocket = reader.getSocket();
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            log.warn("too many pending bind, reject {}", controlSocket.getRemoteSocketAddress());
+            reader.write(SocksCodec.socks5Reply(0x01, SocksCodec.ATYP_IPV4, EMPTY_ADDRESS, 0));
+            return false;
+        }
+        ServerSocketChannel serverChannel;
+        try {
+            serverChannel = listen(controlSocket.getLocalAddress());
+        } catch (IOException e) {
+            pendingCount.decrementAndGet();
+            log.warn("bind listen failed {}", e.toString());
+            reader.write(SocksCodec.socks5Reply(0x01, SocksCodec.ATYP_IPV4, EMPTY_ADDRESS, 0));
+            return false;
+        }
+        InetSocketAddress listenAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+        PendingBind pending = new PendingBind(loop(), controlSocket, serverChannel, expectedPeer(request), reader.remaining(), user);
+        try {
+            reader.write(SocksCodec.socks5Reply(0x00, listenAddress.getAddress(), listenAddress.getPort()));
+        } catch (IOException e) {
+            pending.loop.execute(pending::close);
+            throw e;
+        }
+        log.info("bind listen on {} for {}", listenAddress, controlSocket.getRemoteSocketAddress());
+        pending.timeout = SessionMonitor.timer().newTimeout(() -> pending.loop.execute(pending::expire),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        pending.loop.execute(pending::register);
+        return true;
+    }
+
+    /**
+     * 在控制连接的本地地址上开启监听，配置了端口范围时从上次分配的位置开始依次尝试
+     */
+    private static ServerSocketChannel listen(InetAddress localAddress) throws IOException {
+        int from = portFrom;
+        int to = portTo;
+        if (from == 0) {
+            return open(new InetSocketAddress(localAddress, 0));
+        }
+        int size = to - from + 1;
+        IOException lastError = null;
+        for (int i = 0; i < size; i++) {
+            int port = from + (nextPort.getAndIncrement() & Integer.MAX_VALUE) % size;
+            try {
+                return open(new InetSocketAddress(localAddress, port));
+            } catch (IOException e) {
+                // 端口被占用，尝试下一个
+                lastError = e;
+            }
+        }
+        throw new IOException("no free port in " + from + "-" + to, lastError);
+    }
+
+    private static ServerSocketChannel open(InetSocketAddress address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(address, 1);
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * DST.ADDR 为非零的 IP 时只接受该 IP 连入，域名或全零地址不限制
+     */
+    private static byte[] expectedPeer(SocksRequest request) {
+        if (request.addressType == SocksCodec.ATYP_DOMAIN) {
+            return null;
+        }
+        for (byte b : request.address) {
+            if (b != 0) {
+                return request.address;
+            }
+        }
+        return null;
+    }
+
+    private static AcceptLoop loop() throws IOException {
+        AcceptLoop loop = acceptLoop;
+        if (loop != null) {
+            return loop;
+        }
+        synchronized (BindService.class) {
+            if (acceptLoop == null) {
+                AcceptLoop created = new AcceptLoop();
+                created.start();
+                acceptLoop = created;
+            }
+            return acceptLoop;
+        }
+    }
+
+    public static int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public static long getAcceptedCount() {
+        return acceptedCount.sum();
+    }
+
+    public static long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 所有等待中的 BIND 监听共用的 accept 线程
+     */
+    private static class AcceptLoop extends Thread {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean wakeup = new AtomicBoolean();
+
+        AcceptLoop() throws IOException {
+            super("bind-acceptor");
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            taskQueue.add(task);
+            if (Thread.currentThread() != this && wakeup.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeup.set(false);
+                    Runnable task;
+                    while ((task = taskQueue.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        ((PendingBind) key.attachment()).handle(key);
+                    }
+                } catch (Throwable e) {
+                    log.error("bind accept loop error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个等待对端连入的 BIND，register 之后的方法只在 accept 线程内调用
+     */
+    private static class PendingBind {
+
+        final AcceptLoop loop;
+
+        final Socket controlSocket;
+
+        final SocketChannel controlChannel;
+
+        final ServerSocketChannel serverChannel;
+
+        final byte[] expectedPeer;
+
+        final byte[] pending;
+
+        final String user;
+
+        volatile HashedWheelTimer.Timeout timeout;
+
+        boolean done;
+
+        PendingBind(AcceptLoop loop, Socket controlSocket, ServerSocketChannel serverChannel, byte[] expectedPeer, byte[] pending,
+                    String user) {
+            this.loop = loop;
+            this.controlSocket = controlSocket;
+            this.controlChannel = controlSocket.getChannel();
+            this.serverChannel = serverChannel;
+            this.expectedPeer = expectedPeer;
+            this.pending = pending;
+            this.user = user;
+        }
+
+        void register() {
+            if (done) {
+                return;
+            }
+            try {
+                serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT, this);
+                if (controlChannel != null) {
+                    // 等待期间控制连接上不应有数据，可读即为客户端关闭或异常
+                    controlChannel.configureBlocking(false);
+                    controlChannel.register(loop.selector, SelectionKey.OP_READ, this);
+                }
+            } catch (IOException e) {
+                log.error("register bind failed", e);
+                close();
+            }
+        }
+
+        void handle(SelectionKey key) {
+            if (done) {
+                return;
+            }
+            try {
+                if (key.channel() == serverChannel) {
+                    accept();
+                } else {
+                    log.info("bind cancelled by client {}", controlSocket.getRemoteSocketAddress());
+                    close();
+                }
+            } catch (CancelledKeyException e) {
+                close();
+            } catch (Exception e) {
+                log.warn("bind failed {} {}", controlSocket.getRemoteSocketAddress(), e.toString());
+                close();
+            }
+        }
+
+        private void accept() throws Exception {
+            SocketChannel peer;
+            while ((peer = serverChannel.accept()) != null) {
+                InetSocketAddress peerAddress = (InetSocketAddress) peer.getRemoteAddress();
+                if (expectedPeer != null && !Arrays.equals(expectedPeer, peerAddress.getAddress().getAddress())) {
+                    log.warn("bind reject unexpected peer {}", peerAddress);
+                    closeQuietly(peer);
+                    continue;
+                }
+                finish();
+                acceptedCount.increment();
+                log.info("bind accepted {} for {}", peerAddress, controlSocket.getRemoteSocketAddress());
+                // 取消注册，控制连接之后由转发引擎接管
+                for (SelectionKey key : loop.selector.keys()) {
+                    if (key.attachment() == this) {
+                        key.cancel();
+                    }
+                }
+                closeQuietly(serverChannel);
+                // 第二个响应：对端地址。接入的连接保持阻塞模式，与 Dialer 连接目标得到的连接一致
+                byte[] reply = SocksCodec.socks5Reply(0x00, peerAddress.getAddress(), peerAddress.getPort());
+                try {
+                    writeReply(reply);
+                    DataTransHandler.bindClientAndTarget(controlSocket, peer.socket(), pending, user);
+                } catch (Exception e) {
+                    closeQuietly(peer);
+                    closeQuietly(controlSocket);
+                    throw e;
+                }
+                return;
+            }
+        }
+
+        private void writeReply(byte[] reply) throws IOException {
+            if (controlChannel == null) {
+                controlSocket.getOutputStream().write(reply);
+                return;
+            }
+            // 控制通道此时为非阻塞模式，响应只有几十字节，发送缓冲区为空时一次写完
+            ByteBuffer buffer = ByteBuffer.wrap(reply);
+            controlChannel.write(buffer);
+            if (buffer.hasRemaining()) {
+                throw new IOException("bind reply not fully written");
+            }
+        }
+
+        void expire() {
+            if (done) {
+                return;
+            }
+            timeoutCount.increment();
+            log.info("bind timeout {}", controlSocket.getRemoteSocketAddress());
+            try {
+                // 0x06 TTL expired，用于表示等待超时
+                writeReply(SocksCodec.socks5Reply(0x06, SocksCodec.ATYP_IPV4, EMPTY_ADDRESS, 0));
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        private void finish() {
+            done = true;
+            pendingCount.decrementAndGet();
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        void close() {
+            if (done) {
+                return;
+            }
+            finish();
+            closeQuietly(serverChannel);
+            closeQuietly(controlSocket);
+            AdmissionControl.release(controlSocket);
+        }
+    }
+}
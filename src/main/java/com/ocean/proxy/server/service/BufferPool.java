@@ -0,0 +1,221 @@
+package com.ocean.proxy.server.service;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 转发缓冲区池
+ * 按 2 的幂划分若干规格（默认 4KB 到 64KB），会话从池中借用缓冲区，用完归还，
+ * 每个规格最多缓存 maxPooled 个空闲缓冲区，超出的直接丢弃交给GC。
+ */
+public class BufferPool {
+
+    private static final int DEFAULT_MIN_SIZE = 4 * 1024;
+
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_MAX_POOLED = 1024;
+
+    // 流式转发只能使用堆内缓冲区
+    private static volatile BufferPool heapPool = new BufferPool(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_POOLED, false);
+
+    // 通道转发使用的缓冲区，proxy.buffer.direct=true 时为堆外缓冲区
+    private static volatile BufferPool channelPool = heapPool;
+
+    /**
+     * 读取缓冲区配置
+     * proxy.buffer.minSize / proxy.buffer.maxSize 最小、最大规格，会向上取整为 2 的幂
+     * proxy.buffer.maxPooled 每个规格最多缓存的空闲缓冲区数量
+     * proxy.buffer.direct 通道转发是否使用堆外缓冲区
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        int minSize = Integer.parseInt(properties.getProperty("proxy.buffer.minSize", String.valueOf(DEFAULT_MIN_SIZE)).trim());
+        int maxSize = Integer.parseInt(properties.getProperty("proxy.buffer.maxSize", String.valueOf(DEFAULT_MAX_SIZE)).trim());
+        int maxPooled = Integer.parseInt(properties.getProperty("proxy.buffer.maxPooled", String.valueOf(DEFAULT_MAX_POOLED)).trim());
+        boolean direct = Boolean.parseBoolean(properties.getProperty("proxy.buffer.direct", "false").trim());
+        heapPool = new BufferPool(minSize, maxSize, maxPooled, false);
+        channelPool = direct ? new BufferPool(minSize, maxSize, maxPooled, true) : heapPool;
+    }
+
+    public static BufferPool heap() {
+        return heapPool;
+    }
+
+    public static BufferPool channel() {
+        return channelPool;
+    }
+
+    private final SizeClass[] sizeClasses;
+
+    private final int maxPooled;
+
+    private final boolean direct;
+
+    private final LongAdder acquireCount = new LongAdder();
+
+    private final LongAdder allocateCount = new LongAdder();
+
+    private final LongAdder discardCount = new LongAdder();
+
+    public BufferPool(int minSize, int maxSize, int maxPooled, boolean direct) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("invalid buffer size range: " + minSize + "-" + maxSize);
+        }
+        int min = roundUpToPowerOfTwo(minSize);
+        int max = roundUpToPowerOfTwo(maxSize);
+        int count = Integer.numberOfTrailingZeros(max) - Integer.numberOfTrailingZeros(min) + 1;
+        this.sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            sizeClasses[i] = new SizeClass(min << i);
+        }
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    private static int roundUpToPowerOfTwo(int size) {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    public int sizeClassCount() {
+        return sizeClasses.length;
+    }
+
+    public int sizeOf(int index) {
+        return sizeClasses[index].size;
+    }
+
+    public int maxSize() {
+        return sizeClasses[sizeClasses.length - 1].size;
+    }
+
+    /**
+     * 能容纳 size 字节的最小规格，超过最大规格时返回最大规格
+     */
+    public int indexFor(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i].size >= size) {
+                return i;
+            }
+        }
+        return sizeClasses.length - 1;
+    }
+
+    /**
+     * 借用指定规格的缓冲区，返回的缓冲区已 clear
+     */
+    public ByteBuffer acquire(int index) {
+        SizeClass sizeClass = sizeClasses[index];
+        acquireCount.increment();
+        sizeClass.inUse.incrementAndGet();
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer != null) {
+            sizeClass.idle.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        allocateCount.increment();
+        return direct ? ByteBuffer.allocateDirect(sizeClass.size) : ByteBuffer.allocate(sizeClass.size);
+    }
+
+    /**
+     * 归还缓冲区，容量不属于任何规格或该规格空闲数已满时丢弃
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(buffer.capacity()) - Integer.numberOfTrailingZeros(sizeClasses[0].size);
+        if (index < 0 || index >= sizeClasses.length || sizeClasses[index].size != buffer.capacity() || buffer.isDirect() != direct) {
+            discardCount.increment();
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[index];
+        sizeClass.inUse.decrementAndGet();
+        if (sizeClass.idle.incrementAndGet() > maxPooled) {
+            sizeClass.idle.decrementAndGet();
+            discardCount.increment();
+            return;
+        }
+        sizeClass.free.offer(buffer);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAllocateCount() {
+        return allocateCount.sum();
+    }
+
+    public long getDiscardCount() {
+        return discardCount.sum();
+    }
+
+    public int getInUse(int index) {
+        return sizeClasses[index].inUse.get();
+    }
+
+    public int getIdle(int index) {
+        return sizeClasses[index].idle.get();
+    }
+
+    /**
+     * 当前借出与空闲缓冲区占用的总字节数
+     */
+    public long getInUseBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            bytes += (long) sizeClass.inUse.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    public long getIdleBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            bytes += (long) sizeClass.idle.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(direct ? "direct" : "heap").append(" buffer pool [");
+        for (int i = 0; i < sizeClasses.length; i++) {
+            SizeClass sizeClass = sizeClasses[i];
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(sizeClass.size / 1024).append("KB inUse=").append(sizeClass.inUse.get())
+                    .append(" idle=").append(sizeClass.idle.get());
+        }
+        return sb.append("] acquire=").append(getAcquireCount()).append(" allocate=").append(getAllocateCount())
+                .append(" discard=").append(getDiscardCount()).toString();
+    }
+
+    private static class SizeClass {
+
+        final int size;
+
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger idle = new AtomicInteger();
+
+        final AtomicInteger inUse = new AtomicInteger();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.util.IpUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 上游代理
+ * 先连接上游代理服务器，再通过 SOCKS5 CONNECT 或 HTTP CONNECT 请求它连接目标，
+ * 握手完成后返回的连接与直连目标的连接一样交给 DataTransHandler 转发。
+ * 地址格式：socks5://[用户名:密码@]主机:端口 或 http://[用户名:密码@]主机:端口
+ */
+public class ChainedProxy {
+
+    private static final int SOCKS5 = 1;
+
+    private static final int HTTP = 2;
+
+    private final String name;
+
+    private final int type;
+
+    private final String host;
+
+    private final int port;
+
+    private final String username;
+
+    private final String password;
+
+    private ChainedProxy(String name, int type, String host, int port, String username, String password) {
+        this.name = name;
+        this.type = type;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * 解析上游代理地址
+     *
+     * @param name 上游名称，路由规则中引用
+     * @param url  socks5://host:port 或 http://host:port，可带用户名密码
+     */
+    public static ChainedProxy parse(String name, String url) {
+        URI uri = URI.create(url.trim());
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+        int type;
+        if ("socks5".equals(scheme) || "socks".equals(scheme)) {
+            type = SOCKS5;
+        } else if ("http".equals(scheme)) {
+            type = HTTP;
+        } else {
+            throw new IllegalArgumentException("unsupported upstream " + name + ": " + url);
+        }
+        if (uri.getHost() == null || uri.getPort() <= 0) {
+            throw new IllegalArgumentException("upstream " + name + " requires host and port: " + url);
+        }
+        String username = null;
+        String password = null;
+        String userInfo = uri.getUserInfo();
+        if (userInfo != null) {
+            int colon = userInfo.indexOf(':');
+            username = colon >= 0 ? userInfo.substring(0, colon) : userInfo;
+            password = colon >= 0 ? userInfo.substring(colon + 1) : "";
+        }
+        // IPv6 地址在 URI 中带方括号
+        String host = uri.getHost().startsWith("[") ? uri.getHost().substring(1, uri.getHost().length() - 1) : uri.getHost();
+        return new ChainedProxy(name, type, host, uri.getPort(), username, password);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 经上游代理连接目标
+     *
+     * @return 已完成握手、可以直接转发数据的连接
+     */
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        Socket socket = Dialer.connect(host, port);
+        try {
+            // 握手期间使用连接超时，完成后恢复为阻塞读取
+            socket.setSoTimeout(Dialer.getConnectTimeout());
+            if (type == SOCKS5) {
+                socks5Connect(socket, targetHost, targetPort);
+            } else {
+                httpConnect(socket, targetHost, targetPort);
+            }
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    private void socks5Connect(Socket socket, String targetHost, int targetPort) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        if (username != null) {
+            out.write(new byte[]{0x05, 0x02, 0x00, 0x02});
+        } else {
+            out.write(new byte[]{0x05, 0x01, 0x00});
+        }
+        out.flush();
+        if (in.readUnsignedByte() != 0x05) {
+            throw new ProtocolException("upstream " + name + " is not a socks5 server");
+        }
+        int method = in.readUnsignedByte();
+        if (method == 0x02 && username != null) {
+            byte[] user = username.getBytes(StandardCharsets.UTF_8);
+            byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream auth = new ByteArrayOutputStream(3 + user.length + pass.length);
+            auth.write(0x01);
+            auth.write(user.length);
+            auth.write(user, 0, user.length);
+            auth.write(pass.length);
+            auth.write(pass, 0, pass.length);
+            out.write(auth.toByteArray());
+            out.flush();
+            in.readUnsignedByte();
+            if (in.readUnsignedByte() != 0x00) {
+                throw new ProtocolException("upstream " + name + " authentication failed");
+            }
+        } else if (method != 0x00) {
+            throw new ProtocolException("upstream " + name + " rejected auth methods: " + method);
+        }
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream(32);
+        request.write(new byte[]{0x05, 0x01, 0x00}, 0, 3);
+        InetAddress literal = IpUtil.parseLiteral(targetHost);
+        if (literal != null) {
+            request.write(literal instanceof Inet4Address ? SocksCodec.ATYP_IPV4 : SocksCodec.ATYP_IPV6);
+            byte[] address = literal.getAddress();
+            request.write(address, 0, address.length);
+        } else {
+            byte[] domain = targetHost.getBytes(StandardCharsets.US_ASCII);
+            request.write(SocksCodec.ATYP_DOMAIN);
+            request.write(domain.length);
+            request.write(domain, 0, domain.length);
+        }
+        request.write(targetPort >> 8);
+        request.write(targetPort);
+        out.write(request.toByteArray());
+        out.flush();
+
+        // | VER | REP | RSV | ATYP | BND.ADDR | BND.PORT |
+        byte[] header = new byte[4];
+        in.readFully(header);
+        if (header[1] != 0x00) {
+            throw new IOException("upstream " + name + " connect " + targetHost + ":" + targetPort + " failed, reply " + header[1]);
+        }
+        int addressLength;
+        if (header[3] == SocksCodec.ATYP_IPV4) {
+            addressLength = 4;
+        } else if (header[3] == SocksCodec.ATYP_IPV6) {
+            addressLength = 16;
+        } else if (header[3] == SocksCodec.ATYP_DOMAIN) {
+            addressLength = in.readUnsignedByte();
+        } else {
+            throw new ProtocolException("upstream " + name + " invalid address type " + header[3]);
+        }
+        in.readFully(new byte[addressLength + 2]);
+    }
+
+    private void httpConnect(Socket socket, String targetHost, int targetPort) throws IOException {
+        String authority = (targetHost.indexOf(':') >= 0 ? "[" + targetHost + "]" : targetHost) + ":" + targetPort;
+        StringBuilder request = new StringBuilder(128);
+        request.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(authority).append("\r\n");
+        if (username != null) {
+            String credentials = Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+            request.append("Proxy-Authorization: Basic ").append(credentials).append("\r\n");
+        }
+        request.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        // 逐字节读取响应头，不能多读隧道建立后目标发来的数据
+        InputStream in = socket.getInputStream();
+        StringBuilder response = new StringBuilder(128);
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("upstream " + name + " closed during CONNECT");
+            }
+            if (response.length() >= 8192) {
+                throw new ProtocolException("upstream " + name + " response header too large");
+            }
+            response.append((char) b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+        }
+        // HTTP/1.1 200 Connection established
+        int lineEnd = response.indexOf("\r\n");
+        String[] status = response.substring(0, lineEnd).split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/") || !"200".equals(status[1])) {
+            throw new IOException("upstream " + name + " CONNECT " + authority + " failed: " + response.substring(0, lineEnd));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + (type == SOCKS5 ? "socks5" : "http") + "://" + host + ":" + port + ")";
+    }
+}
@@ -1,17 +1,22 @@
 package com.ocean.proxy.server.service;
 
-import com.ocean.proxy.server.util.BytesUtil;
 import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.UUID;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.LockSupport;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
 
 /**
  * <b>Description:</b>  <br/>
@@ -20,136 +25,352 @@ import java.util.concurrent.locks.LockSupport;
  */
 public class DataTransHandler {
 
-    // 使用全局线程池
-    private static final ThreadPoolExecutor executorService = ProxyServerApplication.GLOBAL_EXECUTOR;
+    private static final Logger log = Logger.get("relay");
+
+    // 是否使用 NIO 转发引擎，默认使用每个方向一个线程的阻塞转发
+    private static volatile boolean nioEngine = false;
+
+    /**
+     * 根据配置选择转发引擎
+     * proxy.relay.engine=bio|nio，proxy.relay.nio.threads 为事件循环线程数，默认CPU核数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        BufferPool.init(properties);
+        String engine = properties.getProperty("proxy.relay.engine", "bio").trim();
+        if ("nio".equalsIgnoreCase(engine)) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            String threadsConfig = properties.getProperty("proxy.relay.nio.threads");
+            if (threadsConfig != null && !threadsConfig.trim().isEmpty() && Integer.parseInt(threadsConfig.trim()) > 0) {
+                threads = Integer.parseInt(threadsConfig.trim());
+            }
+            NioRelayEngine.start(threads);
+            nioEngine = true;
+        } else if (!"bio".equalsIgnoreCase(engine)) {
+            throw new IllegalArgumentException("unknown proxy.relay.engine: " + engine);
+        }
+    }
+
+    public static boolean isNioEngine() {
+        return nioEngine;
+    }
+
+    /**
+     * 创建监听端口。NIO 引擎下使用 ServerSocketChannel，使 accept 得到的连接可以注册到事件循环
+     *
+     * @param port 监听端口
+     */
+    public static ServerSocket createServerSocket(int port) throws IOException {
+        return createServerSocket(port, 0, false);
+    }
+
+    /**
+     * 创建监听端口
+     *
+     * @param port      监听端口
+     * @param backlog   等待 accept 的连接队列长度，0 使用默认值
+     * @param reusePort 是否开启 SO_REUSEPORT，多个监听 Socket 绑定同一端口由内核分发连接
+     */
+    public static ServerSocket createServerSocket(int port, int backlog, boolean reusePort) throws IOException {
+        return createServerSocket(port, backlog, reusePort, nioEngine);
+    }
+
+    /**
+     * 创建监听端口
+     *
+     * @param channel 是否使用 ServerSocketChannel，为 false 时即使启用了 NIO 引擎也创建普通 ServerSocket
+     * @see #createServerSocket(int, int, boolean)
+     */
+    public static ServerSocket createServerSocket(int port, int backlog, boolean reusePort, boolean channel) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        if (channel) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            if (reusePort) {
+                serverChannel.setOption(reusePortOption(), true);
+            }
+            serverChannel.bind(address, backlog);
+            return serverChannel.socket();
+        }
+        ServerSocket serverSocket = new ServerSocket();
+        if (reusePort) {
+            try {
+                // ServerSocket.setOption 从 JDK9 开始提供
+                ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(serverSocket, reusePortOption(), true);
+            } catch (ReflectiveOperationException e) {
+                serverSocket.close();
+                throw new UnsupportedOperationException("SO_REUSEPORT not supported", e);
+            }
+        }
+        serverSocket.bind(address, backlog);
+        return serverSocket;
+    }
+
+    /**
+     * 当前 JDK 与操作系统是否支持 SO_REUSEPORT（JDK9+，Linux/BSD）
+     */
+    public static boolean isReusePortSupported() {
+        try {
+            SocketOption<?> option = reusePortOption();
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                return channel.supportedOptions().contains(option);
+            }
+        } catch (UnsupportedOperationException | IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("SO_REUSEPORT not supported", e);
+        }
+    }
 
     /**
      * 绑定客户端与目标的数据传输
-     * 启动两个线程，分别从客户端读取数据并发送到目标服务器，以及从目标服务器读取数据并发送到客户端
+     * NIO 引擎下两端连接注册到事件循环；否则启动两个线程，分别从客户端读取数据并发送到目标服务器，以及从目标服务器读取数据并发送到客户端
      *
      * @param clientSocket
      * @param targetSocket
      * @throws Exception
      */
     public static void bindClientAndTarget(Socket clientSocket, Socket targetSocket) throws Exception {
-        String sessionId = UUID.randomUUID().toString();
-        System.out.println("create connection ：" + sessionId);
-        createClientThread(clientSocket, targetSocket, sessionId);
-        createTargetThread(clientSocket, targetSocket, sessionId);
-        checkConnectStatus(clientSocket, targetSocket, sessionId);
+        bindClientAndTarget(clientSocket, targetSocket, null);
+    }
+
+    /**
+     * 绑定客户端与目标的数据传输，先把握手阶段已读到的客户端数据发给目标
+     *
+     * @param pending 握手报文之后客户端已发送的数据，可以为空
+     */
+    public static void bindClientAndTarget(Socket clientSocket, Socket targetSocket, byte[] pending) throws Exception {
+        bindClientAndTarget(clientSocket, targetSocket, pending, null);
     }
 
     /**
-     * 安全关闭两个Socket
+     * 绑定客户端与目标的数据传输，并按用户与客户端 IP 应用限速
+     *
+     * @param pending 握手报文之后客户端已发送的数据，可以为空
+     * @param user    认证用户名，未认证为 null
      */
-    private static void closeBoth(Socket s1, Socket s2) {
-        try { if (s1 != null && !s1.isClosed()) s1.close(); } catch (IOException ignored) {}
-        try { if (s2 != null && !s2.isClosed()) s2.close(); } catch (IOException ignored) {}
+    public static void bindClientAndTarget(Socket clientSocket, Socket targetSocket, byte[] pending, String user) throws Exception {
+        RelaySession session = new RelaySession(clientSocket, targetSocket);
+        session.setUser(user);
+        session.setShaper(RateLimiter.forSession(user, clientSocket.getInetAddress()));
+        log.info("create connection ：{}", session.getSessionId());
+        SessionMonitor.register(session);
+        if (pending != null && pending.length > 0) {
+            try {
+                // 此时目标连接还是阻塞模式
+                targetSocket.getOutputStream().write(pending);
+            } catch (IOException e) {
+                session.close();
+                throw e;
+            }
+            session.recordUpstream(pending.length);
+        }
+        if (nioEngine && clientSocket.getChannel() != null && targetSocket.getChannel() != null) {
+            NioRelayEngine.register(session);
+            return;
+        }
+        createClientThread(session);
+        createTargetThread(session);
     }
 
-    public static void createClientThread(Socket clientSocket, Socket targetSocket, String sessionId) throws IOException {
-        executorService.execute(() -> {
+    public static void createClientThread(RelaySession session) throws IOException {
+        Socket clientSocket = session.getClientSocket();
+        Socket targetSocket = session.getTargetSocket();
+        String sessionId = session.getSessionId();
+        ProxyServerApplication.getExecutor().execute(() -> {
             try {
-                InputStream clientInput = clientSocket.getInputStream();
-                // 从客户端读取数据并发送到目标服务器
-                int defaultLen = 1024;
-                byte[] buffer = new byte[defaultLen];
-                int bytesRead;
-                while (!clientSocket.isClosed() && (bytesRead = clientInput.read(buffer)) != -1) {
-                    // 处理从客户端读取的数据，可以根据需要进行相应的操作
-                    processClientData(buffer, bytesRead, targetSocket);
+                if (clientSocket.getChannel() != null && targetSocket.getChannel() != null) {
+                    transfer(clientSocket.getChannel(), targetSocket.getChannel(), session, true);
+                    return;
+                }
+                InputStream clientInput = inputStream(clientSocket);
+                OutputStream targetOutput = outputStream(targetSocket);
+                // 从客户端读取数据并发送到目标服务器，缓冲区从缓冲区池借用并根据流量自动调整大小
+                AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.heap());
+                try {
+                    int bytesRead;
+                    while (!clientSocket.isClosed() && (bytesRead = clientInput.read(buffer.array(), 0, session.readLimit(buffer.array().length))) != -1) {
+                        // 处理从客户端读取的数据，可以根据需要进行相应的操作
+                        processClientData(buffer.array(), bytesRead, targetOutput);
+                        buffer.record(bytesRead);
+                        session.recordUpstream(bytesRead);
+                        // 超出限速时暂停读取客户端，由 TCP 流控让客户端减速
+                        RateLimiter.pause(session.upstreamDelay(bytesRead));
+                    }
+                } finally {
+                    buffer.release();
                 }
             } catch (SocketException e) {
                 if ("Connection reset".equals(e.getMessage())) {
                     // 处理Connection Reset状态
-                    System.out.println("Connection reset by peer:" + sessionId);
+                    log.debug("Connection reset by peer:{}", sessionId);
                 } else if ("Socket closed".equals(e.getMessage())) {
-                    System.out.println("Socket closed:" + sessionId);
+                    log.debug("Socket closed:{}", sessionId);
                 } else {
                     // 处理其他SocketException
-                    e.printStackTrace();
+                    log.error("relay error:{}", sessionId, e);
                 }
+            } catch (ClosedChannelException e) {
+                log.debug("Socket closed:{}", sessionId);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("relay error:{}", sessionId, e);
             } finally {
-                closeBoth(clientSocket, targetSocket);
+                session.close();
             }
         });
     }
 
-    private static void processClientData(byte[] data, int length, Socket targetSocket) throws Exception {
-        byte[] validData = BytesUtil.splitBytes(data, 0, length);
-        // System.out.println("=============================== client data: " + new String(validData));
-        // 处理从客户端读取的数据的逻辑
-        OutputStream targetOutput = targetSocket.getOutputStream();
-        targetOutput.write(validData);
+    private static void processClientData(byte[] data, int length, OutputStream targetOutput) throws Exception {
+        // 处理从客户端读取的数据的逻辑，直接写出缓冲区中的有效部分，不做拷贝
+        targetOutput.write(data, 0, length);
         // 这里可以根据需要进行相应的操作
         // 例如，将数据发送给目标服务器，进行加工处理，等等
     }
 
-    public static void createTargetThread(Socket clientSocket, Socket targetSocket, String sessionId) throws IOException {
-        executorService.execute(() -> {
+    public static void createTargetThread(RelaySession session) throws IOException {
+        Socket clientSocket = session.getClientSocket();
+        Socket targetSocket = session.getTargetSocket();
+        String sessionId = session.getSessionId();
+        ProxyServerApplication.getExecutor().execute(() -> {
             try {
-                InputStream targetInput = targetSocket.getInputStream();
-                // 从客户端读取数据并发送到目标服务器
-                int defaultLen = 1024;
-                byte[] buffer = new byte[defaultLen];
-                int bytesRead;
-                while (!targetSocket.isClosed() && (bytesRead = targetInput.read(buffer)) != -1) {
-                    //处理从目标端读取的数据，可以根据需要进行相应的操作
-                    processTargetData(buffer, bytesRead, clientSocket);
+                if (clientSocket.getChannel() != null && targetSocket.getChannel() != null) {
+                    transfer(targetSocket.getChannel(), clientSocket.getChannel(), session, false);
+                    return;
+                }
+                InputStream targetInput = inputStream(targetSocket);
+                OutputStream clientOutput = outputStream(clientSocket);
+                // 从目标服务器读取数据并发送到客户端，缓冲区从缓冲区池借用并根据流量自动调整大小
+                AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.heap());
+                try {
+                    int bytesRead;
+                    while (!targetSocket.isClosed() && (bytesRead = targetInput.read(buffer.array(), 0, session.readLimit(buffer.array().length))) != -1) {
+                        //处理从目标端读取的数据，可以根据需要进行相应的操作
+                        processTargetData(buffer.array(), bytesRead, clientSocket, clientOutput);
+                        buffer.record(bytesRead);
+                        session.recordDownstream(bytesRead);
+                        RateLimiter.pause(session.downstreamDelay(bytesRead));
+                    }
+                } finally {
+                    buffer.release();
                 }
             } catch (SocketException e) {
                 if ("Connection reset".equals(e.getMessage())) {
                     // 处理Connection Reset状态
-                    System.out.println("Connection reset by peer:" + sessionId);
+                    log.debug("Connection reset by peer:{}", sessionId);
                 } else if ("Socket closed".equals(e.getMessage())) {
-                    System.out.println("Socket closed:" + sessionId);
+                    log.debug("Socket closed:{}", sessionId);
                 } else {
                     // 处理其他SocketException
-                    e.printStackTrace();
+                    log.error("relay error:{}", sessionId, e);
                 }
+            } catch (ClosedChannelException e) {
+                log.debug("Socket closed:{}", sessionId);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("relay error:{}", sessionId, e);
             } finally {
-                closeBoth(clientSocket, targetSocket);
+                session.close();
             }
         });
     }
 
-    private static void processTargetData(byte[] data, int length, Socket clientSocket) throws Exception {
+    private static void processTargetData(byte[] data, int length, Socket clientSocket, OutputStream clientOutput) throws Exception {
         if (clientSocket.isClosed()) {
             return;
         }
-        byte[] validData = BytesUtil.splitBytes(data, 0, length);
-        // System.out.println("---------------------------- target response data: " + new String(validData));
-        // 处理从目标端读取的数据的逻辑
-        OutputStream clientOutput = clientSocket.getOutputStream();
-        clientOutput.write(validData);
+        // 处理从目标端读取的数据的逻辑，直接写出缓冲区中的有效部分，不做拷贝
+        clientOutput.write(data, 0, length);
         // 这里可以根据需要进行相应的操作
         // 例如，将数据发送给目标服务器，进行加工处理，等等
     }
 
-    private static void checkConnectStatus(Socket clientSocket, Socket targetSocket, String sessionId) {
-        executorService.execute(() -> {
+    /**
+     * 转发使用的输入流。只有一端是 SocketChannel 时（例如 TLS 客户端连接到 NIO 引擎建立的目标连接），
+     * 不能使用通道的 Socket 适配器流：JDK8 中适配器流与 Channels.newInputStream 的读写共用 blockingLock，
+     * 一个线程阻塞在读时另一个线程无法写，因此直接读写阻塞模式的通道，通道本身的读写锁是分开的。
+     */
+    static InputStream inputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return socket.getInputStream();
+        }
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * 转发使用的输出流
+     *
+     * @see #inputStream(Socket)
+     */
+    static OutputStream outputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return socket.getOutputStream();
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+
+    /**
+     * 两端都是 SocketChannel 时直接在通道间转发。
+     * proxy.buffer.direct=true 时使用堆外缓冲区，数据不经过 Java 堆；同时避免 JDK8 中 Socket 适配器流读写共用一把锁导致的全双工阻塞
+     */
+    private static void transfer(SocketChannel from, SocketChannel to, RelaySession session, boolean upstream) throws IOException {
+        AdaptiveBuffer adaptiveBuffer = new AdaptiveBuffer(BufferPool.channel());
+        try {
+            int bytesRead;
             while (true) {
-                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
-                try {
-                    clientSocket.sendUrgentData(0xFF);
-                } catch (IOException e) {
-                    System.out.println("-------------------------------- client close :" + sessionId);
-                    closeBoth(clientSocket, targetSocket);
-                    return;
+                ByteBuffer buffer = adaptiveBuffer.buffer();
+                buffer.limit(session.readLimit(buffer.capacity()));
+                if ((bytesRead = from.read(buffer)) == -1) {
+                    break;
                 }
-                try {
-                    targetSocket.sendUrgentData(0xFF);
-                } catch (IOException e) {
-                    System.out.println("================================= target close :" + sessionId);
-                    closeBoth(clientSocket, targetSocket);
-                    return;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    to.write(buffer);
+                }
+                buffer.clear();
+                adaptiveBuffer.record(bytesRead);
+                if (upstream) {
+                    session.recordUpstream(bytesRead);
+                    RateLimiter.pause(session.upstreamDelay(bytesRead));
+                } else {
+                    session.recordDownstream(bytesRead);
+                    RateLimiter.pause(session.downstreamDelay(bytesRead));
                 }
             }
-        });
+        } finally {
+            adaptiveBuffer.release();
+        }
     }
 
 }
@@ -0,0 +1,230 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接目标服务
+ * 所有连接都有超时时间；域名解析出多个地址时按 RFC 8305 (Happy Eyeballs v2) 交替地址族依次发起连接，
+ * 前一个连接在 attemptDelay 内没有结果就并行发起下一个，取最先成功的连接，其余连接关闭。
+ */
+public class Dialer {
+
+    private static volatile int connectTimeout = 10000;
+
+    private static volatile long attemptDelay = 250;
+
+    private static volatile boolean happyEyeballs = true;
+
+    /**
+     * proxy.connect.timeout 连接超时毫秒数
+     * proxy.connect.happyEyeballs 多个地址时是否并行竞速连接
+     * proxy.connect.attemptDelay 竞速时发起下一个连接前的等待毫秒数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        connectTimeout = Integer.parseInt(properties.getProperty("proxy.connect.timeout", "10000").trim());
+        happyEyeballs = Boolean.parseBoolean(properties.getProperty("proxy.connect.happyEyeballs", "true").trim());
+        attemptDelay = Long.parseLong(properties.getProperty("proxy.connect.attemptDelay", "250").trim());
+    }
+
+    public static int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * 连接目标服务，域名通过 DnsResolver 解析
+     *
+     * @param host 域名或IP
+     * @param port 端口
+     * @return 已连接的 Socket，NIO 引擎下为 SocketChannel 对应的 Socket
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        long startNanos = System.nanoTime();
+        InetAddress[] addresses;
+        try {
+            addresses = DnsResolver.resolve(host);
+        } catch (IOException e) {
+            MetricsService.recordConnect(startNanos, false);
+            throw e;
+        }
+        return connect(addresses, port, startNanos);
+    }
+
+    /**
+     * 连接已解析的地址，不再发起 DNS 查询，多个地址时与域名目标一样排序并竞速
+     *
+     * @param addresses 目标的全部地址，不能为空
+     * @param port      端口
+     */
+    public static Socket connect(InetAddress[] addresses, int port) throws IOException {
+        return connect(addresses, port, System.nanoTime());
+    }
+
+    private static Socket connect(InetAddress[] resolved, int port, long startNanos) throws IOException {
+        try {
+            InetAddress[] addresses = sortAddresses(resolved);
+            Socket socket = addresses.length == 1 || !happyEyeballs ? connectSequentially(addresses, port) : race(addresses, port);
+            MetricsService.recordConnect(startNanos, true);
+            return socket;
+        } catch (IOException e) {
+            MetricsService.recordConnect(startNanos, false);
+            throw e;
+        }
+    }
+
+    /**
+     * 连接指定地址
+     */
+    public static Socket connect(InetAddress address, int port) throws IOException {
+        return connect(address, port, connectTimeout);
+    }
+
+    private static Socket connect(InetAddress address, int port, int timeout) throws IOException {
+        Socket socket = newSocket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeout);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static Socket newSocket() throws IOException {
+        if (DataTransHandler.isNioEngine()) {
+            return SocketChannel.open().socket();
+        }
+        return new Socket();
+    }
+
+    private static Socket connectSequentially(InetAddress[] addresses, int port) throws IOException {
+        long deadline = System.currentTimeMillis() + connectTimeout;
+        IOException lastError = null;
+        for (InetAddress address : addresses) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                return connect(address, port, (int) remaining);
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError != null ? lastError : new SocketTimeoutException("connect timed out");
+    }
+
+    /**
+     * 并行竞速连接多个地址，返回最先成功的连接
+     */
+    private static Socket race(InetAddress[] addresses, int port) throws IOException {
+        BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        List<Socket> attempts = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + connectTimeout;
+        int started = 0;
+        int finished = 0;
+        IOException lastError = null;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("connect timed out");
+                }
+                if (started < addresses.length) {
+                    InetSocketAddress address = new InetSocketAddress(addresses[started++], port);
+                    Socket socket = newSocket();
+                    attempts.add(socket);
+                    int timeout = (int) remaining;
+                    try {
+                        ProxyServerApplication.getExecutor().execute(() -> {
+                            try {
+                                socket.connect(address, timeout);
+                                results.add(socket);
+                            } catch (IOException e) {
+                                results.add(e);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        results.add(new IOException("connect attempt rejected", e));
+                    }
+                }
+                long wait = started < addresses.length ? Math.min(attemptDelay, remaining) : remaining;
+                Object result = results.poll(wait, TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    // 在等待时间内没有结果，继续发起下一个地址的连接
+                    continue;
+                }
+                if (result instanceof Socket) {
+                    Socket winner = (Socket) result;
+                    attempts.remove(winner);
+                    return winner;
+                }
+                lastError = (IOException) result;
+                if (++finished == addresses.length) {
+                    throw lastError;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("connect interrupted", e);
+        } finally {
+            // 关闭未胜出的连接，正在连接中的会因此立即失败
+            for (Socket attempt : attempts) {
+                closeQuietly(attempt);
+            }
+        }
+    }
+
+    /**
+     * RFC 8305 地址排序：以解析结果中第一个地址的地址族开始，IPv6 与 IPv4 交替
+     */
+    static InetAddress[] sortAddresses(InetAddress[] addresses) {
+        if (addresses.length <= 1) {
+            return addresses;
+        }
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        InetAddress[] sorted = new InetAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                sorted[index++] = first.get(i);
+            }
+            if (i < second.size()) {
+                sorted[index++] = second.get(i);
+            }
+        }
+        return sorted;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
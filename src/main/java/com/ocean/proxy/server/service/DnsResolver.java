@@ -0,0 +1,257 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.util.IpUtil;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 域名解析服务
+ * 解析在独立的解析线程中执行，结果按 TTL 缓存（解析失败也缓存 negativeTtl 秒），
+ * 缓存大小有上限，按 LRU 淘汰；同一域名同时只会发起一次解析，其余请求等待同一个结果。
+ * JDK 的解析接口拿不到记录本身的 TTL，因此缓存时间由配置决定。
+ */
+public class DnsResolver {
+
+    private static volatile long ttlMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private static volatile long negativeTtlMillis = TimeUnit.SECONDS.toMillis(10);
+
+    private static volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(5);
+
+    private static volatile LruCache cache = new LruCache(10000);
+
+    private static volatile ExecutorService resolverExecutor = newResolverExecutor(8);
+
+    private static final Map<String, CompletableFuture<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+
+    private static final LongAdder hitCount = new LongAdder();
+
+    private static final LongAdder negativeHitCount = new LongAdder();
+
+    private static final LongAdder missCount = new LongAdder();
+
+    private static final LongAdder coalescedCount = new LongAdder();
+
+    private static final LongAdder failureCount = new LongAdder();
+
+    private static final LongAdder lookupNanos = new LongAdder();
+
+    private static final AtomicLong maxLookupNanos = new AtomicLong();
+
+    /**
+     * proxy.dns.cacheSize 最多缓存的域名数
+     * proxy.dns.ttl 解析成功的缓存秒数，proxy.dns.negativeTtl 解析失败的缓存秒数
+     * proxy.dns.timeout 等待解析结果的超时毫秒数，proxy.dns.threads 解析线程数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        ttlMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.dns.ttl", "60").trim()));
+        negativeTtlMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.dns.negativeTtl", "10").trim()));
+        timeoutMillis = Long.parseLong(properties.getProperty("proxy.dns.timeout", "5000").trim());
+        cache = new LruCache(Integer.parseInt(properties.getProperty("proxy.dns.cacheSize", "10000").trim()));
+        ExecutorService old = resolverExecutor;
+        resolverExecutor = newResolverExecutor(Integer.parseInt(properties.getProperty("proxy.dns.threads", "8").trim()));
+        old.shutdown();
+    }
+
+    private static ExecutorService newResolverExecutor(int threads) {
+        AtomicInteger index = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "dns-resolver-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 解析域名，阻塞等待结果
+     *
+     * @param host 域名或IP
+     * @return 解析得到的全部地址
+     * @throws UnknownHostException 解析失败或超时
+     */
+    public static InetAddress[] resolve(String host) throws UnknownHostException {
+        CompletableFuture<InetAddress[]> future = resolveAsync(host);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new UnknownHostException("dns timeout: " + host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            UnknownHostException exception = new UnknownHostException(host);
+            exception.initCause(e.getCause());
+            throw exception;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("dns interrupted: " + host);
+        }
+    }
+
+    /**
+     * 异步解析域名。IP 字面量直接返回；命中缓存直接返回；否则复用正在进行的解析或发起新的解析
+     *
+     * @param host 域名或IP
+     */
+    public static CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        InetAddress literal = IpUtil.parseLiteral(host);
+        if (literal != null || IpUtil.looksLikeIp(host)) {
+            // IP 字面量不会发起 DNS 查询；2130706433、01.1.1.1 这类不合法的写法直接失败，不交给 JDK 按旧式写法解释
+            CompletableFuture<InetAddress[]> future = new CompletableFuture<>();
+            if (literal != null) {
+                future.complete(new InetAddress[]{literal});
+            } else {
+                future.completeExceptionally(new UnknownHostException("invalid ip address: " + host));
+            }
+            return future;
+        }
+        String key = host.toLowerCase();
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.expireAt > System.currentTimeMillis()) {
+            CompletableFuture<InetAddress[]> future = new CompletableFuture<>();
+            if (entry.addresses != null) {
+                hitCount.increment();
+                future.complete(entry.addresses);
+            } else {
+                negativeHitCount.increment();
+                future.completeExceptionally(new UnknownHostException(host));
+            }
+            return future;
+        }
+        CompletableFuture<InetAddress[]> future = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCount.increment();
+            return existing;
+        }
+        missCount.increment();
+        try {
+            resolverExecutor.execute(() -> lookup(key, future));
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void lookup(String host, CompletableFuture<InetAddress[]> future) {
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            cache.put(host, new CacheEntry(addresses, System.currentTimeMillis() + ttlMillis));
+            inFlight.remove(host, future);
+            future.complete(addresses);
+        } catch (Exception e) {
+            failureCount.increment();
+            cache.put(host, new CacheEntry(null, System.currentTimeMillis() + negativeTtlMillis));
+            inFlight.remove(host, future);
+            future.completeExceptionally(e);
+        } finally {
+            long cost = System.nanoTime() - start;
+            lookupNanos.add(cost);
+            maxLookupNanos.accumulateAndGet(cost, Math::max);
+        }
+    }
+
+    public static long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public static long getNegativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    public static long getMissCount() {
+        return missCount.sum();
+    }
+
+    public static long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public static long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    public static int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * 实际发起的解析的平均耗时，毫秒
+     */
+    public static double getAverageLookupMillis() {
+        long misses = missCount.sum();
+        return misses == 0 ? 0 : lookupNanos.sum() / 1e6 / misses;
+    }
+
+    public static double getMaxLookupMillis() {
+        return maxLookupNanos.get() / 1e6;
+    }
+
+    public static String stats() {
+        return String.format("dns cache size=%d hit=%d negativeHit=%d miss=%d coalesced=%d failure=%d avgLookup=%.2fms maxLookup=%.2fms",
+                getCacheSize(), getHitCount(), getNegativeHitCount(), getMissCount(), getCoalescedCount(), getFailureCount(),
+                getAverageLookupMillis(), getMaxLookupMillis());
+    }
+
+    private static class CacheEntry {
+
+        // 为 null 表示解析失败的缓存
+        final InetAddress[] addresses;
+
+        final long expireAt;
+
+        CacheEntry(InetAddress[] addresses, long expireAt) {
+            this.addresses = addresses;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 按访问顺序淘汰的定长缓存
+     */
+    private static class LruCache {
+
+        private final Map<String, CacheEntry> map;
+
+        LruCache(int maxSize) {
+            this.map = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized CacheEntry get(String host) {
+            return map.get(host);
+        }
+
+        synchronized void put(String host, CacheEntry entry) {
+            map.put(host, entry);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
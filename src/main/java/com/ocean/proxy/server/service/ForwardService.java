@@ -2,15 +2,13 @@ package com.ocean.proxy.server.service;
 
 import org.apache.commons.lang3.StringUtils;
 
-import java.net.ServerSocket;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import com.ocean.proxy.server.ProxyServerApplication;
+import java.util.concurrent.ConcurrentSkipListMap;
+import com.ocean.proxy.server.log.Logger;
 
 /**
  * Description:
@@ -20,31 +18,73 @@ import com.ocean.proxy.server.ProxyServerApplication;
  */
 public class ForwardService {
 
-    // 使用全局线程池
-    private static final ThreadPoolExecutor executorService = ProxyServerApplication.GLOBAL_EXECUTOR;
+    private static final Logger log = Logger.get("forward");
 
+    // 各转发端口的上游连接池，按监听端口排序，供监控接口读取
+    private static final Map<Integer, UpstreamPool> POOLS = new ConcurrentSkipListMap<>();
+
+    /**
+     * 启动端口转发，forward.portList 中每项为 监听端口 或 监听端口:目标端口，只写监听端口时目标端口相同
+     * forward.pool.enable=true 时为每个端口维护预建的上游连接池
+     * forward.pool.minIdle / forward.pool.maxSize 空闲连接数下限与上限
+     * forward.pool.maxIdleTime 连接最大空闲秒数，forward.pool.checkInterval 空闲连接检查间隔秒数
+     * forward.mux.enable=true 时客户端连接作为流经过 MuxTunnel 的长连接转发，不使用连接池
+     *
+     * @param properties 配置
+     */
     public static void startForwardServer(Properties properties){
         String targetAddress = properties.getProperty("forward.address");
         String portList = properties.getProperty("forward.portList");
         if (StringUtils.isAnyEmpty(targetAddress, portList)) {
             return;
         }
+        boolean poolEnable = Boolean.parseBoolean(properties.getProperty("forward.pool.enable", "false").trim());
+        int minIdle = Integer.parseInt(properties.getProperty("forward.pool.minIdle", "4").trim());
+        int maxSize = Integer.parseInt(properties.getProperty("forward.pool.maxSize", "32").trim());
+        long maxIdleTime = Long.parseLong(properties.getProperty("forward.pool.maxIdleTime", "30").trim());
+        long checkInterval = Long.parseLong(properties.getProperty("forward.pool.checkInterval", "5").trim());
         String[] portArray = portList.split(",");
         for (String portStr : portArray) {
-            int port = Integer.parseInt(portStr);
-            executorService.execute(() -> {
-                try (ServerSocket serverSocket = new ServerSocket(port)) {
-                    System.out.println("Forward Server is running on port " + port + ".");
-                    while (true) {
-                        // 等待客户端连接
-                        Socket clientSocket = serverSocket.accept();
-                        Socket targetSocket = new Socket(targetAddress, port);
-                        DataTransHandler.bindClientAndTarget(clientSocket, targetSocket);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+            String[] pair = portStr.split(":");
+            int port = Integer.parseInt(pair[0].trim());
+            int targetPort = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : port;
+            UpstreamPool pool = poolEnable && !MuxTunnel.isEnabled() ? new UpstreamPool(targetAddress, targetPort, minIdle, maxSize, maxIdleTime, checkInterval) : null;
+            try {
+                // 连接上游放到工作线程中，接收线程立即处理下一个连接
+                AcceptorGroup.start("forward-" + port, port, 1, 0, false,
+                        clientSocket -> AdmissionControl.submit(clientSocket, () -> forward(clientSocket, targetAddress, targetPort, pool)));
+                if (pool != null) {
+                    POOLS.put(port, pool);
                 }
-            });
+                log.info("Forward Server is running on port {}.", port);
+            } catch (IOException e) {
+                log.error("start forward server failed on port {}", port, e);
+            }
+        }
+    }
+
+    /**
+     * 已启用连接池的转发端口及其连接池，键为监听端口
+     */
+    public static Map<Integer, UpstreamPool> pools() {
+        return Collections.unmodifiableMap(POOLS);
+    }
+
+    private static void forward(Socket clientSocket, String targetAddress, int port, UpstreamPool pool) {
+        try {
+            if (MuxTunnel.isEnabled()) {
+                MuxTunnel.open(clientSocket, port);
+                return;
+            }
+            Socket targetSocket = pool != null ? pool.borrow() : Dialer.connect(targetAddress, port);
+            DataTransHandler.bindClientAndTarget(clientSocket, targetSocket);
+        } catch (Exception e) {
+            log.error("forward failed {}:{}", targetAddress, port, e);
+            try {
+                clientSocket.close();
+            } catch (IOException ioException) {
+                log.error("close client failed", ioException);
+            }
         }
     }
 }
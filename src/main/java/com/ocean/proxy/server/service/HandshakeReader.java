@@ -0,0 +1,158 @@
+package com.ocean.proxy.server.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 握手阶段的阻塞读取
+ * 每次把当前可读的数据一次读入缓冲区，再交给 SocksCodec 增量解析，报文不完整时才继续读取，
+ * 因此一个完整的握手报文通常只需要一次读系统调用，也不会因为短读取而错位。
+ * 握手结束后缓冲区中剩余的数据（客户端紧跟请求发送的数据）通过 remaining 取出转发给目标。
+ */
+public class HandshakeReader {
+
+    private static final int INITIAL_SIZE = 512;
+
+    // SOCKS4a 的 USERID 与域名没有长度上限，握手报文超过该长度视为异常
+    private static final int MAX_SIZE = 8192;
+
+    private int maxSize = MAX_SIZE;
+
+    private final Socket socket;
+
+    private final SocketChannel channel;
+
+    private final InputStream input;
+
+    private final OutputStream output;
+
+    // 读模式：position 到 limit 之间为未解析的数据
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+
+    public HandshakeReader(Socket socket) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        this.input = channel == null ? socket.getInputStream() : null;
+        this.output = socket.getOutputStream();
+        buffer.flip();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * 修改单个报文的长度上限，HTTP 请求头通常比 SOCKS 握手报文大
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 查看第一个未解析的字节，不消费
+     */
+    public int peek() throws IOException {
+        while (!buffer.hasRemaining()) {
+            fill();
+        }
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    /**
+     * 读取一个完整报文
+     *
+     * @param decoder SocksCodec 中的解析方法
+     */
+    public <T> T read(Decoder<T> decoder) throws IOException {
+        while (true) {
+            int position = buffer.position();
+            T result = decoder.decode(buffer);
+            if (result != null) {
+                return result;
+            }
+            buffer.position(position);
+            fill();
+        }
+    }
+
+    /**
+     * 一次写出完整的响应
+     */
+    public void write(byte[] reply) throws IOException {
+        output.write(reply);
+    }
+
+    /**
+     * 读取报文之后的数据（例如 HTTP 消息体），先取缓冲区中已读入的部分，缓冲区为空时才读取连接
+     *
+     * @return 读取的字节数，连接已关闭时返回 -1
+     */
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (!buffer.hasRemaining() && fillOnce() < 0) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    /**
+     * 缓冲区中是否还有未解析的数据
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * 取出已读入但还没有解析的数据
+     */
+    public byte[] remaining() {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void fill() throws IOException {
+        if (fillOnce() < 0) {
+            throw new EOFException("client closed during handshake");
+        }
+    }
+
+    private int fillOnce() throws IOException {
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            if (buffer.capacity() >= maxSize) {
+                throw new ProtocolException("handshake message too large");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxSize));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        int read;
+        if (channel != null) {
+            read = channel.read(buffer);
+        } else {
+            read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+        }
+        buffer.flip();
+        return read;
+    }
+
+    /**
+     * 增量解析方法，数据不足时返回 null
+     */
+    public interface Decoder<T> {
+
+        T decode(ByteBuffer buffer) throws ProtocolException;
+    }
+}
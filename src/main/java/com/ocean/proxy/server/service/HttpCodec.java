@@ -0,0 +1,358 @@
+package com.ocean.proxy.server.service;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP/1.x 报文头的增量解析与编码
+ * 与 SocksCodec 一样：数据不足时返回 null 且不移动位置，报文头完整时返回结果并把位置移到空行之后，
+ * 消息体不在这里解析，由调用方按 Content-Length 或 chunked 从同一个 HandshakeReader 继续读取。
+ */
+public class HttpCodec {
+
+    /**
+     * 消息体使用 chunked 编码
+     */
+    public static final long CHUNKED = -2;
+
+    /**
+     * 消息体没有长度，读到连接关闭为止
+     */
+    public static final long UNTIL_CLOSE = -1;
+
+    /**
+     * 请求行或状态行以及全部首部  start-line CRLF *( header-field CRLF ) CRLF
+     */
+    public static HttpHead decodeHead(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int end = indexOfBlankLine(buffer, start);
+        if (end < 0) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                lines.add(string(buffer, lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+        buffer.position(end);
+        // 请求之前允许有空行（RFC 7230 3.5）
+        while (!lines.isEmpty() && lines.get(0).isEmpty()) {
+            lines.remove(0);
+        }
+        if (lines.isEmpty()) {
+            throw new ProtocolException("empty http message");
+        }
+        String[] startLine = lines.get(0).split(" ", 3);
+        if (startLine.length < 2) {
+            throw new ProtocolException("invalid http start line: " + lines.get(0));
+        }
+        HttpHead head = new HttpHead(startLine[0], startLine[1], startLine.length > 2 ? startLine[2] : "");
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isEmpty()) {
+                // 结束报文头的空行
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("invalid http header: " + line);
+            }
+            // 首部名与冒号之间不允许有空白（RFC 7230 3.2.4），否则各跳对首部名的理解可能不同
+            char beforeColon = line.charAt(colon - 1);
+            if (beforeColon == ' ' || beforeColon == '\t') {
+                throw new ProtocolException("whitespace before colon in http header: " + line);
+            }
+            head.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        return head;
+    }
+
+    /**
+     * 请求消息体的长度（RFC 7230 3.3.3）
+     * 同时有 Transfer-Encoding 与 Content-Length、最后一个编码不是 chunked、Content-Length 重复或不是数字时
+     * 无法确定请求的边界，前后两跳可能把同一段数据拆成不同的请求，直接拒绝
+     *
+     * @return 字节数，chunked 编码时返回 CHUNKED
+     */
+    public static long requestLength(HttpHead request) throws ProtocolException {
+        if (request.get("Transfer-Encoding") != null) {
+            if (request.get("Content-Length") != null) {
+                throw new ProtocolException("both transfer-encoding and content-length present");
+            }
+            if (!isChunked(request)) {
+                throw new ProtocolException("unsupported transfer-encoding: " + request.getAll("Transfer-Encoding"));
+            }
+            return CHUNKED;
+        }
+        long length = contentLength(request);
+        return length < 0 ? 0 : length;
+    }
+
+    /**
+     * 响应消息体的长度，HEAD 请求以及 1xx、204、304 这些没有消息体的响应由调用方处理
+     * 有 Transfer-Encoding 时忽略并删除 Content-Length，最后一个编码不是 chunked 时读到连接关闭为止
+     *
+     * @return 字节数，chunked 编码时返回 CHUNKED，读到连接关闭为止时返回 UNTIL_CLOSE
+     */
+    public static long responseLength(HttpHead response) throws ProtocolException {
+        if (response.get("Transfer-Encoding") != null) {
+            response.remove("Content-Length");
+            return isChunked(response) ? CHUNKED : UNTIL_CLOSE;
+        }
+        return contentLength(response);
+    }
+
+    /**
+     * 唯一的 Content-Length，只能是十进制数字；出现多个值（多个首部或逗号分隔）时报错
+     *
+     * @return 没有 Content-Length 时返回 UNTIL_CLOSE
+     */
+    private static long contentLength(HttpHead head) throws ProtocolException {
+        List<String> values = head.getAll("Content-Length");
+        if (values.isEmpty()) {
+            return UNTIL_CLOSE;
+        }
+        if (values.size() > 1 || values.get(0).indexOf(',') >= 0) {
+            throw new ProtocolException("duplicate content-length: " + values);
+        }
+        String value = values.get(0).trim();
+        if (value.isEmpty() || value.length() > 18) {
+            throw new ProtocolException("invalid content-length: " + value);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                throw new ProtocolException("invalid content-length: " + value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * 最后一个传输编码是 chunked，且 chunked 只出现一次
+     */
+    private static boolean isChunked(HttpHead head) {
+        List<String> codings = new ArrayList<>();
+        for (String value : head.getAll("Transfer-Encoding")) {
+            for (String coding : value.split(",")) {
+                if (!coding.trim().isEmpty()) {
+                    codings.add(coding.trim());
+                }
+            }
+        }
+        int chunked = 0;
+        for (String coding : codings) {
+            if (coding.equalsIgnoreCase("chunked")) {
+                chunked++;
+            }
+        }
+        return chunked == 1 && codings.get(codings.size() - 1).equalsIgnoreCase("chunked");
+    }
+
+    /**
+     * 一行，用于 chunked 消息体的块大小行与 trailer
+     *
+     * @return 去掉行尾 CRLF 的内容
+     */
+    public static String decodeLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                buffer.position(i + 1);
+                return string(buffer, start, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 代理自己生成的简单响应
+     */
+    public static byte[] response(int status, String reason, String... headers) {
+        StringBuilder out = new StringBuilder(128);
+        out.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            out.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+        }
+        return out.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 空行之后的位置，没有完整的报文头时返回 -1；兼容只用 LF 换行的实现
+     */
+    private static int indexOfBlankLine(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n' || i == from) {
+                continue;
+            }
+            if (buffer.get(i - 1) == '\n') {
+                return i + 1;
+            }
+            if (buffer.get(i - 1) == '\r' && i - 2 >= from && buffer.get(i - 2) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 去掉行尾 CR 的一行文本，报文头按 ISO-8859-1 解码
+     */
+    private static String string(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 报文头，请求与响应共用：请求行为 方法 目标 版本，状态行为 版本 状态码 原因短语
+     */
+    public static class HttpHead {
+
+        private final String[] startLine;
+
+        private final List<String> names = new ArrayList<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        public HttpHead(String first, String second, String third) {
+            this.startLine = new String[]{first, second, third};
+        }
+
+        public String method() {
+            return startLine[0];
+        }
+
+        public String target() {
+            return startLine[1];
+        }
+
+        public String requestVersion() {
+            return startLine[2];
+        }
+
+        public String responseVersion() {
+            return startLine[0];
+        }
+
+        public int status() throws ProtocolException {
+            try {
+                return Integer.parseInt(startLine[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("invalid http status: " + startLine[1]);
+            }
+        }
+
+        public void setStartLine(String first, String second, String third) {
+            startLine[0] = first;
+            startLine[1] = second;
+            startLine[2] = third;
+        }
+
+        public void add(String name, String value) {
+            names.add(name);
+            values.add(value);
+        }
+
+        /**
+         * 第一个同名首部的值，不区分大小写，没有时返回 null
+         */
+        public String get(String name) {
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    return values.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 全部同名首部的值，不区分大小写
+         */
+        public List<String> getAll(String name) {
+            List<String> all = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    all.add(values.get(i));
+                }
+            }
+            return all;
+        }
+
+        public void remove(String name) {
+            for (int i = names.size() - 1; i >= 0; i--) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    names.remove(i);
+                    values.remove(i);
+                }
+            }
+        }
+
+        /**
+         * 逗号分隔的首部（例如 Connection、Transfer-Encoding）中是否包含某个值，不区分大小写
+         */
+        public boolean hasToken(String name, String token) {
+            for (int i = 0; i < names.size(); i++) {
+                if (!names.get(i).equalsIgnoreCase(name)) {
+                    continue;
+                }
+                for (String value : values.get(i).split(",")) {
+                    if (value.trim().equalsIgnoreCase(token)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 删除逐跳首部：Connection 以及 Connection 中列出的首部，它们只对当前这一跳有效
+         * 决定报文边界与目标的 Content-Length、Transfer-Encoding、Host 即使被列出也保留，
+         * 否则下一跳会按另一种方式拆分同一个连接上的报文
+         */
+        public void removeHopByHop() {
+            List<String> listed = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase("Connection") || names.get(i).equalsIgnoreCase("Proxy-Connection")) {
+                    for (String value : values.get(i).split(",")) {
+                        String name = value.trim();
+                        if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Transfer-Encoding")
+                                && !name.equalsIgnoreCase("Host")) {
+                            listed.add(name);
+                        }
+                    }
+                }
+            }
+            for (String name : listed) {
+                remove(name);
+            }
+            for (String name : new String[]{"Connection", "Proxy-Connection", "Keep-Alive", "Proxy-Authorization",
+                    "Proxy-Authenticate", "TE", "Trailer", "Upgrade"}) {
+                remove(name);
+            }
+        }
+
+        public byte[] encode() {
+            StringBuilder out = new StringBuilder(256);
+            out.append(startLine[0]).append(' ').append(startLine[1]);
+            if (!startLine[2].isEmpty()) {
+                out.append(' ').append(startLine[2]);
+            }
+            out.append("\r\n");
+            for (int i = 0; i < names.size(); i++) {
+                out.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+            }
+            return out.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,840 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.HttpCodec.HttpHead;
+import com.ocean.proxy.server.util.HashedWheelTimer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP 代理协议的服务实现，与 SOCKS 共用同一个监听端口
+ * 第一个字节是大写字母（请求方法）时按 HTTP 处理，SOCKS 握手的第一个字节为 0x04/0x05，不会冲突。
+ * CONNECT host:port 建立隧道后与 SOCKS CONNECT 一样交给 DataTransHandler 转发；
+ * 绝对地址形式的普通请求（GET http://host/path HTTP/1.1）由当前线程逐个转发，客户端连接保持长连接，
+ * 逐跳首部在转发前删除，消息体按 Content-Length 或 chunked 边读边写，不整体缓存。
+ * 到目标的连接在响应完整读完后按 路由/主机/端口 放回空闲连接池，之后的请求（包括其他客户端的请求）直接复用；
+ * 空闲连接可能已被目标关闭，因此只有可以安全重试的请求（幂等方法且没有消息体）才使用空闲连接，
+ * 在收到任何响应之前失败时换一个新连接重试一次。
+ * 认证开启时要求 Proxy-Authorization: Basic，访问控制、路由规则与限速和 SOCKS 相同。
+ */
+public class HttpProxyServer {
+
+    private static final Logger log = Logger.get("http");
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    private static volatile boolean enabled = true;
+
+    private static volatile int maxHeaderSize = 65536;
+
+    private static volatile long keepAliveTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private static volatile long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(600);
+
+    private static volatile int poolMaxIdle = 8;
+
+    private static volatile long poolIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private static volatile boolean stopping;
+
+    private static boolean sweeping;
+
+    // 路由/主机:端口 -> 空闲的目标连接，后进先出，最近用过的连接最可能还有效
+    private static final Map<String, Deque<Upstream>> IDLE_UPSTREAMS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger idleUpstreamCount = new AtomicInteger();
+
+    // 正在等待下一个请求的客户端连接，停机时直接关闭
+    private static final Set<ClientConnection> IDLE_CLIENTS = ConcurrentHashMap.newKeySet();
+
+    private static final LongAdder requestCount = new LongAdder();
+
+    private static final LongAdder failureCount = new LongAdder();
+
+    private static final LongAdder upstreamReuseCount = new LongAdder();
+
+    private static final LongAdder upstreamConnectCount = new LongAdder();
+
+    /**
+     * proxy.http.enable 是否在 SOCKS 端口上同时接受 HTTP 代理请求
+     * proxy.http.maxHeaderSize 请求头与响应头的最大字节数
+     * proxy.http.keepAliveTimeout 客户端长连接两个请求之间的最长空闲秒数
+     * proxy.http.idleTimeout 请求转发过程中两端都没有数据的最长秒数
+     * proxy.http.pool.maxIdlePerHost 每个目标最多保留的空闲连接数，0 表示不复用
+     * proxy.http.pool.idleTimeout 空闲连接最长保留秒数
+     *
+     * @param properties 配置
+     */
+    public static synchronized void init(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty("proxy.http.enable", "true").trim());
+        maxHeaderSize = Integer.parseInt(properties.getProperty("proxy.http.maxHeaderSize", "65536").trim());
+        keepAliveTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.http.keepAliveTimeout", "60").trim()));
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.http.idleTimeout", "600").trim()));
+        poolMaxIdle = Integer.parseInt(properties.getProperty("proxy.http.pool.maxIdlePerHost", "8").trim());
+        poolIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.http.pool.idleTimeout", "60").trim()));
+        if (enabled && poolMaxIdle > 0 && !sweeping) {
+            sweeping = true;
+            scheduleSweep();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 根据客户端发送的第一个字节判断是否为 HTTP 请求
+     */
+    public static boolean accepts(int firstByte) {
+        return enabled && firstByte >= 'A' && firstByte <= 'Z';
+    }
+
+    /**
+     * 处理 HTTP 客户端，请求方法还在 reader 中未被消费
+     * 普通请求在当前线程内循环处理到客户端关闭长连接为止；CONNECT 成功后连接交给转发会话
+     *
+     * @param reader 客户端的握手读取器
+     * @param auth   是否要求用户名密码认证
+     */
+    public static void handleClient(HandshakeReader reader, boolean auth) {
+        reader.setMaxSize(maxHeaderSize);
+        ClientConnection connection = new ClientConnection(reader, auth);
+        try {
+            connection.serve();
+        } catch (Exception e) {
+            if (reader.getSocket().isClosed()) {
+                log.debug("http connection closed {}", e.toString());
+            } else {
+                log.error("http proxy failed", e);
+            }
+        } finally {
+            connection.finish();
+        }
+    }
+
+    /**
+     * 停机时调用：关闭正在等待下一个请求的客户端连接与全部空闲的目标连接，正在转发的请求完成后关闭
+     */
+    public static void shutdown() {
+        stopping = true;
+        for (ClientConnection connection : IDLE_CLIENTS) {
+            connection.closeSockets();
+        }
+        for (Deque<Upstream> idle : IDLE_UPSTREAMS.values()) {
+            Upstream upstream;
+            while ((upstream = idle.pollFirst()) != null) {
+                idleUpstreamCount.decrementAndGet();
+                upstream.close();
+            }
+        }
+    }
+
+    /**
+     * 普通请求数
+     */
+    public static long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * 由代理直接返回错误响应的普通请求数
+     */
+    public static long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    public static long getUpstreamReuseCount() {
+        return upstreamReuseCount.sum();
+    }
+
+    public static long getUpstreamConnectCount() {
+        return upstreamConnectCount.sum();
+    }
+
+    public static int getIdleUpstreamCount() {
+        return idleUpstreamCount.get();
+    }
+
+    /**
+     * 解析 host:port，IPv6 地址带方括号
+     *
+     * @return 未解析的地址，格式错误时返回 null
+     */
+    static InetSocketAddress parseAuthority(String authority, int defaultPort) {
+        String host;
+        String portText = null;
+        if (authority.startsWith("[")) {
+            int end = authority.indexOf(']');
+            if (end < 0) {
+                return null;
+            }
+            host = authority.substring(1, end);
+            if (end + 1 < authority.length()) {
+                if (authority.charAt(end + 1) != ':') {
+                    return null;
+                }
+                portText = authority.substring(end + 2);
+            }
+        } else {
+            int colon = authority.indexOf(':');
+            if (colon >= 0 && authority.lastIndexOf(':') == colon) {
+                host = authority.substring(0, colon);
+                portText = authority.substring(colon + 1);
+            } else {
+                host = authority;
+            }
+        }
+        int port = defaultPort;
+        if (portText != null && !portText.isEmpty()) {
+            try {
+                port = Integer.parseInt(portText);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (host.isEmpty() || port <= 0 || port > 65535) {
+            return null;
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * 校验 Proxy-Authorization: Basic base64(用户名:密码)
+     *
+     * @return 认证通过的用户名，没有或校验失败时返回 null
+     */
+    private static String authenticate(HttpHead request) {
+        String header = request.get("Proxy-Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = credentials.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        String username = credentials.substring(0, colon);
+        return AuthService.checkAuth(username, credentials.substring(colon + 1)) ? username : null;
+    }
+
+    /**
+     * 取一个空闲的目标连接，丢弃已关闭或空闲过久的连接
+     */
+    private static Upstream poll(String key) {
+        Deque<Upstream> idle = IDLE_UPSTREAMS.get(key);
+        if (idle == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Upstream upstream;
+        while ((upstream = idle.pollFirst()) != null) {
+            idleUpstreamCount.decrementAndGet();
+            if (!upstream.socket.isClosed() && now - upstream.idleSince < poolIdleTimeoutMillis) {
+                return upstream;
+            }
+            upstream.close();
+        }
+        return null;
+    }
+
+    /**
+     * 响应完整读完后归还目标连接，不可复用或空闲连接已满时关闭
+     */
+    private static void release(Upstream upstream, boolean reusable) {
+        int max = poolMaxIdle;
+        if (!reusable || max <= 0 || stopping) {
+            upstream.close();
+            return;
+        }
+        boolean[] added = new boolean[1];
+        upstream.idleSince = System.currentTimeMillis();
+        // 与清理任务删除空队列互斥，避免连接放入已被删除的队列
+        IDLE_UPSTREAMS.compute(upstream.key, (key, idle) -> {
+            if (idle == null) {
+                idle = new ConcurrentLinkedDeque<>();
+            }
+            if (idle.size() < max) {
+                idle.offerFirst(upstream);
+                idleUpstreamCount.incrementAndGet();
+                added[0] = true;
+            }
+            return idle;
+        });
+        if (!added[0]) {
+            upstream.close();
+        }
+    }
+
+    /**
+     * 定期关闭空闲过久的目标连接，目标通常也会在自己的超时后关闭它们
+     */
+    private static void scheduleSweep() {
+        SessionMonitor.timer().newTimeout(() -> {
+            long now = System.currentTimeMillis();
+            for (String key : IDLE_UPSTREAMS.keySet()) {
+                IDLE_UPSTREAMS.computeIfPresent(key, (k, idle) -> {
+                    idle.removeIf(upstream -> {
+                        if (now - upstream.idleSince < poolIdleTimeoutMillis && !upstream.socket.isClosed()) {
+                            return false;
+                        }
+                        idleUpstreamCount.decrementAndGet();
+                        upstream.close();
+                        return true;
+                    });
+                    return idle.isEmpty() ? null : idle;
+                });
+            }
+            scheduleSweep();
+        }, 10, TimeUnit.SECONDS);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 一个客户端连接上的全部请求
+     */
+    private static class ClientConnection {
+
+        private final HandshakeReader reader;
+
+        private final Socket socket;
+
+        private final boolean auth;
+
+        private final AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.heap());
+
+        // 第一个普通请求认证后按用户与客户端 IP 创建
+        private RateLimiter.Shaper shaper;
+
+        private boolean shaperCreated;
+
+        // 已交给转发会话，不再由这里关闭
+        private boolean tunneled;
+
+        private volatile boolean closed;
+
+        // 正在转发的请求使用的目标连接，超时或停机时一起关闭
+        private volatile Upstream current;
+
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private volatile HashedWheelTimer.Timeout watchdog;
+
+        private final AtomicInteger watchdogGeneration = new AtomicInteger();
+
+        ClientConnection(HandshakeReader reader, boolean auth) {
+            this.reader = reader;
+            this.socket = reader.getSocket();
+            this.auth = auth;
+        }
+
+        void serve() throws Exception {
+            arm(idleTimeoutMillis);
+            long startNanos = System.nanoTime();
+            HttpHead request = reader.read(HttpCodec::decodeHead);
+            while (request != null) {
+                touch();
+                if ("CONNECT".equalsIgnoreCase(request.method())) {
+                    tunnel(request, startNanos);
+                    return;
+                }
+                if (!forward(request) || stopping) {
+                    return;
+                }
+                request = awaitRequest();
+                startNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * 等待长连接上的下一个请求
+         *
+         * @return 下一个请求，客户端关闭、空闲超时或停机时返回 null
+         */
+        private HttpHead awaitRequest() throws IOException {
+            arm(keepAliveTimeoutMillis);
+            IDLE_CLIENTS.add(this);
+            try {
+                // 先加入再检查，保证不会错过停机时的关闭
+                if (stopping) {
+                    return null;
+                }
+                reader.peek();
+            } catch (EOFException e) {
+                return null;
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return null;
+                }
+                throw e;
+            } finally {
+                IDLE_CLIENTS.remove(this);
+            }
+            arm(idleTimeoutMillis);
+            return reader.read(HttpCodec::decodeHead);
+        }
+
+        /**
+         * CONNECT 隧道，握手完成后与 SOCKS CONNECT 相同
+         */
+        private void tunnel(HttpHead request, long startNanos) throws Exception {
+            InetSocketAddress target = parseAuthority(request.target(), 443);
+            if (target == null) {
+                MetricsService.recordHandshake(MetricsService.HTTP_CONNECT, startNanos, false);
+                reply(400, "Bad Request", "invalid CONNECT target " + request.target());
+                return;
+            }
+            String host = target.getHostString();
+            int port = target.getPort();
+            String username = null;
+            if (auth) {
+                username = authenticate(request);
+                if (username == null) {
+                    MetricsService.recordHandshake(MetricsService.HTTP_CONNECT, startNanos, false);
+                    requireAuth();
+                    return;
+                }
+            }
+            log.info("target:{}:{}", host, port);
+            InetAddress[] addresses = AccessControl.checkTarget(host);
+            Router.Route route = addresses != null ? Router.route(host, port) : null;
+            if (route == null || route.isReject()) {
+                MetricsService.recordHandshake(MetricsService.HTTP_CONNECT, startNanos, false);
+                reply(403, "Forbidden", "target rejected by " + (route == null ? "acl " : "route rules ") + host + ":" + port);
+                return;
+            }
+            Socket targetSocket;
+            try {
+                targetSocket = route.connect(host, port, addresses);
+            } catch (IOException e) {
+                MetricsService.recordHandshake(MetricsService.HTTP_CONNECT, startNanos, false);
+                reply(502, "Bad Gateway", "connect target failed " + host + ":" + port + " via " + route.getName() + " " + e);
+                return;
+            }
+            disarm();
+            try {
+                reader.write(HttpCodec.response(200, "Connection established"));
+            } catch (IOException e) {
+                closeQuietly(targetSocket);
+                throw e;
+            }
+            tunneled = true;
+            MetricsService.recordHandshake(MetricsService.HTTP_CONNECT, startNanos, true);
+            DataTransHandler.bindClientAndTarget(socket, targetSocket, reader.remaining(), username);
+        }
+
+        /**
+         * 转发一个普通请求并把响应写回客户端
+         *
+         * @return 客户端连接是否可以继续处理下一个请求
+         */
+        private boolean forward(HttpHead request) throws IOException {
+            long startMillis = System.currentTimeMillis();
+            requestCount.increment();
+            String url = request.target();
+            if (!url.regionMatches(true, 0, "http://", 0, 7)) {
+                return reply(400, "Bad Request", "unsupported request target " + url);
+            }
+            int pathStart = url.indexOf('/', 7);
+            String authority = pathStart < 0 ? url.substring(7) : url.substring(7, pathStart);
+            String path = pathStart < 0 ? "/" : url.substring(pathStart);
+            // 去掉 URL 中的 userinfo
+            authority = authority.substring(authority.lastIndexOf('@') + 1);
+            InetSocketAddress target = parseAuthority(authority, 80);
+            if (target == null) {
+                return reply(400, "Bad Request", "invalid request target " + url);
+            }
+            String host = target.getHostString();
+            int port = target.getPort();
+            String username = null;
+            if (auth) {
+                username = authenticate(request);
+                if (username == null) {
+                    return requireAuth();
+                }
+            }
+            if (!shaperCreated) {
+                shaperCreated = true;
+                shaper = RateLimiter.forSession(username, socket.getInetAddress());
+            }
+            InetAddress[] addresses = AccessControl.checkTarget(host);
+            Router.Route route = addresses != null ? Router.route(host, port) : null;
+            if (route == null || route.isReject()) {
+                return reply(403, "Forbidden", "target rejected by " + (route == null ? "acl " : "route rules ") + host + ":" + port);
+            }
+
+            String method = request.method();
+            boolean http10 = "HTTP/1.0".equalsIgnoreCase(request.requestVersion());
+            boolean clientKeepAlive = http10
+                    ? request.hasToken("Connection", "keep-alive") || request.hasToken("Proxy-Connection", "keep-alive")
+                    : !request.hasToken("Connection", "close") && !request.hasToken("Proxy-Connection", "close");
+            long contentLength;
+            try {
+                contentLength = HttpCodec.requestLength(request);
+            } catch (ProtocolException e) {
+                return reply(400, "Bad Request", e.getMessage());
+            }
+            boolean chunked = contentLength == HttpCodec.CHUNKED;
+            boolean hasBody = chunked || contentLength > 0;
+            if (request.hasToken("Expect", "100-continue")) {
+                // 代理直接同意客户端发送消息体，转发时不再等待目标的 100 Continue
+                request.remove("Expect");
+                if (hasBody) {
+                    writeClient(HttpCodec.response(100, "Continue"));
+                }
+            }
+            request.removeHopByHop();
+            request.setStartLine(method, path, http10 ? "HTTP/1.0" : "HTTP/1.1");
+            // 绝对形式的请求以 URL 中的主机为准（RFC 7230 5.4），访问控制与路由检查的也是这个主机
+            request.remove("Host");
+            request.add("Host", authority);
+            if (http10) {
+                request.add("Connection", "keep-alive");
+            }
+            byte[] head = request.encode();
+            String key = route.getName() + "/" + host + ":" + port;
+            boolean retryable = !hasBody && IDEMPOTENT_METHODS.contains(method);
+
+            Upstream upstream;
+            HttpHead response;
+            for (int attempt = 0; ; attempt++) {
+                upstream = attempt == 0 && retryable ? poll(key) : null;
+                boolean reused = upstream != null;
+                if (reused) {
+                    upstreamReuseCount.increment();
+                } else {
+                    try {
+                        upstream = new Upstream(key, route.connect(host, port, addresses));
+                    } catch (IOException e) {
+                        return reply(502, "Bad Gateway", "connect target failed " + host + ":" + port + " via " + route.getName() + " " + e);
+                    }
+                    upstreamConnectCount.increment();
+                }
+                current = upstream;
+                boolean interim = false;
+                try {
+                    upstream.output.write(head);
+                    record(head.length, true);
+                    if (chunked) {
+                        copyChunked(reader, upstream.output, true);
+                    } else if (contentLength > 0) {
+                        copy(reader, upstream.output, contentLength, true);
+                    }
+                    // 1xx 中间响应直接转给客户端，继续等待最终响应
+                    while (true) {
+                        response = upstream.reader.read(HttpCodec::decodeHead);
+                        int status = response.status();
+                        if (status >= 200) {
+                            break;
+                        }
+                        if (status == 101) {
+                            throw new ProtocolException("unexpected 101 response, upgrade is not forwarded");
+                        }
+                        interim = true;
+                        writeClient(response.encode());
+                    }
+                    break;
+                } catch (IOException e) {
+                    current = null;
+                    upstream.close();
+                    if (socket.isClosed()) {
+                        throw e;
+                    }
+                    // 空闲连接在收到任何响应之前失败，通常是目标已经关闭了这个连接
+                    if (reused && !interim && !upstream.reader.hasRemaining()) {
+                        log.debug("idle connection to {} is stale, retry with a new one: {}", key, e.toString());
+                        continue;
+                    }
+                    return reply(502, "Bad Gateway", "forward to " + host + ":" + port + " failed " + e);
+                }
+            }
+
+            int status = response.status();
+            boolean responseHttp10 = "HTTP/1.0".equalsIgnoreCase(response.responseVersion());
+            boolean upstreamKeepAlive = responseHttp10 ? response.hasToken("Connection", "keep-alive") : !response.hasToken("Connection", "close");
+            long responseLength;
+            if ("HEAD".equalsIgnoreCase(method) || status == 204 || status == 304) {
+                responseLength = 0;
+            } else {
+                if (response.get("Transfer-Encoding") != null && response.get("Content-Length") != null) {
+                    // 两种长度同时出现时按 chunked 读取，这个连接上后续报文的边界已不可信，用完即关闭
+                    upstreamKeepAlive = false;
+                }
+                try {
+                    responseLength = HttpCodec.responseLength(response);
+                } catch (ProtocolException e) {
+                    current = null;
+                    upstream.close();
+                    return reply(502, "Bad Gateway", "invalid response from " + host + ":" + port + " " + e.getMessage());
+                }
+                if (responseLength == HttpCodec.UNTIL_CLOSE) {
+                    // 没有长度的响应以目标关闭连接结束，客户端也只能通过关闭连接得知结束
+                    upstreamKeepAlive = false;
+                }
+            }
+            boolean responseChunked = responseLength == HttpCodec.CHUNKED;
+            boolean keepAlive = clientKeepAlive && responseLength != HttpCodec.UNTIL_CLOSE && !stopping;
+            response.removeHopByHop();
+            response.add("Connection", keepAlive ? "keep-alive" : "close");
+            try {
+                byte[] responseHead = response.encode();
+                writeClient(responseHead);
+                record(responseHead.length, false);
+                if (responseChunked) {
+                    copyChunked(upstream.reader, socket.getOutputStream(), false);
+                } else if (responseLength != 0) {
+                    copy(upstream.reader, socket.getOutputStream(), responseLength, false);
+                }
+            } catch (IOException e) {
+                current = null;
+                upstream.close();
+                throw e;
+            }
+            current = null;
+            release(upstream, upstreamKeepAlive && !upstream.reader.hasRemaining());
+            log.info("{} {} via {} {} {}ms", method, url, route.getName(), status, System.currentTimeMillis() - startMillis);
+            return keepAlive;
+        }
+
+        /**
+         * 复制定长消息体
+         *
+         * @param length 字节数，-1 表示读到连接关闭为止
+         */
+        private void copy(HandshakeReader from, OutputStream to, long length, boolean upstream) throws IOException {
+            long remaining = length;
+            while (length < 0 || remaining > 0) {
+                byte[] bytes = buffer.array();
+                int max = shaper == null ? bytes.length : Math.min(bytes.length, shaper.chunkSize());
+                if (length >= 0) {
+                    max = (int) Math.min(max, remaining);
+                }
+                int read = from.read(bytes, 0, max);
+                if (read < 0) {
+                    if (length < 0) {
+                        return;
+                    }
+                    throw new EOFException("connection closed before message body complete");
+                }
+                to.write(bytes, 0, read);
+                remaining -= read;
+                buffer.record(read);
+                record(read, upstream);
+            }
+        }
+
+        /**
+         * 原样复制 chunked 消息体，解析块大小只是为了找到消息的结尾
+         */
+        private void copyChunked(HandshakeReader from, OutputStream to, boolean upstream) throws IOException {
+            while (true) {
+                String line = from.read(HttpCodec::decodeLine);
+                writeLine(to, line, upstream);
+                int semicolon = line.indexOf(';');
+                long size;
+                try {
+                    size = Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("invalid chunk size: " + line);
+                }
+                if (size < 0) {
+                    throw new ProtocolException("invalid chunk size: " + line);
+                }
+                if (size == 0) {
+                    // trailer 以空行结束
+                    String trailer;
+                    do {
+                        trailer = from.read(HttpCodec::decodeLine);
+                        writeLine(to, trailer, upstream);
+                    } while (!trailer.isEmpty());
+                    return;
+                }
+                // 块数据之后的 CRLF
+                copy(from, to, size + 2, upstream);
+            }
+        }
+
+        private void writeLine(OutputStream to, String line, boolean upstream) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+            to.write(bytes);
+            to.write(CRLF);
+            record(bytes.length + 2, upstream);
+        }
+
+        private void writeClient(byte[] bytes) throws IOException {
+            reader.write(bytes);
+        }
+
+        /**
+         * 统计转发的字节数并按限速暂停
+         */
+        private void record(int bytes, boolean upstream) {
+            touch();
+            if (upstream) {
+                MetricsService.recordUpstream(bytes);
+                if (shaper != null) {
+                    RateLimiter.pause(shaper.upstream(bytes));
+                }
+            } else {
+                MetricsService.recordDownstream(bytes);
+                if (shaper != null) {
+                    RateLimiter.pause(shaper.downstream(bytes));
+                }
+            }
+        }
+
+        private boolean requireAuth() throws IOException {
+            failureCount.increment();
+            log.warn("http proxy authentication failed from {}", socket.getRemoteSocketAddress());
+            writeClient(HttpCodec.response(407, "Proxy Authentication Required",
+                    "Proxy-Authenticate", "Basic realm=\"proxy\"", "Content-Length", "0", "Connection", "close"));
+            return false;
+        }
+
+        /**
+         * 代理直接返回错误响应并关闭连接，请求体可能还没有读完，不能继续复用
+         *
+         * @return 总是 false
+         */
+        private boolean reply(int status, String reason, String message) throws IOException {
+            failureCount.increment();
+            log.warn("{} {}", status, message);
+            writeClient(HttpCodec.response(status, reason, "Content-Length", "0", "Connection", "close"));
+            return false;
+        }
+
+        private void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * 挂上空闲检测，timeoutMillis 内没有任何数据收发则关闭连接，0 表示不检测
+         */
+        private void arm(long timeoutMillis) {
+            touch();
+            disarm();
+            if (timeoutMillis > 0) {
+                schedule(watchdogGeneration.get(), timeoutMillis, timeoutMillis);
+            }
+        }
+
+        private void disarm() {
+            watchdogGeneration.incrementAndGet();
+            HashedWheelTimer.Timeout timeout = watchdog;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private void schedule(int generation, long timeoutMillis, long delayMillis) {
+            watchdog = SessionMonitor.timer().newTimeout(() -> {
+                if (generation != watchdogGeneration.get() || closed) {
+                    return;
+                }
+                long idle = System.currentTimeMillis() - lastActivity;
+                if (idle >= timeoutMillis) {
+                    log.info("http connection idle timeout {}", socket.getRemoteSocketAddress());
+                    closeSockets();
+                } else {
+                    schedule(generation, timeoutMillis, timeoutMillis - idle);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 超时或停机时在其他线程调用，关闭连接使处理线程的阻塞读写立即返回
+         */
+        void closeSockets() {
+            closed = true;
+            closeQuietly(socket);
+            Upstream upstream = current;
+            if (upstream != null) {
+                upstream.close();
+            }
+        }
+
+        /**
+         * 处理线程结束时释放资源
+         */
+        void finish() {
+            disarm();
+            closed = true;
+            IDLE_CLIENTS.remove(this);
+            Upstream upstream = current;
+            if (upstream != null) {
+                upstream.close();
+            }
+            if (!tunneled) {
+                closeQuietly(socket);
+            }
+            if (shaper != null) {
+                shaper.release();
+            }
+            buffer.release();
+        }
+    }
+
+    /**
+     * 到目标的一个连接，响应头通过 HandshakeReader 读取，读取器中多读的数据随连接保留
+     */
+    private static class Upstream {
+
+        final String key;
+
+        final Socket socket;
+
+        final HandshakeReader reader;
+
+        final OutputStream output;
+
+        volatile long idleSince;
+
+        Upstream(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            try {
+                this.reader = new HandshakeReader(socket);
+                this.output = socket.getOutputStream();
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+            reader.setMaxSize(maxHeaderSize);
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+}
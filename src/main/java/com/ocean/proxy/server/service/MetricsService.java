@@ -0,0 +1,394 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.LogManager;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.LatencyHistogram;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 运行指标
+ * 计数器都使用 LongAdder，转发与握手线程记录时没有锁竞争；
+ * metrics.enable=true 时启动内置 HTTP 服务，/metrics 输出 Prometheus 文本格式，/sessions 输出当前会话列表（JSON）。
+ */
+public class MetricsService {
+
+    private static final Logger log = Logger.get("metrics");
+
+    /**
+     * recordHandshake 的协议参数：HTTP CONNECT，SOCKS 使用版本号 4、5
+     */
+    static final int HTTP_CONNECT = 0;
+
+    private static final LongAdder upstreamBytes = new LongAdder();
+
+    private static final LongAdder upstreamPackets = new LongAdder();
+
+    private static final LongAdder downstreamBytes = new LongAdder();
+
+    private static final LongAdder downstreamPackets = new LongAdder();
+
+    private static final LongAdder sessionsOpened = new LongAdder();
+
+    private static final LongAdder sessionsClosed = new LongAdder();
+
+    private static final LatencyHistogram socks4Handshake = new LatencyHistogram();
+
+    private static final LatencyHistogram socks5Handshake = new LatencyHistogram();
+
+    private static final LongAdder socks4HandshakeFailures = new LongAdder();
+
+    private static final LongAdder socks5HandshakeFailures = new LongAdder();
+
+    private static final LatencyHistogram httpHandshake = new LatencyHistogram();
+
+    private static final LongAdder httpHandshakeFailures = new LongAdder();
+
+    private static final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    private static final LongAdder connectFailures = new LongAdder();
+
+    private static volatile HttpServer httpServer;
+
+    /**
+     * metrics.enable 是否启动指标 HTTP 服务
+     * metrics.bind / metrics.port 监听地址与端口
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        if (!Boolean.parseBoolean(properties.getProperty("metrics.enable", "false").trim())) {
+            return;
+        }
+        String bind = properties.getProperty("metrics.bind", "127.0.0.1").trim();
+        int port = Integer.parseInt(properties.getProperty("metrics.port", "9190").trim());
+        HttpServer server = HttpServer.create(new InetSocketAddress(bind, port), 16);
+        server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4; charset=utf-8", renderMetrics()));
+        server.createContext("/sessions", exchange -> respond(exchange, "application/json; charset=utf-8", renderSessions()));
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        httpServer = server;
+        log.info("metrics server is running on {}:{}", bind, port);
+    }
+
+    public static void stop() {
+        HttpServer server = httpServer;
+        if (server != null) {
+            server.stop(0);
+            httpServer = null;
+        }
+    }
+
+    static void recordUpstream(int bytes) {
+        upstreamBytes.add(bytes);
+        upstreamPackets.increment();
+    }
+
+    static void recordDownstream(int bytes) {
+        downstreamBytes.add(bytes);
+        downstreamPackets.increment();
+    }
+
+    static void recordSessionOpen() {
+        sessionsOpened.increment();
+    }
+
+    static void recordSessionClose() {
+        sessionsClosed.increment();
+    }
+
+    static long getSessionsClosed() {
+        return sessionsClosed.sum();
+    }
+
+    /**
+     * 记录 SOCKS 与 HTTP CONNECT 握手耗时，从读到版本号之后到返回连接结果为止
+     *
+     * @param version    4、5 或 HTTP_CONNECT
+     * @param startNanos 握手开始时的 System.nanoTime
+     * @param success    是否成功
+     */
+    static void recordHandshake(int version, long startNanos, boolean success) {
+        if (version == 4) {
+            if (success) {
+                socks4Handshake.recordSince(startNanos);
+            } else {
+                socks4HandshakeFailures.increment();
+            }
+        } else if (version == 5) {
+            if (success) {
+                socks5Handshake.recordSince(startNanos);
+            } else {
+                socks5HandshakeFailures.increment();
+            }
+        } else {
+            if (success) {
+                httpHandshake.recordSince(startNanos);
+            } else {
+                httpHandshakeFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * 记录连接目标的耗时，包括域名解析
+     */
+    static void recordConnect(long startNanos, boolean success) {
+        if (success) {
+            connectLatency.recordSince(startNanos);
+        } else {
+            connectFailures.increment();
+        }
+    }
+
+    public static long getUpstreamBytes() {
+        return upstreamBytes.sum();
+    }
+
+    public static long getDownstreamBytes() {
+        return downstreamBytes.sum();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Prometheus 文本格式的全部指标
+     */
+    public static String renderMetrics() {
+        StringBuilder out = new StringBuilder(8192);
+        gauge(out, "proxy_sessions_active", "Relay sessions currently open", SessionMonitor.getActiveCount());
+        counter(out, "proxy_sessions_opened_total", "Relay sessions opened", sessionsOpened.sum());
+        counter(out, "proxy_sessions_closed_total", "Relay sessions closed", sessionsClosed.sum());
+
+        header(out, "proxy_relay_bytes_total", "Bytes relayed by direction", "counter");
+        sample(out, "proxy_relay_bytes_total{direction=\"upstream\"}", upstreamBytes.sum());
+        sample(out, "proxy_relay_bytes_total{direction=\"downstream\"}", downstreamBytes.sum());
+        header(out, "proxy_relay_packets_total", "Socket reads relayed by direction", "counter");
+        sample(out, "proxy_relay_packets_total{direction=\"upstream\"}", upstreamPackets.sum());
+        sample(out, "proxy_relay_packets_total{direction=\"downstream\"}", downstreamPackets.sum());
+
+        header(out, "proxy_handshake_seconds", "SOCKS and HTTP CONNECT handshake latency", "histogram");
+        histogram(out, "proxy_handshake_seconds", "protocol=\"socks4\"", socks4Handshake);
+        histogram(out, "proxy_handshake_seconds", "protocol=\"socks5\"", socks5Handshake);
+        histogram(out, "proxy_handshake_seconds", "protocol=\"http\"", httpHandshake);
+        header(out, "proxy_handshake_failures_total", "SOCKS and HTTP CONNECT handshakes failed", "counter");
+        sample(out, "proxy_handshake_failures_total{protocol=\"socks4\"}", socks4HandshakeFailures.sum());
+        sample(out, "proxy_handshake_failures_total{protocol=\"socks5\"}", socks5HandshakeFailures.sum());
+        sample(out, "proxy_handshake_failures_total{protocol=\"http\"}", httpHandshakeFailures.sum());
+
+        counter(out, "proxy_http_requests_total", "Plain HTTP proxy requests", HttpProxyServer.getRequestCount());
+        counter(out, "proxy_http_failures_total", "Plain HTTP proxy requests answered with a proxy error", HttpProxyServer.getFailureCount());
+        header(out, "proxy_http_upstream_connections_total", "Upstream connections used by plain HTTP requests", "counter");
+        sample(out, "proxy_http_upstream_connections_total{state=\"reused\"}", HttpProxyServer.getUpstreamReuseCount());
+        sample(out, "proxy_http_upstream_connections_total{state=\"new\"}", HttpProxyServer.getUpstreamConnectCount());
+        gauge(out, "proxy_http_upstream_idle", "Idle upstream connections kept for reuse", HttpProxyServer.getIdleUpstreamCount());
+
+        if (TlsService.isEnabled()) {
+            header(out, "proxy_tls_handshake_seconds", "Client TLS handshake latency by full or resumed session", "histogram");
+            histogram(out, "proxy_tls_handshake_seconds", "kind=\"full\"", TlsService.getHandshakeHistogram(false));
+            histogram(out, "proxy_tls_handshake_seconds", "kind=\"resumed\"", TlsService.getHandshakeHistogram(true));
+            header(out, "proxy_tls_handshake_cpu_seconds_total", "CPU time spent in client TLS handshakes", "counter");
+            sample(out, "proxy_tls_handshake_cpu_seconds_total{kind=\"full\"}", TlsService.getHandshakeCpuSeconds(false));
+            sample(out, "proxy_tls_handshake_cpu_seconds_total{kind=\"resumed\"}", TlsService.getHandshakeCpuSeconds(true));
+            header(out, "proxy_tls_resumption_ratio", "Share of client TLS handshakes that resumed a session", "gauge");
+            sample(out, "proxy_tls_resumption_ratio", TlsService.getResumptionRate());
+            counter(out, "proxy_tls_handshake_failures_total", "Client TLS handshakes failed", TlsService.getFailureCount());
+            gauge(out, "proxy_tls_session_cache_size", "Sessions in the server TLS session cache", TlsService.getCachedSessionCount());
+        }
+
+        header(out, "proxy_connect_seconds", "Upstream connect latency including DNS", "histogram");
+        histogram(out, "proxy_connect_seconds", null, connectLatency);
+        counter(out, "proxy_connect_failures_total", "Upstream connects failed", connectFailures.sum());
+
+        ThreadPoolExecutor executor = ProxyServerApplication.GLOBAL_EXECUTOR;
+        gauge(out, "proxy_executor_active_threads", "Threads running tasks in the global executor", executor.getActiveCount());
+        gauge(out, "proxy_executor_pool_threads", "Threads in the global executor", executor.getPoolSize());
+        gauge(out, "proxy_executor_queue_size", "Tasks waiting in the global executor queue", executor.getQueue().size());
+        counter(out, "proxy_executor_completed_tasks_total", "Tasks completed by the global executor", executor.getCompletedTaskCount());
+        counter(out, "proxy_executor_rejected_tasks_total", "Tasks rejected by the global executor", ProxyServerApplication.getRejectedCount());
+
+        gauge(out, "proxy_admission_connections", "Client connections currently admitted", AdmissionControl.getConnectionCount());
+        header(out, "proxy_admission_rejected_total", "Client connections shed by admission control", "counter");
+        for (String reason : new String[]{AdmissionControl.REASON_GLOBAL, AdmissionControl.REASON_IP, AdmissionControl.REASON_RATE, AdmissionControl.REASON_EXECUTOR}) {
+            sample(out, "proxy_admission_rejected_total{reason=\"" + reason + "\"}", AdmissionControl.getRejectedCount(reason));
+        }
+
+        header(out, "proxy_acceptor_accepted_total", "Connections accepted", "counter");
+        for (AcceptorGroup group : AcceptorGroup.groups()) {
+            sample(out, "proxy_acceptor_accepted_total{name=\"" + group.getName() + "\"}", group.getAcceptedCount());
+        }
+        header(out, "proxy_acceptor_errors_total", "Accept errors", "counter");
+        for (AcceptorGroup group : AcceptorGroup.groups()) {
+            sample(out, "proxy_acceptor_errors_total{name=\"" + group.getName() + "\"}", group.getAcceptErrorCount());
+        }
+        header(out, "proxy_acceptor_rate", "Connections accepted in the last second", "gauge");
+        for (AcceptorGroup group : AcceptorGroup.groups()) {
+            sample(out, "proxy_acceptor_rate{name=\"" + group.getName() + "\"}", group.getAcceptRate());
+        }
+
+        counter(out, "proxy_dns_hits_total", "DNS cache hits", DnsResolver.getHitCount());
+        counter(out, "proxy_dns_negative_hits_total", "DNS negative cache hits", DnsResolver.getNegativeHitCount());
+        counter(out, "proxy_dns_misses_total", "DNS lookups issued", DnsResolver.getMissCount());
+        counter(out, "proxy_dns_coalesced_total", "DNS requests joined to an in-flight lookup", DnsResolver.getCoalescedCount());
+        counter(out, "proxy_dns_failures_total", "DNS lookups failed", DnsResolver.getFailureCount());
+        gauge(out, "proxy_dns_cache_size", "Names in the DNS cache", DnsResolver.getCacheSize());
+
+        gauge(out, "proxy_acl_entries", "Destination ACL entries loaded", AccessControl.getEntryCount());
+        counter(out, "proxy_acl_denied_total", "Targets denied by the destination ACL", AccessControl.getDeniedCount());
+        header(out, "proxy_route_total", "Target connections by route", "counter");
+        for (Router.Route route : Router.routes()) {
+            sample(out, "proxy_route_total{route=\"" + route.getName() + "\"}", route.getCount());
+        }
+
+        header(out, "proxy_forward_pool_idle", "Idle pre-connected upstream connections per forward port", "gauge");
+        for (Map.Entry<Integer, UpstreamPool> entry : ForwardService.pools().entrySet()) {
+            sample(out, "proxy_forward_pool_idle{port=\"" + entry.getKey() + "\"}", entry.getValue().getIdleCount());
+        }
+        header(out, "proxy_forward_pool_borrows_total", "Forwarded connections served from the pool (hit) or dialed on demand (miss)", "counter");
+        for (Map.Entry<Integer, UpstreamPool> entry : ForwardService.pools().entrySet()) {
+            sample(out, "proxy_forward_pool_borrows_total{port=\"" + entry.getKey() + "\",result=\"hit\"}", entry.getValue().getHitCount());
+            sample(out, "proxy_forward_pool_borrows_total{port=\"" + entry.getKey() + "\",result=\"miss\"}", entry.getValue().getMissCount());
+        }
+        header(out, "proxy_forward_pool_connects_total", "Upstream connections pre-established by the pool", "counter");
+        for (Map.Entry<Integer, UpstreamPool> entry : ForwardService.pools().entrySet()) {
+            sample(out, "proxy_forward_pool_connects_total{port=\"" + entry.getKey() + "\"}", entry.getValue().getCreateCount());
+        }
+        header(out, "proxy_forward_pool_evictions_total", "Idle pool connections dropped as expired or closed by the upstream", "counter");
+        for (Map.Entry<Integer, UpstreamPool> entry : ForwardService.pools().entrySet()) {
+            sample(out, "proxy_forward_pool_evictions_total{port=\"" + entry.getKey() + "\"}", entry.getValue().getEvictCount());
+        }
+
+        gauge(out, "proxy_mux_links", "Multiplexed forward links currently open", MuxTunnel.getLinkCount());
+        gauge(out, "proxy_mux_streams", "Forwarded connections carried as streams on multiplexed links", MuxTunnel.getStreamCount());
+        counter(out, "proxy_mux_link_connects_total", "Multiplexed links established to the peer instance", MuxTunnel.getLinkConnectCount());
+        counter(out, "proxy_mux_streams_opened_total", "Streams opened on multiplexed links", MuxTunnel.getStreamOpenCount());
+        counter(out, "proxy_mux_open_failures_total", "Streams the peer could not connect to the target", MuxTunnel.getOpenFailureCount());
+        counter(out, "proxy_mux_frames_total", "Frames written to multiplexed links", MuxTunnel.getFrameCount());
+        counter(out, "proxy_mux_flushes_total", "Socket writes on multiplexed links, each carrying one or more frames", MuxTunnel.getFlushCount());
+        counter(out, "proxy_mux_window_stalls_total", "Stream sends paused by an exhausted flow-control window", MuxTunnel.getWindowStallCount());
+
+        gauge(out, "proxy_udp_associations", "UDP associations currently open", UdpRelayService.getAssociationCount());
+        counter(out, "proxy_udp_dropped_total", "UDP datagrams dropped by the relay", UdpRelayService.getDroppedCount());
+        counter(out, "proxy_throttle_pauses_total", "Reads paused by bandwidth limits", RateLimiter.getPauseCount());
+        header(out, "proxy_throttle_seconds_total", "Time reads were paused by bandwidth limits", "counter");
+        sample(out, "proxy_throttle_seconds_total", RateLimiter.getPauseSeconds());
+        gauge(out, "proxy_bind_pending", "BIND listeners waiting for the peer", BindService.getPendingCount());
+        counter(out, "proxy_bind_accepted_total", "BIND peers accepted", BindService.getAcceptedCount());
+        counter(out, "proxy_bind_timeouts_total", "BIND listeners closed by timeout", BindService.getTimeoutCount());
+        gauge(out, "proxy_auth_users", "Users loaded from the user file", AuthService.getUserCount());
+        counter(out, "proxy_auth_cache_hits_total", "Authentications answered by the verified-credential cache", AuthService.getCacheHitCount());
+        counter(out, "proxy_auth_verifications_total", "Authentications verified against the user file", AuthService.getVerifyCount());
+        counter(out, "proxy_auth_failures_total", "Authentications rejected", AuthService.getFailureCount());
+
+        BufferPool heap = BufferPool.heap();
+        BufferPool channel = BufferPool.channel();
+        BufferPool[] pools = channel != heap ? new BufferPool[]{heap, channel} : new BufferPool[]{heap};
+        header(out, "proxy_buffer_pool_bytes", "Pooled relay buffer bytes", "gauge");
+        for (BufferPool pool : pools) {
+            sample(out, "proxy_buffer_pool_bytes{pool=\"" + poolName(pool) + "\",state=\"in_use\"}", pool.getInUseBytes());
+            sample(out, "proxy_buffer_pool_bytes{pool=\"" + poolName(pool) + "\",state=\"idle\"}", pool.getIdleBytes());
+        }
+        header(out, "proxy_buffer_pool_acquires_total", "Buffers acquired from the pool", "counter");
+        for (BufferPool pool : pools) {
+            sample(out, "proxy_buffer_pool_acquires_total{pool=\"" + poolName(pool) + "\"}", pool.getAcquireCount());
+        }
+        header(out, "proxy_buffer_pool_allocations_total", "Buffers newly allocated because the pool was empty", "counter");
+        for (BufferPool pool : pools) {
+            sample(out, "proxy_buffer_pool_allocations_total{pool=\"" + poolName(pool) + "\"}", pool.getAllocateCount());
+        }
+
+        counter(out, "proxy_log_dropped_total", "Log events dropped because the log queue was full", LogManager.getDroppedCount());
+        return out.toString();
+    }
+
+    private static String poolName(BufferPool pool) {
+        return pool.isDirect() ? "direct" : "heap";
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        sample(out, name, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        sample(out, name, value);
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            cumulative += histogram.getBucket(i);
+            long bound = histogram.getBoundMillis(i);
+            String le = bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(bound / 1000.0);
+            sample(out, name + "_bucket{" + prefix + "le=\"" + le + "\"}", cumulative);
+        }
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        sample(out, name + "_sum" + suffix, histogram.getSumNanos() / 1e9);
+        sample(out, name + "_count" + suffix, histogram.getCount());
+    }
+
+    /**
+     * 当前会话列表，JSON 数组
+     */
+    public static String renderSessions() {
+        StringBuilder out = new StringBuilder("[");
+        long now = System.currentTimeMillis();
+        boolean first = true;
+        for (RelaySession session : SessionMonitor.sessions()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append("\n{\"id\":\"").append(session.getSessionId())
+                    .append("\",\"user\":").append(session.getUser() == null ? "null" : "\"" + escape(session.getUser()) + "\"")
+                    .append(",\"client\":\"").append(escape(String.valueOf(session.getClientSocket().getRemoteSocketAddress())))
+                    .append("\",\"target\":\"").append(escape(session.getTargetSocket() == null ? "udp"
+                            : String.valueOf(session.getTargetSocket().getRemoteSocketAddress())))
+                    .append("\",\"ageMillis\":").append(now - session.getCreateTime())
+                    .append(",\"idleMillis\":").append(now - session.getLastActivity())
+                    .append(",\"upstreamBytes\":").append(session.getUpstreamBytes())
+                    .append(",\"upstreamPackets\":").append(session.getUpstreamPackets())
+                    .append(",\"downstreamBytes\":").append(session.getDownstreamBytes())
+                    .append(",\"downstreamPackets\":").append(session.getDownstreamPackets())
+                    .append('}');
+        }
+        return out.append("\n]\n").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,876 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.HashedWheelTimer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 两个代理实例之间的多路复用隧道，用于端口转发
+ * 转发端（forward.mux.enable=true）与对端（forward.mux.listen）之间保持少量长连接（链路），
+ * 每个被转发的客户端连接成为链路上的一个流，不再为每个客户端单独连接对端，省去建连的往返，两端的连接数也大幅减少。
+ * 帧格式：类型 1 字节 + 流 ID 4 字节 + 负载长度 3 字节 + 负载。
+ * 链路建立时双方交换 HELLO（版本、接收窗口）：对端先发送随机数，转发端回复以共享密钥计算的 HMAC-SHA256，
+ * 对端校验通过后才接受 OPEN，密钥本身不在链路上传输；对端只连接自己配置的目标地址与端口，OPEN 中的其他目标直接 RST。
+ * 转发端发送 OPEN 后立即发送数据，不等待对端连接目标，目标连接失败时对端回复 RST。
+ * 每个流有独立的流量控制窗口：发送方最多发送对方接收窗口大小的未确认数据，接收方写出到本地连接后用 WINDOW 归还额度，
+ * 一个流的本地连接写得慢不会阻塞同一链路上的其他流。
+ * 每条链路由一个写线程串行写出所有帧，队列中积压的帧合并为一次写出。
+ * 链路定期发送 PING，超过三个周期没有收到任何帧视为断开，链路上的流全部关闭，之后的流重新建立链路。
+ * 流与普通转发一样注册为会话，参与空闲检测、限速、监控与停机排空。
+ */
+public class MuxTunnel {
+
+    private static final Logger log = Logger.get("forward");
+
+    private static final int VERSION = 2;
+
+    private static final int NONCE_SIZE = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final byte HELLO = 0;
+
+    private static final byte OPEN = 1;
+
+    private static final byte DATA = 2;
+
+    private static final byte WINDOW = 3;
+
+    private static final byte FIN = 4;
+
+    private static final byte RST = 5;
+
+    private static final byte PING = 6;
+
+    private static final byte PONG = 7;
+
+    private static final int HEADER_SIZE = 8;
+
+    // 单个 DATA 帧的最大负载，多个流交替发送时任何一个流都不会长时间占住链路
+    private static final int MAX_DATA_SIZE = 16 * 1024;
+
+    // 接收帧的最大负载，超过视为协议错误
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // 写线程与流的接收队列使用的标记，按引用比较
+    private static final byte[] CLOSE_MARK = new byte[0];
+
+    private static final byte[] FIN_MARK = new byte[0];
+
+    private static volatile boolean enabled = false;
+
+    private static volatile String address;
+
+    private static volatile int port;
+
+    private static volatile String targetHost;
+
+    private static volatile byte[] secret = new byte[0];
+
+    // 监听端允许 OPEN 连接的目标
+    private static volatile String allowedHost = "127.0.0.1";
+
+    private static volatile Set<Integer> allowedPorts = Collections.emptySet();
+
+    // 本端每个流的接收窗口
+    private static volatile int window = 256 * 1024;
+
+    private static volatile long pingIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile Link[] links = new Link[0];
+
+    // 链路连接失败后到该时间之前不再重试，避免每个新流都等待一次连接超时
+    private static volatile long[] retryAt = new long[0];
+
+    private static final Map<Link, Boolean> ACTIVE_LINKS = new ConcurrentHashMap<>();
+
+    private static final LongAdder linkConnectCount = new LongAdder();
+
+    private static final LongAdder streamOpenCount = new LongAdder();
+
+    private static final LongAdder openFailureCount = new LongAdder();
+
+    private static final LongAdder frameCount = new LongAdder();
+
+    private static final LongAdder flushCount = new LongAdder();
+
+    private static final LongAdder windowStallCount = new LongAdder();
+
+    /**
+     * forward.mux.listen 接受其他实例建立链路的端口，不配置时不监听
+     * forward.mux.enable 端口转发是否经过链路发送到 forward.address 上的另一个实例
+     * forward.mux.port 对端实例的链路端口
+     * forward.mux.targetHost 对端实例连接的目标地址，转发端不配置时为 forward.address；
+     * 监听端只接受连接这个地址的 OPEN，不配置时为 127.0.0.1
+     * forward.mux.targetPorts 监听端允许连接的目标端口，逗号分隔，监听链路时必须配置
+     * forward.mux.connections 到对端保持的链路数
+     * forward.mux.secret 双方相同的共享密钥，监听或开启链路时必须配置
+     * forward.mux.window 每个流的接收窗口字节数
+     * forward.mux.pingInterval 链路心跳间隔秒数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        secret = properties.getProperty("forward.mux.secret", "").trim().getBytes(StandardCharsets.UTF_8);
+        window = Integer.parseInt(properties.getProperty("forward.mux.window", "262144").trim());
+        pingIntervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("forward.mux.pingInterval", "30").trim()));
+        String listen = properties.getProperty("forward.mux.listen", "").trim();
+        if (!listen.isEmpty()) {
+            if (secret.length == 0) {
+                // 对端可以让本实例连接任意目标，没有密钥等于开放代理
+                throw new IllegalArgumentException("forward.mux.secret is required when forward.mux.listen is set");
+            }
+            allowedHost = properties.getProperty("forward.mux.targetHost", "127.0.0.1").trim();
+            Set<Integer> ports = new HashSet<>();
+            for (String item : properties.getProperty("forward.mux.targetPorts", "").split(",")) {
+                if (!item.trim().isEmpty()) {
+                    ports.add(Integer.parseInt(item.trim()));
+                }
+            }
+            if (ports.isEmpty()) {
+                throw new IllegalArgumentException("forward.mux.targetPorts is required when forward.mux.listen is set");
+            }
+            allowedPorts = ports;
+            int listenPort = Integer.parseInt(listen);
+            AcceptorGroup.start("mux", listenPort, 1, 0, false,
+                    socket -> ProxyServerApplication.getExecutor().execute(() -> accept(socket)));
+            log.info("Mux tunnel is listening on port {}.", listenPort);
+        }
+        address = properties.getProperty("forward.address", "").trim();
+        enabled = Boolean.parseBoolean(properties.getProperty("forward.mux.enable", "false").trim()) && !address.isEmpty();
+        if (!enabled) {
+            return;
+        }
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("forward.mux.secret is required when forward.mux.enable=true");
+        }
+        port = Integer.parseInt(properties.getProperty("forward.mux.port", "9300").trim());
+        targetHost = properties.getProperty("forward.mux.targetHost", address).trim();
+        int connections = Math.max(1, Integer.parseInt(properties.getProperty("forward.mux.connections", "2").trim()));
+        links = new Link[connections];
+        retryAt = new long[connections];
+        // 启动时预先建立链路，第一个客户端也不需要等待
+        for (int i = 0; i < connections; i++) {
+            reconnect(i);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 在一条链路上为客户端连接打开一个流，对端连接 forward.mux.targetHost:targetPort 后双向转发
+     * 流建立后立即返回，之后由流负责关闭客户端连接
+     */
+    public static void open(Socket clientSocket, int targetPort) throws IOException {
+        Link link = select();
+        Stream stream = link.newStream();
+        byte[] host = targetHost.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + host.length);
+        payload.putShort((short) targetPort).put(host);
+        link.send(frame(OPEN, stream.id, payload.array(), 0, payload.capacity()));
+        streamOpenCount.increment();
+        stream.start(clientSocket);
+    }
+
+    /**
+     * 流最少的可用链路；有可用链路时断开的链路在后台重新建立，没有时当前线程直接建立
+     */
+    private static Link select() throws IOException {
+        Link[] current = links;
+        Link best = null;
+        for (Link link : current) {
+            if (link != null && !link.closed.get() && (best == null || link.streams.size() < best.streams.size())) {
+                best = link;
+            }
+        }
+        IOException failure = null;
+        for (int i = 0; i < current.length; i++) {
+            Link link = current[i];
+            if (link != null && !link.closed.get() || System.currentTimeMillis() < retryAt[i]) {
+                continue;
+            }
+            if (best != null) {
+                reconnect(i);
+                continue;
+            }
+            try {
+                best = connect(i);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (best == null) {
+            throw failure != null ? failure : new IOException("no mux link to " + address + ":" + port);
+        }
+        return best;
+    }
+
+    private static void reconnect(int index) {
+        retryAt[index] = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
+        ProxyServerApplication.getExecutor().execute(() -> {
+            try {
+                connect(index);
+            } catch (IOException e) {
+                log.warn("mux link to {}:{} failed {}", address, port, e.toString());
+            }
+        });
+    }
+
+    private static synchronized Link connect(int index) throws IOException {
+        Link link = links[index];
+        if (link != null && !link.closed.get()) {
+            return link;
+        }
+        Socket socket;
+        try {
+            socket = Dialer.connect(address, port);
+            link = new Link(socket, true);
+            link.handshake();
+        } catch (IOException e) {
+            retryAt[index] = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
+            throw e;
+        }
+        links[index] = link;
+        linkConnectCount.increment();
+        link.start();
+        log.info("mux link {} connected to {}:{}", index, address, port);
+        return link;
+    }
+
+    /**
+     * 对端建立的链路，在工作线程内完成握手后开始收发
+     */
+    private static void accept(Socket socket) {
+        Link link;
+        try {
+            link = new Link(socket, false);
+            link.handshake();
+        } catch (IOException e) {
+            log.warn("mux link from {} rejected {}", socket.getRemoteSocketAddress(), e.toString());
+            closeQuietly(socket);
+            return;
+        }
+        link.start();
+        log.info("mux link accepted from {}", socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * 以共享密钥计算的 HMAC-SHA256
+     */
+    private static byte[] sign(byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] frame(byte type, int id, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        frame[0] = type;
+        frame[1] = (byte) (id >>> 24);
+        frame[2] = (byte) (id >>> 16);
+        frame[3] = (byte) (id >>> 8);
+        frame[4] = (byte) id;
+        frame[5] = (byte) (length >>> 16);
+        frame[6] = (byte) (length >>> 8);
+        frame[7] = (byte) length;
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    private static byte[] frame(byte type, int id) {
+        return frame(type, id, EMPTY, 0, 0);
+    }
+
+    private static byte[] frame(byte type, int id, int value) {
+        return frame(type, id, ByteBuffer.allocate(4).putInt(value).array(), 0, 4);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static int getLinkCount() {
+        return ACTIVE_LINKS.size();
+    }
+
+    public static int getStreamCount() {
+        int count = 0;
+        for (Link link : ACTIVE_LINKS.keySet()) {
+            count += link.streams.size();
+        }
+        return count;
+    }
+
+    public static long getLinkConnectCount() {
+        return linkConnectCount.sum();
+    }
+
+    public static long getStreamOpenCount() {
+        return streamOpenCount.sum();
+    }
+
+    /**
+     * 对端连接目标失败或被拒绝的流数
+     */
+    public static long getOpenFailureCount() {
+        return openFailureCount.sum();
+    }
+
+    public static long getFrameCount() {
+        return frameCount.sum();
+    }
+
+    /**
+     * 链路写出次数，与帧数之比反映合并写出的效果
+     */
+    public static long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    /**
+     * 流因对方接收窗口用尽而等待的次数
+     */
+    public static long getWindowStallCount() {
+        return windowStallCount.sum();
+    }
+
+    /**
+     * 两个实例之间的一条长连接
+     */
+    private static class Link {
+
+        final Socket socket;
+
+        // 转发端为 true，由转发端打开流
+        final boolean client;
+
+        final DataInputStream input;
+
+        final OutputStream output;
+
+        final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+        final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+
+        final AtomicInteger nextId = new AtomicInteger();
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        // 对端每个流的接收窗口，即本端每个流的初始发送窗口
+        volatile int peerWindow;
+
+        volatile long lastRead = System.currentTimeMillis();
+
+        volatile HashedWheelTimer.Timeout pingTimeout;
+
+        Link(Socket socket, boolean client) throws IOException {
+            this.socket = socket;
+            this.client = client;
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            // 读线程与写线程同时使用，NIO 引擎下的通道连接需要绕开适配器流的共用锁
+            this.input = new DataInputStream(DataTransHandler.inputStream(socket));
+            this.output = DataTransHandler.outputStream(socket);
+        }
+
+        /**
+         * 交换 HELLO：监听端先发送版本、窗口与随机数，转发端回复版本、窗口与随机数的 HMAC，监听端校验后链路可用
+         * 通道连接的读取不受 SO_TIMEOUT 限制，超时由时间轮关闭连接
+         */
+        void handshake() throws IOException {
+            HashedWheelTimer.Timeout timeout = SessionMonitor.timer().newTimeout(() -> closeQuietly(socket),
+                    Math.max(Dialer.getConnectTimeout(), 1000), TimeUnit.MILLISECONDS);
+            try {
+                if (client) {
+                    byte[] nonce = readHello();
+                    if (nonce.length != NONCE_SIZE) {
+                        throw new ProtocolException("invalid mux nonce");
+                    }
+                    output.write(hello(sign(nonce)));
+                } else {
+                    byte[] nonce = new byte[NONCE_SIZE];
+                    RANDOM.nextBytes(nonce);
+                    output.write(hello(nonce));
+                    if (!MessageDigest.isEqual(readHello(), sign(nonce))) {
+                        throw new ProtocolException("mux secret mismatch");
+                    }
+                }
+            } finally {
+                timeout.cancel();
+            }
+        }
+
+        private byte[] hello(byte[] data) {
+            ByteBuffer payload = ByteBuffer.allocate(5 + data.length);
+            payload.put((byte) VERSION).putInt(window).put(data);
+            return frame(HELLO, 0, payload.array(), 0, payload.capacity());
+        }
+
+        /**
+         * 读取对端的 HELLO，记下对端窗口
+         *
+         * @return 版本与窗口之后的数据：监听端发来的随机数或转发端回复的 HMAC
+         */
+        private byte[] readHello() throws IOException {
+            byte[] header = new byte[HEADER_SIZE];
+            input.readFully(header);
+            int length = (header[5] & 0xFF) << 16 | (header[6] & 0xFF) << 8 | header[7] & 0xFF;
+            if (header[0] != HELLO || length < 5 || length > 1024) {
+                throw new ProtocolException("invalid mux hello");
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int version = buffer.get();
+            if (version != VERSION) {
+                throw new ProtocolException("unsupported mux version " + version);
+            }
+            int peer = buffer.getInt();
+            if (peer <= 0) {
+                throw new ProtocolException("invalid mux window " + peer);
+            }
+            peerWindow = peer;
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+
+        void start() {
+            ACTIVE_LINKS.put(this, Boolean.TRUE);
+            try {
+                ProxyServerApplication.getExecutor().execute(this::writeLoop);
+                ProxyServerApplication.getExecutor().execute(this::readLoop);
+            } catch (RejectedExecutionException e) {
+                close();
+                return;
+            }
+            schedulePing();
+        }
+
+        Stream newStream() {
+            Stream stream = new Stream(this, nextId.incrementAndGet());
+            streams.put(stream.id, stream);
+            return stream;
+        }
+
+        void send(byte[] frame) {
+            if (!closed.get()) {
+                outbound.offer(frame);
+            }
+        }
+
+        /**
+         * 取出队列中所有积压的帧后再 flush，多个帧合并为一次写出
+         */
+        private void writeLoop() {
+            BufferedOutputStream out = new BufferedOutputStream(output, 64 * 1024);
+            try {
+                while (true) {
+                    byte[] frame = outbound.take();
+                    do {
+                        if (frame == CLOSE_MARK) {
+                            return;
+                        }
+                        out.write(frame);
+                        frameCount.increment();
+                    } while ((frame = outbound.poll()) != null);
+                    out.flush();
+                    flushCount.increment();
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    log.warn("mux link write failed {} {}", socket.getRemoteSocketAddress(), e.toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void readLoop() {
+            byte[] header = new byte[HEADER_SIZE];
+            try {
+                while (true) {
+                    input.readFully(header);
+                    lastRead = System.currentTimeMillis();
+                    int id = (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | header[4] & 0xFF;
+                    int length = (header[5] & 0xFF) << 16 | (header[6] & 0xFF) << 8 | header[7] & 0xFF;
+                    if (length > MAX_PAYLOAD_SIZE) {
+                        throw new ProtocolException("mux frame too large: " + length);
+                    }
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    dispatch(header[0], id, payload);
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    log.warn("mux link closed {} {}", socket.getRemoteSocketAddress(), e.toString());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void dispatch(byte type, int id, byte[] payload) throws IOException {
+            Stream stream;
+            switch (type) {
+                case OPEN:
+                    if (client || payload.length < 3) {
+                        throw new ProtocolException("unexpected mux open");
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(payload);
+                    int targetPort = buffer.getShort() & 0xFFFF;
+                    String host = new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8);
+                    Stream opened = new Stream(this, id);
+                    if (streams.putIfAbsent(id, opened) != null) {
+                        throw new ProtocolException("duplicate mux stream " + id);
+                    }
+                    try {
+                        ProxyServerApplication.getExecutor().execute(() -> opened.connect(host, targetPort));
+                    } catch (RejectedExecutionException e) {
+                        openFailureCount.increment();
+                        opened.close(true);
+                    }
+                    break;
+                case DATA:
+                    stream = streams.get(id);
+                    // 已关闭的流上仍在路上的数据直接丢弃
+                    if (stream != null) {
+                        stream.receive(payload);
+                    }
+                    break;
+                case WINDOW:
+                    stream = streams.get(id);
+                    if (stream != null && payload.length == 4) {
+                        stream.grant(ByteBuffer.wrap(payload).getInt());
+                    }
+                    break;
+                case FIN:
+                    stream = streams.get(id);
+                    if (stream != null) {
+                        stream.inbound.offer(FIN_MARK);
+                    }
+                    break;
+                case RST:
+                    stream = streams.get(id);
+                    if (stream != null) {
+                        stream.close(false);
+                    }
+                    break;
+                case PING:
+                    send(frame(PONG, 0, payload, 0, payload.length));
+                    break;
+                case PONG:
+                    break;
+                default:
+                    throw new ProtocolException("unexpected mux frame type " + type);
+            }
+        }
+
+        private void schedulePing() {
+            pingTimeout = SessionMonitor.timer().newTimeout(() -> {
+                if (closed.get()) {
+                    return;
+                }
+                if (System.currentTimeMillis() - lastRead > pingIntervalMillis * 3) {
+                    log.warn("mux link {} timed out", socket.getRemoteSocketAddress());
+                    close();
+                    return;
+                }
+                send(frame(PING, 0, ByteBuffer.allocate(8).putLong(System.nanoTime()).array(), 0, 8));
+                schedulePing();
+            }, pingIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            ACTIVE_LINKS.remove(this);
+            outbound.offer(CLOSE_MARK);
+            closeQuietly(socket);
+            HashedWheelTimer.Timeout timeout = pingTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            for (Stream stream : streams.values()) {
+                stream.close(false);
+            }
+            log.info("mux link {} closed", socket.getRemoteSocketAddress());
+        }
+    }
+
+    /**
+     * 链路上的一个流，对应一个本地连接：转发端为客户端连接，监听端为目标连接
+     * 读线程把本地连接的数据按发送窗口打包成 DATA 帧，写线程把收到的数据写到本地连接并归还窗口
+     */
+    private static class Stream {
+
+        final Link link;
+
+        final int id;
+
+        final LinkedBlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+
+        // 已收到还未写到本地连接的字节数，不能超过本端窗口
+        final AtomicInteger buffered = new AtomicInteger();
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        volatile Socket socket;
+
+        volatile RelaySession session;
+
+        // 发送窗口，由 this 保护
+        int sendWindow;
+
+        boolean localFinished;
+
+        boolean remoteFinished;
+
+        Stream(Link link, int id) {
+            this.link = link;
+            this.id = id;
+            this.sendWindow = link.peerWindow;
+        }
+
+        /**
+         * 监听端：连接目标后开始转发，失败时回复 RST
+         */
+        void connect(String host, int targetPort) {
+            try {
+                if (!host.equalsIgnoreCase(allowedHost) || !allowedPorts.contains(targetPort)) {
+                    throw new IOException("target not in forward.mux.targetHost/targetPorts");
+                }
+                InetAddress[] addresses = AccessControl.checkTarget(host);
+                if (addresses == null) {
+                    throw new IOException("denied by acl");
+                }
+                start(addresses.length > 0 ? Dialer.connect(addresses, targetPort) : Dialer.connect(host, targetPort));
+            } catch (IOException e) {
+                openFailureCount.increment();
+                log.warn("mux open {}:{} failed {}", host, targetPort, e.toString());
+                close(true);
+            }
+        }
+
+        void start(Socket localSocket) {
+            socket = localSocket;
+            RelaySession relaySession = new RelaySession(localSocket, null);
+            if (link.client) {
+                relaySession.setShaper(RateLimiter.forSession(null, localSocket.getInetAddress()));
+            }
+            relaySession.setCloseHandler(() -> close(true));
+            session = relaySession;
+            SessionMonitor.register(relaySession);
+            if (closed.get()) {
+                relaySession.close();
+                return;
+            }
+            log.info("mux stream {} open {}", id, relaySession.getSessionId());
+            try {
+                ProxyServerApplication.getExecutor().execute(this::pumpLocal);
+                ProxyServerApplication.getExecutor().execute(this::pumpRemote);
+            } catch (RejectedExecutionException e) {
+                close(true);
+            }
+        }
+
+        void receive(byte[] data) throws ProtocolException {
+            if (buffered.addAndGet(data.length) > window) {
+                throw new ProtocolException("mux stream " + id + " window exceeded");
+            }
+            inbound.offer(data);
+        }
+
+        synchronized void grant(int bytes) {
+            sendWindow += bytes;
+            notifyAll();
+        }
+
+        /**
+         * 等待发送窗口
+         *
+         * @return 可发送的字节数，流已关闭时返回 -1
+         */
+        private synchronized int awaitWindow() throws InterruptedException {
+            if (sendWindow <= 0 && !closed.get()) {
+                windowStallCount.increment();
+                while (sendWindow <= 0 && !closed.get()) {
+                    wait();
+                }
+            }
+            return closed.get() ? -1 : sendWindow;
+        }
+
+        /**
+         * 本地连接到链路：每次最多读取发送窗口允许的字节数
+         */
+        private void pumpLocal() {
+            RelaySession relaySession = session;
+            AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.heap());
+            try {
+                InputStream localInput = DataTransHandler.inputStream(socket);
+                while (true) {
+                    int allowed = awaitWindow();
+                    if (allowed < 0) {
+                        return;
+                    }
+                    byte[] array = buffer.array();
+                    int length = relaySession.readLimit(Math.min(Math.min(array.length, MAX_DATA_SIZE), allowed));
+                    int bytesRead = localInput.read(array, 0, length);
+                    if (bytesRead == -1) {
+                        link.send(frame(FIN, id));
+                        finish(true);
+                        return;
+                    }
+                    synchronized (this) {
+                        sendWindow -= bytesRead;
+                    }
+                    link.send(frame(DATA, id, array, 0, bytesRead));
+                    buffer.record(bytesRead);
+                    if (link.client) {
+                        relaySession.recordUpstream(bytesRead);
+                        RateLimiter.pause(relaySession.upstreamDelay(bytesRead));
+                    } else {
+                        relaySession.recordDownstream(bytesRead);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("mux stream {} read closed {}", id, e.toString());
+                close(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close(true);
+            } finally {
+                buffer.release();
+            }
+        }
+
+        /**
+         * 链路到本地连接：写出后累计归还窗口，达到窗口一半时发送一次 WINDOW
+         */
+        private void pumpRemote() {
+            RelaySession relaySession = session;
+            int consumed = 0;
+            try {
+                OutputStream localOutput = DataTransHandler.outputStream(socket);
+                while (true) {
+                    byte[] data = inbound.take();
+                    if (data == CLOSE_MARK) {
+                        return;
+                    }
+                    if (data == FIN_MARK) {
+                        socket.shutdownOutput();
+                        finish(false);
+                        return;
+                    }
+                    localOutput.write(data);
+                    buffered.addAndGet(-data.length);
+                    consumed += data.length;
+                    if (consumed >= window / 2) {
+                        link.send(frame(WINDOW, id, consumed));
+                        consumed = 0;
+                    }
+                    if (link.client) {
+                        relaySession.recordDownstream(data.length);
+                        RateLimiter.pause(relaySession.downstreamDelay(data.length));
+                    } else {
+                        relaySession.recordUpstream(data.length);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("mux stream {} write closed {}", id, e.toString());
+                close(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close(true);
+            }
+        }
+
+        /**
+         * 两个方向都正常结束后关闭流
+         *
+         * @param local true 为本地连接读完，false 为对端数据写完
+         */
+        private void finish(boolean local) {
+            boolean done;
+            synchronized (this) {
+                if (local) {
+                    localFinished = true;
+                } else {
+                    remoteFinished = true;
+                }
+                done = localFinished && remoteFinished;
+            }
+            if (done) {
+                close(false);
+            }
+        }
+
+        /**
+         * @param reset 是否通知对端关闭流
+         */
+        void close(boolean reset) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            link.streams.remove(id);
+            if (reset) {
+                link.send(frame(RST, id));
+            }
+            Socket localSocket = socket;
+            if (localSocket != null) {
+                closeQuietly(localSocket);
+            }
+            inbound.offer(CLOSE_MARK);
+            synchronized (this) {
+                notifyAll();
+            }
+            RelaySession relaySession = session;
+            if (relaySession != null) {
+                relaySession.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 Selector 的数据转发引擎
+ * 固定数量的事件循环线程复用所有客户端/目标连接对，线程数与会话数无关。
+ * 每个事件循环共享一块读缓冲区，只有对端暂时写不进去时才从缓冲区池借用待发送缓冲区，
+ * 写完即归还，因此大量空闲会话几乎不占用内存。
+ */
+public class NioRelayEngine {
+
+    private static final Logger log = Logger.get("relay");
+
+    private static EventLoop[] eventLoops;
+
+    private static final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * 启动事件循环线程
+     *
+     * @param threads 事件循环线程数
+     */
+    public static synchronized void start(int threads) throws IOException {
+        if (eventLoops != null) {
+            return;
+        }
+        EventLoop[] loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("nio-relay-" + i);
+            loops[i].start();
+        }
+        eventLoops = loops;
+        log.info("NIO relay engine started with {} event loops", threads);
+    }
+
+    /**
+     * 将客户端与目标连接注册到事件循环，之后两端数据由事件循环负责转发
+     *
+     * @param relaySession 转发会话，两端连接必须是 SocketChannel
+     */
+    public static void register(RelaySession relaySession) throws IOException {
+        EventLoop[] loops = eventLoops;
+        if (loops == null) {
+            throw new IllegalStateException("nio relay engine not started");
+        }
+        SocketChannel client = relaySession.getClientSocket().getChannel();
+        SocketChannel target = relaySession.getTargetSocket().getChannel();
+        client.configureBlocking(false);
+        target.configureBlocking(false);
+        EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        Session session = new Session(loop, client, target, relaySession);
+        // 空闲超时等外部关闭请求转交给事件循环线程执行
+        relaySession.setCloseHandler(() -> loop.execute(session::close));
+        loop.execute(session::register);
+    }
+
+    /**
+     * 单个事件循环，独占一个线程与一个 Selector
+     */
+    private static class EventLoop extends Thread {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean wakeup = new AtomicBoolean();
+
+        // 事件循环共享的读缓冲区，大小为缓冲区池的最大规格
+        private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(BufferPool.channel().maxSize());
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            taskQueue.add(task);
+            if (Thread.currentThread() != this && wakeup.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeup.set(false);
+                    runTasks();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        endpoint.session.handle(endpoint, key);
+                    }
+                } catch (Throwable e) {
+                    // 单个会话的异常在 handle 内部处理，这里只兜底防止事件循环退出
+                    log.error("event loop error", e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = taskQueue.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("event loop error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 连接的一端。pending 保存发往本端但尚未写完的数据
+     */
+    private static class Endpoint {
+
+        final Session session;
+
+        final SocketChannel channel;
+
+        SelectionKey key;
+
+        Endpoint peer;
+
+        ByteBuffer pending;
+
+        // 已从本端读到 EOF
+        boolean inputEnded;
+
+        // 已对本端执行 shutdownOutput
+        boolean outputShutdown;
+
+        // 超出限速，暂停读取本端
+        boolean readPaused;
+
+        Endpoint(Session session, SocketChannel channel) {
+            this.session = session;
+            this.channel = channel;
+        }
+
+        int interestOps() {
+            int ops = 0;
+            if (!inputEnded && !readPaused && peer.pending == null) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (pending != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+    }
+
+    /**
+     * 一个客户端与目标之间的转发会话，所有方法只在所属事件循环线程内调用
+     */
+    private static class Session {
+
+        final EventLoop loop;
+
+        final RelaySession relaySession;
+
+        final String sessionId;
+
+        final Endpoint client;
+
+        final Endpoint target;
+
+        boolean closed;
+
+        Session(EventLoop loop, SocketChannel clientChannel, SocketChannel targetChannel, RelaySession relaySession) {
+            this.loop = loop;
+            this.relaySession = relaySession;
+            this.sessionId = relaySession.getSessionId();
+            this.client = new Endpoint(this, clientChannel);
+            this.target = new Endpoint(this, targetChannel);
+            this.client.peer = target;
+            this.target.peer = client;
+        }
+
+        void register() {
+            if (closed) {
+                return;
+            }
+            try {
+                client.key = client.channel.register(loop.selector, SelectionKey.OP_READ, client);
+                target.key = target.channel.register(loop.selector, SelectionKey.OP_READ, target);
+            } catch (IOException e) {
+                log.error("register session failed:{}", sessionId, e);
+                close();
+            }
+        }
+
+        void handle(Endpoint endpoint, SelectionKey key) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (key.isWritable()) {
+                    flush(endpoint);
+                }
+                if (!closed && key.isReadable()) {
+                    read(endpoint);
+                }
+                if (!closed) {
+                    updateInterest();
+                }
+            } catch (CancelledKeyException e) {
+                close();
+            } catch (IOException e) {
+                String message = e.getMessage();
+                if (message != null && (message.contains("Connection reset") || message.contains("Broken pipe"))) {
+                    log.debug("Connection reset by peer:{}", sessionId);
+                } else {
+                    log.error("relay error:{}", sessionId, e);
+                }
+                close();
+            }
+        }
+
+        /**
+         * 从一端读取数据并立即写往另一端，写不完的部分暂存到对端的 pending 中
+         */
+        private void read(Endpoint from) throws IOException {
+            Endpoint to = from.peer;
+            ByteBuffer buffer = loop.ioBuffer;
+            buffer.clear();
+            buffer.limit(relaySession.readLimit(buffer.capacity()));
+            int bytesRead = from.channel.read(buffer);
+            if (bytesRead < 0) {
+                from.inputEnded = true;
+                shutdownOutputIfDrained(to);
+                return;
+            }
+            if (bytesRead == 0) {
+                return;
+            }
+            long delay;
+            if (from == client) {
+                relaySession.recordUpstream(bytesRead);
+                delay = relaySession.upstreamDelay(bytesRead);
+            } else {
+                relaySession.recordDownstream(bytesRead);
+                delay = relaySession.downstreamDelay(bytesRead);
+            }
+            if (delay > 0) {
+                pauseRead(from, delay);
+            }
+            buffer.flip();
+            to.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                BufferPool pool = BufferPool.channel();
+                ByteBuffer pending = pool.acquire(pool.indexFor(buffer.remaining()));
+                pending.put(buffer);
+                pending.flip();
+                to.pending = pending;
+            }
+        }
+
+        /**
+         * 超出限速时暂停读取，到期后由时间轮转交事件循环恢复读事件
+         */
+        private void pauseRead(Endpoint from, long delayNanos) {
+            from.readPaused = true;
+            RateLimiter.recordPause(delayNanos);
+            SessionMonitor.timer().newTimeout(() -> loop.execute(() -> {
+                from.readPaused = false;
+                if (!closed) {
+                    updateInterest();
+                }
+            }), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void flush(Endpoint to) throws IOException {
+            ByteBuffer pending = to.pending;
+            if (pending == null) {
+                return;
+            }
+            to.channel.write(pending);
+            if (!pending.hasRemaining()) {
+                BufferPool.channel().release(pending);
+                to.pending = null;
+                shutdownOutputIfDrained(to);
+            }
+        }
+
+        /**
+         * 对端已经 EOF 且数据已写完时，半关闭本端的输出，把 EOF 传递过去
+         */
+        private void shutdownOutputIfDrained(Endpoint to) throws IOException {
+            if (to.peer.inputEnded && to.pending == null && !to.outputShutdown) {
+                to.outputShutdown = true;
+                to.channel.shutdownOutput();
+            }
+            if (client.inputEnded && target.inputEnded && client.outputShutdown && target.outputShutdown) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            client.key.interestOps(client.interestOps());
+            target.key.interestOps(target.interestOps());
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeQuietly(client.channel);
+            closeQuietly(target.channel);
+            BufferPool.channel().release(client.pending);
+            BufferPool.channel().release(target.pending);
+            client.pending = null;
+            target.pending = null;
+            relaySession.close();
+            log.info("close connection ：{}", sessionId);
+        }
+
+        private static void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.util.TokenBucket;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 带宽限速
+ * 分为全局、用户、客户端 IP、会话四级令牌桶，上行（客户端到目标）与下行分别限速，
+ * 一次读取的字节数计入会话所属的每一级，按等待时间最长的一级暂停该方向的读取：
+ * 阻塞转发直接暂停读线程，NIO 转发暂时取消读事件。暂停读取后 TCP 窗口收紧，由对端减速，不会在代理内堆积数据。
+ * 同一用户、同一 IP 的多个会话共用一组令牌桶，最后一个会话关闭时释放。
+ */
+public class RateLimiter {
+
+    private static volatile Config config = new Config();
+
+    private static final Map<String, SharedBuckets> USER_BUCKETS = new ConcurrentHashMap<>();
+
+    private static final Map<String, SharedBuckets> IP_BUCKETS = new ConcurrentHashMap<>();
+
+    private static final LongAdder pauseCount = new LongAdder();
+
+    private static final LongAdder pauseNanos = new LongAdder();
+
+    /**
+     * 速率单位为字节/秒，可以带 k/m/g 后缀（1024 进制），0 或不配置表示不限速
+     * proxy.limit.global.upload / download 全局
+     * proxy.limit.user.upload / download 每个认证用户，proxy.limit.user.<用户名>.upload / download 单独设置某个用户
+     * proxy.limit.ip.upload / download 每个客户端 IP
+     * proxy.limit.session.upload / download 每个会话
+     * proxy.limit.burstMillis 允许的突发时长毫秒数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        Config loaded = new Config();
+        loaded.burstMillis = Long.parseLong(properties.getProperty("proxy.limit.burstMillis", "200").trim());
+        loaded.globalUpload = bucket(parseRate(properties.getProperty("proxy.limit.global.upload")), loaded.burstMillis);
+        loaded.globalDownload = bucket(parseRate(properties.getProperty("proxy.limit.global.download")), loaded.burstMillis);
+        loaded.userUpload = parseRate(properties.getProperty("proxy.limit.user.upload"));
+        loaded.userDownload = parseRate(properties.getProperty("proxy.limit.user.download"));
+        loaded.ipUpload = parseRate(properties.getProperty("proxy.limit.ip.upload"));
+        loaded.ipDownload = parseRate(properties.getProperty("proxy.limit.ip.download"));
+        loaded.sessionUpload = parseRate(properties.getProperty("proxy.limit.session.upload"));
+        loaded.sessionDownload = parseRate(properties.getProperty("proxy.limit.session.download"));
+        String prefix = "proxy.limit.user.";
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            String rest = key.substring(prefix.length());
+            if (rest.endsWith(".upload")) {
+                loaded.userOverrides.computeIfAbsent(rest.substring(0, rest.length() - 7), k -> new long[2])[0] = parseRate(properties.getProperty(key));
+            } else if (rest.endsWith(".download")) {
+                loaded.userOverrides.computeIfAbsent(rest.substring(0, rest.length() - 9), k -> new long[2])[1] = parseRate(properties.getProperty(key));
+            }
+        }
+        config = loaded;
+    }
+
+    /**
+     * 为新会话创建限速器
+     *
+     * @param user     认证用户名，未认证为 null
+     * @param clientIp 客户端 IP
+     * @return 没有任何一级限速时返回 null，转发时不做任何额外处理
+     */
+    public static Shaper forSession(String user, InetAddress clientIp) {
+        Config current = config;
+        Shaper shaper = new Shaper();
+        shaper.add(current.globalUpload, current.globalDownload);
+        if (user != null) {
+            long[] override = current.userOverrides.get(user);
+            long upload = override != null && override[0] > 0 ? override[0] : current.userUpload;
+            long download = override != null && override[1] > 0 ? override[1] : current.userDownload;
+            if (upload > 0 || download > 0) {
+                shaper.share(USER_BUCKETS, user, upload, download, current.burstMillis);
+            }
+        }
+        if (clientIp != null && (current.ipUpload > 0 || current.ipDownload > 0)) {
+            shaper.share(IP_BUCKETS, clientIp.getHostAddress(), current.ipUpload, current.ipDownload, current.burstMillis);
+        }
+        shaper.add(bucket(current.sessionUpload, current.burstMillis), bucket(current.sessionDownload, current.burstMillis));
+        return shaper.isEmpty() ? null : shaper;
+    }
+
+    /**
+     * 暂停当前线程，阻塞转发在限速时调用
+     */
+    public static void pause(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        recordPause(nanos);
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    static void recordPause(long nanos) {
+        pauseCount.increment();
+        pauseNanos.add(nanos);
+    }
+
+    public static long getPauseCount() {
+        return pauseCount.sum();
+    }
+
+    public static double getPauseSeconds() {
+        return pauseNanos.sum() / 1e9;
+    }
+
+    /**
+     * 解析速率，支持 k/m/g 后缀
+     */
+    static long parseRate(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        String rate = value.trim().toLowerCase();
+        long unit = 1;
+        char last = rate.charAt(rate.length() - 1);
+        if (last == 'k') {
+            unit = 1024;
+        } else if (last == 'm') {
+            unit = 1024 * 1024;
+        } else if (last == 'g') {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            rate = rate.substring(0, rate.length() - 1).trim();
+        }
+        return Long.parseLong(rate) * unit;
+    }
+
+    private static TokenBucket bucket(long bytesPerSecond, long burstMillis) {
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burstMillis) : null;
+    }
+
+    private static class Config {
+
+        long burstMillis = 200;
+
+        TokenBucket globalUpload;
+
+        TokenBucket globalDownload;
+
+        long userUpload;
+
+        long userDownload;
+
+        // 用户名 -> {上行, 下行}
+        final Map<String, long[]> userOverrides = new HashMap<>();
+
+        long ipUpload;
+
+        long ipDownload;
+
+        long sessionUpload;
+
+        long sessionDownload;
+    }
+
+    /**
+     * 多个会话共用的一组令牌桶，references 只在 Map 的 compute 内修改
+     */
+    private static class SharedBuckets {
+
+        final TokenBucket upload;
+
+        final TokenBucket download;
+
+        int references;
+
+        SharedBuckets(long upload, long download, long burstMillis) {
+            this.upload = bucket(upload, burstMillis);
+            this.download = bucket(download, burstMillis);
+        }
+    }
+
+    /**
+     * 一个会话的限速器，持有会话所属各级的令牌桶
+     */
+    public static class Shaper {
+
+        // 一次读取不超过最小的突发容量，避免低速限制下一次读取就欠下很长的等待时间
+        private static final int MIN_CHUNK = 1024;
+
+        private final List<TokenBucket> upload = new ArrayList<>(4);
+
+        private final List<TokenBucket> download = new ArrayList<>(4);
+
+        private final List<Runnable> releases = new ArrayList<>(2);
+
+        private int chunkSize = Integer.MAX_VALUE;
+
+        private void add(TokenBucket up, TokenBucket down) {
+            if (up != null) {
+                upload.add(up);
+                chunkSize = (int) Math.min(chunkSize, Math.max(MIN_CHUNK, up.getBurstBytes()));
+            }
+            if (down != null) {
+                download.add(down);
+                chunkSize = (int) Math.min(chunkSize, Math.max(MIN_CHUNK, down.getBurstBytes()));
+            }
+        }
+
+        private void share(Map<String, SharedBuckets> map, String key, long up, long down, long burstMillis) {
+            SharedBuckets shared = map.compute(key, (k, buckets) -> {
+                if (buckets == null) {
+                    buckets = new SharedBuckets(up, down, burstMillis);
+                }
+                buckets.references++;
+                return buckets;
+            });
+            add(shared.upload, shared.download);
+            releases.add(() -> map.computeIfPresent(key, (k, buckets) -> --buckets.references == 0 ? null : buckets));
+        }
+
+        private boolean isEmpty() {
+            return upload.isEmpty() && download.isEmpty();
+        }
+
+        /**
+         * 上行读取了 bytes 字节
+         *
+         * @return 下一次读取上行前需要暂停的纳秒数
+         */
+        public long upstream(int bytes) {
+            return consume(upload, bytes);
+        }
+
+        /**
+         * 下行读取了 bytes 字节
+         *
+         * @return 下一次读取下行前需要暂停的纳秒数
+         */
+        public long downstream(int bytes) {
+            return consume(download, bytes);
+        }
+
+        /**
+         * 一次读取的最大字节数
+         */
+        public int chunkSize() {
+            return chunkSize;
+        }
+
+        private static long consume(List<TokenBucket> buckets, int bytes) {
+            long wait = 0;
+            for (int i = 0; i < buckets.size(); i++) {
+                wait = Math.max(wait, buckets.get(i).consume(bytes));
+            }
+            return wait;
+        }
+
+        /**
+         * 会话关闭时释放共用的令牌桶
+         */
+        void release() {
+            for (Runnable release : releases) {
+                release.run();
+            }
+            releases.clear();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.util.HashedWheelTimer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一次客户端与目标之间的转发会话
+ * 记录最后活跃时间供空闲检测使用，统计两个方向的字节数与读取次数，关闭时同时关闭两端连接
+ */
+public class RelaySession {
+
+    private final String sessionId = UUID.randomUUID().toString();
+
+    private final Socket clientSocket;
+
+    private final Socket targetSocket;
+
+    private final long createTime = System.currentTimeMillis();
+
+    private volatile long lastActivity = createTime;
+
+    // 客户端到目标为上行，目标到客户端为下行
+    private final LongAdder upstreamBytes = new LongAdder();
+
+    private final LongAdder upstreamPackets = new LongAdder();
+
+    private final LongAdder downstreamBytes = new LongAdder();
+
+    private final LongAdder downstreamPackets = new LongAdder();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // 认证用户名，未认证为 null
+    private volatile String user;
+
+    // 限速器，为 null 表示不限速
+    private volatile RateLimiter.Shaper shaper;
+
+    // 转发引擎自定义的关闭动作，NIO 引擎需要在事件循环线程内关闭通道
+    private volatile Runnable closeHandler;
+
+    volatile HashedWheelTimer.Timeout idleTimeout;
+
+    public RelaySession(Socket clientSocket, Socket targetSocket) {
+        this.clientSocket = clientSocket;
+        this.targetSocket = targetSocket;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public Socket getClientSocket() {
+        return clientSocket;
+    }
+
+    public Socket getTargetSocket() {
+        return targetSocket;
+    }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * 记录一次数据收发
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * 记录一次从客户端读到并转发给目标的数据
+     */
+    public void recordUpstream(int bytes) {
+        upstreamBytes.add(bytes);
+        upstreamPackets.increment();
+        MetricsService.recordUpstream(bytes);
+        touch();
+    }
+
+    /**
+     * 记录一次从目标读到并转发给客户端的数据
+     */
+    public void recordDownstream(int bytes) {
+        downstreamBytes.add(bytes);
+        downstreamPackets.increment();
+        MetricsService.recordDownstream(bytes);
+        touch();
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    void setUser(String user) {
+        this.user = user;
+    }
+
+    void setShaper(RateLimiter.Shaper shaper) {
+        this.shaper = shaper;
+    }
+
+    /**
+     * 限速时一次读取的最大字节数
+     *
+     * @param capacity 缓冲区大小
+     */
+    public int readLimit(int capacity) {
+        RateLimiter.Shaper current = shaper;
+        return current == null ? capacity : Math.min(capacity, current.chunkSize());
+    }
+
+    /**
+     * 上行限速，在 recordUpstream 之后调用
+     *
+     * @return 下一次读取客户端前需要暂停的纳秒数，0 表示不需要暂停
+     */
+    public long upstreamDelay(int bytes) {
+        RateLimiter.Shaper current = shaper;
+        return current == null ? 0 : current.upstream(bytes);
+    }
+
+    /**
+     * 下行限速，在 recordDownstream 之后调用
+     *
+     * @return 下一次读取目标前需要暂停的纳秒数，0 表示不需要暂停
+     */
+    public long downstreamDelay(int bytes) {
+        RateLimiter.Shaper current = shaper;
+        return current == null ? 0 : current.downstream(bytes);
+    }
+
+    public long getUpstreamBytes() {
+        return upstreamBytes.sum();
+    }
+
+    public long getUpstreamPackets() {
+        return upstreamPackets.sum();
+    }
+
+    public long getDownstreamBytes() {
+        return downstreamBytes.sum();
+    }
+
+    public long getDownstreamPackets() {
+        return downstreamPackets.sum();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    void setCloseHandler(Runnable closeHandler) {
+        this.closeHandler = closeHandler;
+    }
+
+    /**
+     * 关闭会话，可重复调用，只有第一次生效
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        SessionMonitor.unregister(this);
+        AdmissionControl.release(clientSocket);
+        RateLimiter.Shaper current = shaper;
+        if (current != null) {
+            current.release();
+        }
+        Runnable handler = closeHandler;
+        if (handler != null) {
+            handler.run();
+        } else {
+            closeQuietly(clientSocket);
+            closeQuietly(targetSocket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
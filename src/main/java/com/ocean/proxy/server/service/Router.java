@@ -0,0 +1,336 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.CidrTree;
+import com.ocean.proxy.server.util.DomainTrie;
+import com.ocean.proxy.server.util.IpUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * 目标路由
+ * 按规则文件决定每个目标连接的走向：直连、拒绝，或经某个上游代理（SOCKS5/HTTP CONNECT）。
+ * 规则按文件中的顺序匹配，第一条匹配的规则生效，都不匹配时使用 proxy.route.default。
+ * 加载时把域名规则编译为后缀树、CIDR 规则编译为前缀树，查询耗时只与域名标签数/地址位数有关，
+ * 规则数量上千时每次握手也只增加微秒级开销。没有配置任何规则时路由完全跳过。
+ * <p>
+ * 规则文件每行一条：类型 值 动作 [端口]
+ * <pre>
+ * domain  example.com      direct          # 域名后缀，匹配 example.com 与 *.example.com
+ * cidr    10.0.0.0/8       reject          # 网段，IPv4/IPv6
+ * port    25,465           reject          # 只按端口匹配
+ * domain  google.com       hk    443,8000-9000
+ * </pre>
+ * 动作为 direct、reject 或 proxy.route.upstream.名称 配置的上游代理名称。
+ */
+public class Router {
+
+    private static final Logger log = Logger.get("route");
+
+    public static final String DIRECT = "direct";
+
+    public static final String REJECT = "reject";
+
+    private static final Route DIRECT_ROUTE = new Route(DIRECT, null, false);
+
+    // 没有规则时为 null
+    private static volatile Table table;
+
+    /**
+     * proxy.route.file 规则文件路径，不配置时使用 classpath 中的 route.txt
+     * proxy.route.default 没有规则匹配时的动作
+     * proxy.route.upstream.名称 上游代理地址，socks5://[用户名:密码@]主机:端口 或 http://...
+     * proxy.route.resolve 目标为域名时是否解析后再匹配 CIDR 规则
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException {
+        Table loaded = new Table();
+        loaded.resolve = Boolean.parseBoolean(properties.getProperty("proxy.route.resolve", "false").trim());
+        loaded.routes.put(DIRECT, DIRECT_ROUTE);
+        loaded.routes.put(REJECT, new Route(REJECT, null, true));
+        String prefix = "proxy.route.upstream.";
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                String name = key.substring(prefix.length());
+                ChainedProxy upstream = ChainedProxy.parse(name, properties.getProperty(key));
+                loaded.routes.put(name, new Route(name, upstream, false));
+                log.info("upstream {}", upstream);
+            }
+        }
+        String defaultAction = properties.getProperty("proxy.route.default", DIRECT).trim();
+        loaded.defaultRoute = loaded.routeOf(defaultAction, "proxy.route.default");
+
+        List<String> lines = readRules(properties.getProperty("proxy.route.file"));
+        for (int i = 0; i < lines.size(); i++) {
+            try {
+                loaded.addRule(lines.get(i));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("invalid route rule at line " + (i + 1) + ": " + lines.get(i), e);
+            }
+        }
+        loaded.domains.trim();
+        loaded.cidrs.trim();
+        if (loaded.ruleCount == 0 && loaded.defaultRoute == DIRECT_ROUTE) {
+            table = null;
+            return;
+        }
+        table = loaded;
+        log.info("load {} route rules: {} domain, {} cidr, {} port, default {}", loaded.ruleCount,
+                loaded.domains.size(), loaded.cidrs.size(), loaded.portRules.length, defaultAction);
+    }
+
+    private static List<String> readRules(String file) throws IOException {
+        InputStream input;
+        if (file != null && !file.trim().isEmpty()) {
+            input = Files.newInputStream(Paths.get(file.trim()));
+        } else {
+            URL url = Router.class.getClassLoader().getResource("route.txt");
+            if (url == null) {
+                return Collections.emptyList();
+            }
+            input = url.openStream();
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 为目标选择路由
+     *
+     * @param host 目标域名或 IP
+     * @param port 目标端口
+     */
+    public static Route route(String host, int port) {
+        Table current = table;
+        if (current == null) {
+            return DIRECT_ROUTE;
+        }
+        Route route = current.match(host, port);
+        route.count.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("route {}:{} -> {}", host, port, route.name);
+        }
+        return route;
+    }
+
+    /**
+     * 已配置的全部路由，没有规则时为空
+     */
+    public static Collection<Route> routes() {
+        Table current = table;
+        return current == null ? Collections.emptyList() : current.routes.values();
+    }
+
+    /**
+     * 端口条件，格式 443 或 8000-9000，多个用逗号分隔
+     *
+     * @return {起始, 结束, 起始, 结束, ...}
+     */
+    private static int[] parsePorts(String value) {
+        String[] items = value.split(",");
+        int[] ranges = new int[items.length * 2];
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i].trim();
+            int dash = item.indexOf('-');
+            int from = Integer.parseInt(dash >= 0 ? item.substring(0, dash).trim() : item);
+            int to = dash >= 0 ? Integer.parseInt(item.substring(dash + 1).trim()) : from;
+            if (from < 0 || to > 65535 || from > to) {
+                throw new IllegalArgumentException("invalid port range: " + item);
+            }
+            ranges[i * 2] = from;
+            ranges[i * 2 + 1] = to;
+        }
+        return ranges;
+    }
+
+    /**
+     * 编译后的规则表，加载完成后只读
+     */
+    private static class Table {
+
+        final Map<String, Route> routes = new LinkedHashMap<>();
+
+        final DomainTrie domains = new DomainTrie();
+
+        final CidrTree cidrs = new CidrTree();
+
+        // 规则序号 -> 动作
+        final List<Route> ruleRoutes = new ArrayList<>();
+
+        // 规则序号 -> 端口条件，null 表示任意端口
+        final List<int[]> rulePorts = new ArrayList<>();
+
+        int[] portRules = new int[0];
+
+        int minCidrRule = CidrTree.NO_MATCH;
+
+        int ruleCount;
+
+        Route defaultRoute;
+
+        boolean resolve;
+
+        Route routeOf(String action, String source) {
+            Route route = routes.get(action);
+            if (route == null) {
+                throw new IllegalArgumentException("unknown route action " + action + " in " + source);
+            }
+            return route;
+        }
+
+        void addRule(String line) {
+            int comment = line.indexOf('#');
+            String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (text.isEmpty()) {
+                return;
+            }
+            String[] fields = text.split("\\s+");
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IllegalArgumentException("expect: type value action [ports]");
+            }
+            int rule = ruleCount;
+            String type = fields[0].toLowerCase();
+            if ("port".equals(type)) {
+                if (fields.length != 3) {
+                    throw new IllegalArgumentException("port rule takes no extra ports");
+                }
+                rulePorts.add(parsePorts(fields[1]));
+                portRules = Arrays.copyOf(portRules, portRules.length + 1);
+                portRules[portRules.length - 1] = rule;
+            } else if ("domain".equals(type)) {
+                rulePorts.add(fields.length == 4 ? parsePorts(fields[3]) : null);
+                domains.add(fields[1], rule);
+            } else if ("cidr".equals(type)) {
+                rulePorts.add(fields.length == 4 ? parsePorts(fields[3]) : null);
+                String value = fields[1];
+                int slash = value.indexOf('/');
+                InetAddress address = IpUtil.parseLiteral(slash >= 0 ? value.substring(0, slash) : value);
+                if (address == null) {
+                    throw new IllegalArgumentException("invalid cidr: " + value);
+                }
+                byte[] bytes = address.getAddress();
+                int prefixLength = slash >= 0 ? Integer.parseInt(value.substring(slash + 1)) : bytes.length * 8;
+                cidrs.add(bytes, prefixLength, rule);
+                minCidrRule = Math.min(minCidrRule, rule);
+            } else {
+                throw new IllegalArgumentException("unknown rule type: " + fields[0]);
+            }
+            ruleRoutes.add(routeOf(fields[2], "rule"));
+            ruleCount++;
+        }
+
+        Route match(String host, int port) {
+            IntPredicate accept = rule -> {
+                int[] ranges = rulePorts.get(rule);
+                if (ranges == null) {
+                    return true;
+                }
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (port >= ranges[i] && port <= ranges[i + 1]) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+            int best = CidrTree.NO_MATCH;
+            for (int rule : portRules) {
+                if (accept.test(rule)) {
+                    best = rule;
+                    break;
+                }
+            }
+            InetAddress literal = IpUtil.parseLiteral(host);
+            if (literal != null) {
+                best = Math.min(best, cidrs.match(literal.getAddress(), accept));
+            } else {
+                best = Math.min(best, domains.match(host, accept));
+                // 只有可能存在更靠前的 CIDR 规则时才解析域名
+                if (resolve && minCidrRule < best) {
+                    try {
+                        best = Math.min(best, cidrs.match(DnsResolver.resolve(host)[0].getAddress(), accept));
+                    } catch (UnknownHostException ignored) {
+                        // 解析失败留给连接阶段报错
+                    }
+                }
+            }
+            return best == CidrTree.NO_MATCH ? defaultRoute : ruleRoutes.get(best);
+        }
+    }
+
+    /**
+     * 一条路由：直连、拒绝或某个上游代理
+     */
+    public static class Route {
+
+        private final String name;
+
+        private final ChainedProxy upstream;
+
+        private final boolean reject;
+
+        private final LongAdder count = new LongAdder();
+
+        private Route(String name, ChainedProxy upstream, boolean reject) {
+            this.name = name;
+            this.upstream = upstream;
+            this.reject = reject;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isReject() {
+            return reject;
+        }
+
+        /**
+         * 按路由连接目标，直连时只连接访问控制检查过的地址；经上游代理时仍把域名交给上游解析
+         *
+         * @param addresses AccessControl.checkTarget 返回的地址，为 UNRESOLVED 时直连照常解析
+         */
+        public Socket connect(String host, int port, InetAddress[] addresses) throws IOException {
+            if (reject) {
+                throw new IOException("connection to " + host + ":" + port + " rejected by route rules");
+            }
+            if (upstream != null) {
+                return upstream.connect(host, port);
+            }
+            return addresses.length > 0 ? Dialer.connect(addresses, port) : Dialer.connect(host, port);
+        }
+
+        /**
+         * 选择该路由的连接数
+         */
+        public long getCount() {
+            return count.sum();
+        }
+    }
+}
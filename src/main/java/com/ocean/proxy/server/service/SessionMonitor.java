@@ -0,0 +1,116 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.HashedWheelTimer;
+
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话存活检测
+ * 所有会话共用一个时间轮，每个会话只挂一个超时任务：到期时检查最后活跃时间，
+ * 配置了 proxy.session.idleTimeout 时，空闲超过该秒数则关闭会话，否则按剩余时间重新挂上；默认不检测。
+ * 对端异常断开由 TCP keepalive 探测，不再占用线程发送紧急数据。
+ * 同时维护当前活跃的会话，供监控接口查询。
+ */
+public class SessionMonitor {
+
+    private static final Logger log = Logger.get("relay");
+
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer("session-timer", 100, 512);
+
+    private static final Map<String, RelaySession> SESSIONS = new ConcurrentHashMap<>();
+
+    // 空闲超时，毫秒，0 表示不检测
+    private static volatile long idleTimeoutMillis = 0;
+
+    private static volatile boolean keepAlive = true;
+
+    /**
+     * proxy.session.idleTimeout 会话空闲超时秒数，默认 0 不限制，静默的长连接不会被断开
+     * proxy.session.keepAlive 是否为两端连接开启 TCP keepalive
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.session.idleTimeout", "0").trim()));
+        keepAlive = Boolean.parseBoolean(properties.getProperty("proxy.session.keepAlive", "true").trim());
+    }
+
+    /**
+     * 公共时间轮，其他模块的低精度定时任务也可以使用
+     */
+    public static HashedWheelTimer timer() {
+        return TIMER;
+    }
+
+    public static void register(RelaySession session) {
+        SESSIONS.put(session.getSessionId(), session);
+        MetricsService.recordSessionOpen();
+        if (keepAlive) {
+            try {
+                session.getClientSocket().setKeepAlive(true);
+                // UDP 关联没有目标连接
+                if (session.getTargetSocket() != null) {
+                    session.getTargetSocket().setKeepAlive(true);
+                }
+            } catch (SocketException e) {
+                log.warn("set keepalive failed:{}", session.getSessionId());
+            }
+        }
+        long timeout = idleTimeoutMillis;
+        if (timeout > 0) {
+            schedule(session, timeout);
+        }
+    }
+
+    static void unregister(RelaySession session) {
+        if (SESSIONS.remove(session.getSessionId()) != null) {
+            MetricsService.recordSessionClose();
+        }
+        HashedWheelTimer.Timeout timeout = session.idleTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 当前活跃的会话
+     */
+    public static Collection<RelaySession> sessions() {
+        return SESSIONS.values();
+    }
+
+    public static int getActiveCount() {
+        return SESSIONS.size();
+    }
+
+    private static void schedule(RelaySession session, long delayMillis) {
+        session.idleTimeout = TIMER.newTimeout(() -> checkIdle(session), delayMillis, TimeUnit.MILLISECONDS);
+        // 注册与关闭并发时，保证已关闭的会话不会残留超时任务
+        if (session.isClosed()) {
+            session.idleTimeout.cancel();
+        }
+    }
+
+    private static void checkIdle(RelaySession session) {
+        if (session.isClosed()) {
+            return;
+        }
+        long timeout = idleTimeoutMillis;
+        if (timeout <= 0) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - session.getLastActivity();
+        if (idle >= timeout) {
+            log.info("session idle timeout :{}", session.getSessionId());
+            session.close();
+        } else {
+            schedule(session, timeout - idle);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.LogManager;
+import com.ocean.proxy.server.log.Logger;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 优雅停机
+ * 进程收到 SIGTERM/SIGINT 时在关闭钩子内依次执行：关闭全部监听端口停止接收新连接，
+ * 关闭空闲的 HTTP 长连接，等待正在握手的连接完成握手，等待活跃会话自然结束，到达 proxy.shutdown.timeout 后强制关闭剩余会话，
+ * 最后输出统计并写出全部日志。整个过程中已建立的会话照常转发。
+ */
+public class ShutdownService {
+
+    private static final Logger log = Logger.get("server");
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private static boolean hooked;
+
+    /**
+     * proxy.shutdown.timeout 停机时等待握手与会话结束的最长秒数，超过后强制关闭，0 表示立即关闭
+     *
+     * @param properties 配置
+     */
+    public static synchronized void init(Properties properties) {
+        timeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("proxy.shutdown.timeout", "30").trim()));
+        if (!hooked) {
+            hooked = true;
+            // 日志在停机流程最后写出，不再单独注册钩子
+            LogManager.removeShutdownHook();
+            Runtime.getRuntime().addShutdownHook(new Thread(ShutdownService::shutdown, "proxy-shutdown"));
+        }
+    }
+
+    private static void shutdown() {
+        try {
+            drain();
+        } catch (Throwable e) {
+            log.error("graceful shutdown failed", e);
+        } finally {
+            LogManager.shutdown();
+        }
+    }
+
+    private static void drain() {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        for (AcceptorGroup group : AcceptorGroup.groups()) {
+            group.close();
+        }
+        // HTTP 长连接上没有请求在处理的直接关闭，正在处理的请求完成后关闭
+        HttpProxyServer.shutdown();
+        long closedBefore = MetricsService.getSessionsClosed();
+        log.info("shutting down: stop accepting, {} handshakes and {} sessions in flight, wait at most {}ms",
+                AdmissionControl.getHandshakeCount(), SessionMonitor.getActiveCount(), timeoutMillis);
+
+        // 握手完成的连接会注册为会话，之后与其他会话一起等待
+        awaitUntil(deadline, () -> AdmissionControl.getHandshakeCount() == 0, "handshakes");
+        int handshakes = AdmissionControl.getHandshakeCount();
+        awaitUntil(deadline, () -> SessionMonitor.getActiveCount() == 0, "sessions");
+        long drained = MetricsService.getSessionsClosed() - closedBefore;
+
+        int forced = 0;
+        for (RelaySession session : SessionMonitor.sessions()) {
+            if (!session.isClosed()) {
+                session.close();
+                forced++;
+            }
+        }
+        log.info("shutdown complete in {}ms: {} sessions drained, {} sessions force closed, {} handshakes unfinished",
+                System.currentTimeMillis() - start, drained, forced, handshakes);
+    }
+
+    private static void awaitUntil(long deadline, BooleanSupplier condition, String name) {
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+        while (!condition.getAsBoolean()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                return;
+            }
+            if (now >= nextReport) {
+                nextReport = now + REPORT_INTERVAL_MILLIS;
+                log.info("waiting for {}: {} handshakes, {} sessions, {}ms left", name,
+                        AdmissionControl.getHandshakeCount(), SessionMonitor.getActiveCount(), deadline - now);
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+}
@@ -1,75 +1,95 @@
 package com.ocean.proxy.server.service;
 
-import com.ocean.proxy.server.util.BytesUtil;
-import com.ocean.proxy.server.util.IpUtil;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.SocksCodec.SocksRequest;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 
 /**
- * socket4 协议的服务实现
+ * socket4 协议的服务实现，支持 SOCKS4a 域名请求
  */
 public class Socks4ProxyServer {
 
-    public static void handleClient(Socket clientSocket) {
-        try {
-            InputStream clientInput = clientSocket.getInputStream();
-            OutputStream clientOutput = clientSocket.getOutputStream();
+    private static final Logger log = Logger.get("socks4");
+
+    // 返回的响应信息  | VN | CD | DSTPORT | DSTIP |
+    // VN：长度1字节，响应操作符，固定为0。
+    // CD：长度1字节，响应码.
+    // 90: request granted
+    // 91: request rejected or failed
+    // 92: request rejected because SOCKS server cannot connect to identity on the client
+    // 93: request rejected because the client program and identity report different user-ids
+    private static final int GRANTED = 0x5A;
 
-            //| VN | CD | DSTPORT | DSTIP |
-            // 实现 SOCKS4 握手协商和建立连接的逻辑
-            int cd = clientInput.read();    //长度1字节，操作符号，在本阶段值为1.
-            System.out.println("cd:" + cd);
-            if (cd != 1) {
-                clientInput.close();
-                clientOutput.close();
-                System.out.println("cd error!");
+    private static final int REJECTED = 0x5B;
+
+    /**
+     * 处理 SOCKS4 客户端，版本号还在 reader 中未被消费
+     *
+     * @param reader 客户端的握手读取器
+     */
+    public static void handleClient(HandshakeReader reader) {
+        Socket clientSocket = reader.getSocket();
+        long startNanos = System.nanoTime();
+        boolean handshakeDone = false;
+        try {
+            //| VN | CD | DSTPORT | DSTIP | USERID | NUL |
+            SocksRequest request = reader.read(SocksCodec::decodeSocks4Request);
+            log.debug("cd:{} userId:{}", request.cmd, request.userId);
+            byte[] ip = request.addressType == SocksCodec.ATYP_IPV4 ? request.address : new byte[]{0, 0, 0, 1};
+            if (request.cmd != SocksCodec.CMD_CONNECT) {
+                log.warn("cd error! {}", request.cmd);
+                reader.write(SocksCodec.socks4Reply(REJECTED, request.port, ip));
+                MetricsService.recordHandshake(4, startNanos, false);
+                closeQuietly(clientSocket);
+                return;
+            }
+            log.info("target:{}:{}", request.host, request.port);
+            InetAddress[] addresses = AccessControl.checkTarget(request.host);
+            Router.Route route = addresses != null ? Router.route(request.host, request.port) : null;
+            if (route == null || route.isReject()) {
+                log.info("target rejected by {} {}:{}", route == null ? "acl" : "route rules", request.host, request.port);
+                reader.write(SocksCodec.socks4Reply(REJECTED, request.port, ip));
+                MetricsService.recordHandshake(4, startNanos, false);
+                closeQuietly(clientSocket);
                 return;
             }
-            byte[] dstPort = new byte[2];   //长度2字节，访问目标端口。
-            clientInput.read(dstPort);
-            int targetPort = (int) BytesUtil.toNumberH(dstPort);
-            System.out.println("port:" + targetPort);
-            byte[] dstIp = new byte[4];   //长度4字节，访问目标IP
-            clientInput.read(dstIp);
-            String targetAddress = IpUtil.bytesToIpAddress(dstIp);
-            System.out.println("ip:" + targetAddress);
-            byte[] data = new byte[1024];
-            int len = clientInput.read(data);
             Socket targetSocket;
             try {
-                if (targetAddress.equals("0.0.0.1")) {
-                    byte[] bytes = BytesUtil.splitBytes(data, 1, len - 1);
-                    String domainName = new String(bytes, StandardCharsets.UTF_8);
-                    System.out.println("domainName: " + domainName);
-                    targetSocket = new Socket(domainName, targetPort);
-                } else {
-                    targetSocket = new Socket(targetAddress, targetPort);
-                }
-                DataTransHandler.bindClientAndTarget(clientSocket, targetSocket);
-                // 返回的响应信息  | VN | CD | DSTPORT | DSTIP |
-                // VN：长度1字节，响应操作符，固定为0。
-                // CD：长度1字节，响应码.
-                // 90: request granted
-                // 91: request rejected or failed
-                // 92: request rejected because SOCKS server cannot connect to identity on the client
-                // 93: request rejected because the client program and identity report different user-ids
-                clientOutput.write(new byte[]{(byte) 0x00, (byte) 0x5A, dstPort[1], dstPort[0], dstIp[3], dstIp[2], dstIp[1], dstIp[0]});
-            } catch (Exception e) {
-                e.printStackTrace();
-                clientOutput.write(new byte[]{(byte) 0x00, (byte) 0x5B});
+                targetSocket = route.connect(request.host, request.port, addresses);
+            } catch (IOException e) {
+                log.warn("connect target failed {}:{} via {} {}", request.host, request.port, route.getName(), e.toString());
+                reader.write(SocksCodec.socks4Reply(REJECTED, request.port, ip));
+                MetricsService.recordHandshake(4, startNanos, false);
+                closeQuietly(clientSocket);
+                return;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            // 先返回响应再开始转发，NIO 引擎注册后客户端连接变为非阻塞，不能再通过流写入
             try {
-                clientSocket.close();
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+                reader.write(SocksCodec.socks4Reply(GRANTED, request.port, ip));
+            } catch (IOException e) {
+                closeQuietly(targetSocket);
+                throw e;
+            }
+            handshakeDone = true;
+            MetricsService.recordHandshake(4, startNanos, true);
+            DataTransHandler.bindClientAndTarget(clientSocket, targetSocket, reader.remaining());
+        } catch (Exception e) {
+            if (!handshakeDone) {
+                MetricsService.recordHandshake(4, startNanos, false);
             }
+            log.error("socks4 handshake failed", e);
+            closeQuietly(clientSocket);
         }
     }
 
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.error("close client failed", e);
+        }
+    }
 }
@@ -1,212 +1,226 @@
 package com.ocean.proxy.server.service;
 
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.SocksCodec.SocksRequest;
 import com.ocean.proxy.server.util.BytesUtil;
-import com.ocean.proxy.server.util.IpUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 /**
  * socket5 协议的服务实现
+ * 握手报文通过 HandshakeReader 整块读取、增量解析，每个响应一次写出。
  */
 public class Socks5ProxyServer {
 
-    public static void handleClient(Socket clientSocket, boolean auth) {
+    private static final Logger log = Logger.get("socks5");
+
+    private static final byte[] NO_AUTH = {0x05, 0x00};
+
+    private static final byte[] PASSWORD_AUTH = {0x05, 0x02};
+
+    private static final byte[] NO_ACCEPTABLE_METHODS = {0x05, (byte) 0xFF};
+
+    private static final byte[] AUTH_SUCCESS = {0x01, 0x00};
+
+    private static final byte[] AUTH_FAILURE = {0x01, 0x01};
+
+    private static final byte[] EMPTY_ADDRESS = {0, 0, 0, 0};
+
+    /**
+     * 处理 SOCKS5 客户端，版本号还在 reader 中未被消费
+     *
+     * @param reader 客户端的握手读取器
+     * @param auth   是否要求用户名密码认证
+     */
+    public static void handleClient(HandshakeReader reader, boolean auth) {
+        Socket clientSocket = reader.getSocket();
+        long startNanos = System.nanoTime();
+        boolean handshakeDone = false;
+        // 认证通过的用户名，用于按用户限速
+        String username = null;
         try {
-            InputStream clientInput = clientSocket.getInputStream();
-            OutputStream clientOutput = clientSocket.getOutputStream();
             // 实现 SOCKS 握手协商和建立连接的逻辑
-            int methodsCount = clientInput.read();    //指示其后的 METHOD 字段所占的字节数
-            byte[] methods = new byte[methodsCount];   //methods表示客户端使用的认知方式，0x00表示不认证，0x00：无认证。 0x01：GSSAPI认证（较少使用）。0x02：用户名/密码认证。
-            clientInput.read(methods);
-            String s = BytesUtil.toHexString(methods);
-            System.out.println("client auth type: 0x" + s);
-            if(!auth){
+            //methods表示客户端使用的认知方式，0x00：无认证。 0x01：GSSAPI认证（较少使用）。0x02：用户名/密码认证。
+            byte[] methods = reader.read(SocksCodec::decodeGreeting);
+            if (log.isDebugEnabled()) {
+                log.debug("client auth type: 0x{}", BytesUtil.toHexString(methods));
+            }
+            int method = auth ? 0x02 : 0x00;
+            if (!contains(methods, method)) {
+                // 客户端提供的方法都不可用时回复 0xFF 并关闭连接（RFC 1928）
+                log.warn("client does not support {}", auth ? "password auth" : "no auth");
+                reader.write(NO_ACCEPTABLE_METHODS);
+                MetricsService.recordHandshake(5, startNanos, false);
+                closeQuietly(clientSocket);
+                return;
+            }
+            if (!auth) {
                 // 无需认证的方法，即0x00
-                clientOutput.write(new byte[]{(byte) 0x05, (byte) 0x00});
-            }else{
+                reader.write(NO_AUTH);
+            } else {
                 //用户名密码认证：0x02
-                clientOutput.write(new byte[]{(byte) 0x05, (byte) 0x02});
-                int VER = clientInput.read();
-                int ULEN = clientInput.read();
-                byte[] usernameBytes = new byte[ULEN];
-                clientInput.read(usernameBytes);
-                int PLEN = clientInput.read();
-                byte[] passwdBytes = new byte[PLEN];
-                clientInput.read(passwdBytes);
-                String username = new String(usernameBytes);
-                String passwd = new String(passwdBytes);
-                System.out.println("收到用户名和密码：" + username + " " + passwd);
+                reader.write(PASSWORD_AUTH);
+                String[] credentials = reader.read(SocksCodec::decodeCredentials);
+                username = credentials[0];
+                String passwd = credentials[1];
                 if (!AuthService.checkAuth(username, passwd)) {
-                    System.out.println("认证失败");
-                    clientOutput.write(new byte[]{(byte) 0x05, (byte) 0x01});
+                    log.warn("认证失败 {}", username);
+                    reader.write(AUTH_FAILURE);
+                    MetricsService.recordHandshake(5, startNanos, false);
+                    closeQuietly(clientSocket);
                     return;
-                }else{
-                    System.out.println("认证成功");
-                    clientOutput.write(new byte[]{(byte) 0x05, (byte) 0x00});
                 }
+                log.debug("认证成功 {}", username);
+                reader.write(AUTH_SUCCESS);
             }
 
-            createDataInteraction(clientSocket);
+            SocksRequest request = readRequest(reader);
+            if (request == null) {
+                MetricsService.recordHandshake(5, startNanos, false);
+                closeQuietly(clientSocket);
+                return;
+            }
+            if (request.cmd == SocksCodec.CMD_UDP_ASSOCIATE) {
+                // 控制连接交给 UDP 关联，关联关闭时一起关闭
+                handshakeDone = handleUdpAssociateRequest(reader, request);
+                MetricsService.recordHandshake(5, startNanos, handshakeDone);
+                return;
+            }
+            if (request.cmd == SocksCodec.CMD_BIND) {
+                // 等待对端连入由 BindService 的 accept 线程负责，不占用当前线程
+                handshakeDone = BindService.bind(reader, request, username);
+                MetricsService.recordHandshake(5, startNanos, handshakeDone);
+                if (!handshakeDone) {
+                    closeQuietly(clientSocket);
+                }
+                return;
+            }
+            Socket targetSocket = handleConnectionRequest(reader, request);
+            if (targetSocket == null) {
+                MetricsService.recordHandshake(5, startNanos, false);
+                closeQuietly(clientSocket);
+                return;
+            }
+            handshakeDone = true;
+            MetricsService.recordHandshake(5, startNanos, true);
+            DataTransHandler.bindClientAndTarget(clientSocket, targetSocket, reader.remaining(), username);
         } catch (Exception e) {
-            e.printStackTrace();
-            try {
-                clientSocket.close();
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+            if (!handshakeDone) {
+                MetricsService.recordHandshake(5, startNanos, false);
             }
+            log.error("socks5 handshake failed", e);
+            closeQuietly(clientSocket);
         }
     }
 
-    private static void createDataInteraction(Socket clientSocket)throws Exception{
-        // 这部分逻辑需要根据 SOCKS5 协议规范实现
-        Socket targetSocket = handleConnectionRequest(clientSocket);
-        DataTransHandler.bindClientAndTarget(clientSocket, targetSocket);
+    /**
+     * 读取客户端的正式请求，其中指示所要访问的目标进程的地址, 端口
+     *
+     * @return 请求，不支持的地址类型或命令已向客户端返回错误响应，返回 null
+     */
+    private static SocksRequest readRequest(HandshakeReader reader) throws IOException {
+        SocksRequest request;
+        try {
+            request = reader.read(SocksCodec::decodeSocks5Request);
+        } catch (SocksCodec.UnsupportedAddressTypeException e) {
+            log.warn(e.getMessage());
+            reader.write(SocksCodec.socks5Reply(0x08, SocksCodec.ATYP_IPV4, EMPTY_ADDRESS, 0));
+            return null;
+        }
+        if (request.addressType == SocksCodec.ATYP_IPV6) {
+            log.info("target(IPv6):{}:{}", request.host, request.port);
+        } else {
+            log.info("target:{}:{}", request.host, request.port);
+        }
+        // 共有 3 个取值, 分别为 0x01 (CONNECT), 0x02 (BIND), 0x03 (UDP ASSOCIATE)
+        if (request.cmd != SocksCodec.CMD_CONNECT && request.cmd != SocksCodec.CMD_BIND && request.cmd != SocksCodec.CMD_UDP_ASSOCIATE) {
+            log.warn("not support cmd! {}", request.cmd);
+            reader.write(SocksCodec.socks5Reply(0x07, request));
+            return null;
+        }
+        return request;
     }
 
     /**
      * 建立连接，客户端->代理服务器，代理服务器->目标服务
-     * 客户端向代理服务器发起正式请求以指示所要访问的目标进程的地址, 端口
      *
-     * @param clientSocket
-     * @throws IOException
+     * @return 已连接的目标，连接失败时已向客户端返回错误响应，返回 null
      */
-    private static Socket handleConnectionRequest(Socket clientSocket) throws IOException {
-        InputStream clientInput = clientSocket.getInputStream();
-        OutputStream clientOutput = clientSocket.getOutputStream();
-        int version = clientInput.read(); //版本，socks5的值是0x05
-        int cmd = clientInput.read(); //共有 3 个取值, 分别为 0x01 (CONNECT), 0x02 (BIND), 0x03 (UDP ASSOCIATE)
-        int rsv = clientInput.read(); // 固定为 0x00
-        int addressType = clientInput.read();
+    private static Socket handleConnectionRequest(HandshakeReader reader, SocksRequest request) throws IOException {
+        InetAddress[] addresses = AccessControl.checkTarget(request.host);
+        if (addresses == null) {
+            log.info("target denied by acl {}:{}", request.host, request.port);
+            reader.write(SocksCodec.socks5Reply(0x02, request));
+            return null;
+        }
+        Router.Route route = Router.route(request.host, request.port);
+        if (route.isReject()) {
+            log.info("target rejected by route rules {}:{}", request.host, request.port);
+            // 0x02: connection not allowed by ruleset
+            reader.write(SocksCodec.socks5Reply(0x02, request));
+            return null;
+        }
         Socket targetSocket;
-        // 目标地址类型，IPv4地址为0x01，IPv6地址为0x04，域名地址为0x03
-        if (addressType == 0x01) {
-            byte[] ipv4 = new byte[4];
-            clientInput.read(ipv4);
-            String targetAddress = IpUtil.bytesToIpAddress(ipv4);
-            int targetPort = clientInput.read() << 8 | clientInput.read();
-            System.out.println("target:" + targetAddress + ":" + targetPort);
-            try {
-                targetSocket = new Socket(targetAddress, targetPort);
-                if (cmd == 0x01) {
-                    sendConnectionResponse(clientOutput, (byte) 0x00, ipv4, targetPort);
-                } else if (cmd == 0x03) {
-                    handleUdpAssociateRequest(clientOutput);
-                } else {
-                    System.out.println("not support cmd!");
-                }
-            } catch (IOException e) {
-                sendConnectionResponse(clientOutput, (byte) 0x01, ipv4, targetPort);
-                throw new RuntimeException("连接目标服务失败。", e);
-            }
-        } else if (addressType == 0x03) {
-            // 域名地址
-            int domainLength = clientInput.read();
-            byte[] domainBytes = new byte[domainLength];
-            clientInput.read(domainBytes);
-            String targetDomain = new String(domainBytes);
-            int targetPort = clientInput.read() << 8 | clientInput.read();
-            System.out.println("target:" + targetDomain + ":" + targetPort);
-            try {
-                targetSocket = new Socket(targetDomain, targetPort);
-                if (cmd == 0x01) {
-                    sendConnectionResponse(clientOutput, (byte) 0x00, targetDomain, targetPort);
-                } else if (cmd == 0x03) {
-                    handleUdpAssociateRequest(clientOutput);
-                } else {
-                    System.out.println("not support cmd!");
-                }
-            } catch (IOException e) {
-                sendConnectionResponse(clientOutput, (byte) 0x01, targetDomain, targetPort);
-                throw new RuntimeException("连接目标服务失败。", e);
-            }
-        } else if (addressType == 0x04) {
-            // IPv6地址
-            byte[] ipv6 = new byte[16];
-            clientInput.read(ipv6);
-            String targetAddress = ipv6BytesToString(ipv6);
-            int targetPort = clientInput.read() << 8 | clientInput.read();
-            System.out.println("target(IPv6):" + targetAddress + ":" + targetPort);
-            try {
-                targetSocket = new Socket(targetAddress, targetPort);
-                if (cmd == 0x01) {
-                    sendConnectionResponseIPv6(clientOutput, (byte) 0x00, ipv6, targetPort);
-                } else if (cmd == 0x03) {
-                    handleUdpAssociateRequest(clientOutput);
-                } else {
-                    System.out.println("not support cmd!");
-                }
-            } catch (IOException e) {
-                sendConnectionResponseIPv6(clientOutput, (byte) 0x01, ipv6, targetPort);
-                throw new RuntimeException("连接目标服务失败。", e);
-            }
-        } else {
-            // 不支持的地址类型
-            throw new RuntimeException("not support address type!");
+        try {
+            targetSocket = route.connect(request.host, request.port, addresses);
+        } catch (IOException e) {
+            log.warn("connect target failed {}:{} via {} {}", request.host, request.port, route.getName(), e.toString());
+            reader.write(SocksCodec.socks5Reply(0x01, request));
+            return null;
         }
-        return targetSocket;
-    }
-
-    // 新增：IPv6字节数组转字符串
-    private static String ipv6BytesToString(byte[] bytes) {
-        if (bytes.length != 16) return null;
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 16; i += 2) {
-            sb.append(String.format("%02x%02x", bytes[i], bytes[i + 1]));
-            if (i < 14) sb.append(":");
+        try {
+            reader.write(SocksCodec.socks5Reply(0x00, request));
+        } catch (IOException e) {
+            closeQuietly(targetSocket);
+            throw e;
         }
-        return sb.toString().replaceAll("(:0{1,3}){2,}", "::"); // 简单压缩
-    }
-
-    // 新增：发送IPv6响应
-    private static void sendConnectionResponseIPv6(OutputStream output, byte status, byte[] ipv6, int targetPort) throws IOException {
-        // 发送连接响应
-        output.write(new byte[]{(byte) 0x05, status, (byte) 0x00, (byte) 0x04});
-        output.write(ipv6);
-        output.write(new byte[]{(byte) (targetPort >> 8), (byte) targetPort});
-    }
-
-    private static void handleUdpAssociateRequest(OutputStream output) throws IOException {
-        // 假设监听 UDP 请求的端口为 5000
-        int udpPort = 5000;
-        output.write(new byte[]{(byte) 0x05, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 127, (byte) 0, (byte) 0, (byte) 1, (byte) (udpPort >> 8), (byte) udpPort});
+        return targetSocket;
     }
 
     /**
-     * VER 字段占 1 字节, 表征协议版本, 固定为 0x05
-     * REP 字段占 1 字节, 可以理解为状态码, 它的值表征了此次连接的状态:
-     * 0x00 连接成功
-     * 0x01 代理服务器出错
-     * 0x02 连接不允许
-     * 0x03 网络不可达
-     * 0x04 主机不可达
-     * 0x05 连接被拒绝
-     * 0x06 TTL 到期
-     * 0x07 命令 (CMD) 不支持
-     * 0x08 地址类型不支持
-     * 0x09 ~ 0xFF 目前没有分配
-     * RSV 字段占 1 字节, 为保留字段, 固定为 0x00
-     * ATYP 字段与请求的 ATYP 字段含义相同
-     * BND.ADDR 与 BND.PORT 的含义随请求中的 CMD 的不同而不同, 下面我们依次展开讨论 3 种 CMD: CONNECT, BIND 以及 UDP ASSOCIATE
+     * 建立 UDP 关联，响应中的 BND.ADDR/BND.PORT 为客户端发送数据报的中继地址
      *
-     * @param status
-     * @param ipv4
-     * @param targetPort
-     * @return
+     * @return 关联是否建立成功，失败时已向客户端返回错误响应并关闭连接
      */
-    private static void sendConnectionResponse(OutputStream output, byte status, byte[] ipv4, int targetPort) throws IOException {
-        // 发送连接响应
-        output.write(new byte[]{(byte) 0x05, status, (byte) 0x00, (byte) 0x01, ipv4[0], ipv4[1], ipv4[2], ipv4[3], (byte) (targetPort >> 8), (byte) targetPort});
+    private static boolean handleUdpAssociateRequest(HandshakeReader reader, SocksRequest request) throws IOException {
+        UdpRelayService.Association association;
+        try {
+            association = UdpRelayService.associate(reader.getSocket(), request);
+        } catch (IOException e) {
+            log.warn("udp associate failed {}", e.toString());
+            reader.write(SocksCodec.socks5Reply(0x01, SocksCodec.ATYP_IPV4, EMPTY_ADDRESS, 0));
+            closeQuietly(reader.getSocket());
+            return false;
+        }
+        // 先用阻塞流写完响应，再把控制连接交给事件循环
+        InetSocketAddress relayAddress = association.getRelayAddress();
+        try {
+            reader.write(SocksCodec.socks5Reply(0x00, relayAddress.getAddress(), relayAddress.getPort()));
+        } catch (IOException e) {
+            association.abort();
+            throw e;
+        }
+        association.start();
+        return true;
     }
 
-    private static void sendConnectionResponse(OutputStream output, byte status, String targetDomain, int targetPort) throws IOException {
-        // 发送连接响应
-        byte[] domainBytes = targetDomain.getBytes();
-        int domainLength = domainBytes.length;
-        output.write(new byte[]{(byte) 0x05, status, (byte) 0x00, (byte) 0x03, (byte) domainLength});
-        output.write(domainBytes);
-        output.write(new byte[]{(byte) (targetPort >> 8), (byte) targetPort});
+    private static boolean contains(byte[] methods, int method) {
+        for (byte m : methods) {
+            if ((m & 0xFF) == method) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.error("close client failed", e);
+        }
     }
 }
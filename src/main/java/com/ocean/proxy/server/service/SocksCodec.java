@@ -0,0 +1,310 @@
+package com.ocean.proxy.server.service;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SOCKS4/4a/5 握手报文的增量解析与响应编码
+ * 解析方法从 ByteBuffer 的当前位置读取一个完整报文：数据不足时返回 null 且不移动位置，
+ * 调用方收到更多数据后重试；报文完整时返回结果并把位置移到报文之后。
+ * 解析不做任何 IO，阻塞读取（HandshakeReader）与事件循环都可以使用。
+ */
+public class SocksCodec {
+
+    public static final int ATYP_IPV4 = 0x01;
+
+    public static final int ATYP_DOMAIN = 0x03;
+
+    public static final int ATYP_IPV6 = 0x04;
+
+    public static final int CMD_CONNECT = 0x01;
+
+    public static final int CMD_BIND = 0x02;
+
+    public static final int CMD_UDP_ASSOCIATE = 0x03;
+
+    /**
+     * SOCKS5 方法协商  | VER | NMETHODS | METHODS |
+     *
+     * @return 客户端支持的认证方法
+     */
+    public static byte[] decodeGreeting(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int version = buffer.get(start) & 0xFF;
+        if (version != 0x05) {
+            throw new ProtocolException("unsupported socks version: " + version);
+        }
+        int count = buffer.get(start + 1) & 0xFF;
+        if (buffer.remaining() < 2 + count) {
+            return null;
+        }
+        byte[] methods = new byte[count];
+        buffer.position(start + 2);
+        buffer.get(methods);
+        return methods;
+    }
+
+    /**
+     * RFC 1929 用户名密码认证  | VER | ULEN | UNAME | PLEN | PASSWD |
+     *
+     * @return 长度为 2 的数组，用户名与密码
+     */
+    public static String[] decodeCredentials(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int version = buffer.get(start) & 0xFF;
+        if (version != 0x01) {
+            throw new ProtocolException("unsupported auth version: " + version);
+        }
+        int userLength = buffer.get(start + 1) & 0xFF;
+        if (buffer.remaining() < 3 + userLength) {
+            return null;
+        }
+        int passwordLength = buffer.get(start + 2 + userLength) & 0xFF;
+        if (buffer.remaining() < 3 + userLength + passwordLength) {
+            return null;
+        }
+        byte[] user = new byte[userLength];
+        byte[] password = new byte[passwordLength];
+        buffer.position(start + 2);
+        buffer.get(user);
+        buffer.get();
+        buffer.get(password);
+        return new String[]{new String(user, StandardCharsets.UTF_8), new String(password, StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * SOCKS5 请求  | VER | CMD | RSV | ATYP | DST.ADDR | DST.PORT |
+     */
+    public static SocksRequest decodeSocks5Request(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 5) {
+            return null;
+        }
+        int version = buffer.get(start) & 0xFF;
+        if (version != 0x05) {
+            throw new ProtocolException("unsupported socks version: " + version);
+        }
+        int cmd = buffer.get(start + 1) & 0xFF;
+        return decodeAddress(buffer, start + 3, 5, cmd);
+    }
+
+    /**
+     * SOCKS5 UDP 报文头  | RSV | FRAG | ATYP | DST.ADDR | DST.PORT |，之后为数据
+     * 数据报总是完整的，报文头不完整时返回 null；不支持分片，FRAG 不为 0 时抛出异常
+     */
+    public static SocksRequest decodeUdpHeader(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 5) {
+            return null;
+        }
+        int frag = buffer.get(start + 2) & 0xFF;
+        if (frag != 0) {
+            throw new ProtocolException("not support udp fragment: " + frag);
+        }
+        return decodeAddress(buffer, start + 3, 5, CMD_UDP_ASSOCIATE);
+    }
+
+    /**
+     * 解析  | ATYP | DST.ADDR | DST.PORT |，SOCKS5 请求与 UDP 报文头共用
+     *
+     * @param typeOffset ATYP 所在位置
+     */
+    private static SocksRequest decodeAddress(ByteBuffer buffer, int typeOffset, int version, int cmd) throws ProtocolException {
+        int addressType = buffer.get(typeOffset) & 0xFF;
+        int addressOffset = typeOffset + 1;
+        int addressLength;
+        if (addressType == ATYP_IPV4) {
+            addressLength = 4;
+        } else if (addressType == ATYP_IPV6) {
+            addressLength = 16;
+        } else if (addressType == ATYP_DOMAIN) {
+            addressLength = buffer.get(addressOffset) & 0xFF;
+            addressOffset++;
+        } else {
+            throw new UnsupportedAddressTypeException(addressType);
+        }
+        int end = addressOffset + addressLength + 2;
+        if (buffer.limit() < end) {
+            return null;
+        }
+        byte[] address = new byte[addressLength];
+        buffer.position(addressOffset);
+        buffer.get(address);
+        int port = buffer.getShort() & 0xFFFF;
+        return new SocksRequest(version, cmd, addressType, address, hostOf(addressType, address), port, null);
+    }
+
+    /**
+     * SOCKS4/4a 请求  | VN | CD | DSTPORT | DSTIP | USERID | NUL |，
+     * DSTIP 为 0.0.0.x（x 不为 0）时是 SOCKS4a，USERID 之后还有  | HOST | NUL |
+     */
+    public static SocksRequest decodeSocks4Request(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 9) {
+            return null;
+        }
+        int version = buffer.get(start) & 0xFF;
+        if (version != 0x04) {
+            throw new ProtocolException("unsupported socks version: " + version);
+        }
+        int cmd = buffer.get(start + 1) & 0xFF;
+        int port = buffer.getShort(start + 2) & 0xFFFF;
+        byte[] ip = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            ip[i] = buffer.get(start + 4 + i);
+        }
+        int userEnd = indexOfNul(buffer, start + 8);
+        if (userEnd < 0) {
+            return null;
+        }
+        String userId = string(buffer, start + 8, userEnd);
+        int end = userEnd + 1;
+        boolean socks4a = ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0;
+        SocksRequest request;
+        if (socks4a) {
+            int hostEnd = indexOfNul(buffer, end);
+            if (hostEnd < 0) {
+                return null;
+            }
+            String host = string(buffer, end, hostEnd);
+            end = hostEnd + 1;
+            request = new SocksRequest(4, cmd, ATYP_DOMAIN, host.getBytes(StandardCharsets.US_ASCII), host, port, userId);
+        } else {
+            request = new SocksRequest(4, cmd, ATYP_IPV4, ip, hostOf(ATYP_IPV4, ip), port, userId);
+        }
+        buffer.position(end);
+        return request;
+    }
+
+    /**
+     * SOCKS5 响应  | VER | REP | RSV | ATYP | BND.ADDR | BND.PORT |，一次写出
+     */
+    public static byte[] socks5Reply(int rep, int addressType, byte[] address, int port) {
+        boolean domain = addressType == ATYP_DOMAIN;
+        byte[] reply = new byte[4 + (domain ? 1 : 0) + address.length + 2];
+        reply[0] = 0x05;
+        reply[1] = (byte) rep;
+        reply[3] = (byte) addressType;
+        int offset = 4;
+        if (domain) {
+            reply[offset++] = (byte) address.length;
+        }
+        System.arraycopy(address, 0, reply, offset, address.length);
+        reply[reply.length - 2] = (byte) (port >> 8);
+        reply[reply.length - 1] = (byte) port;
+        return reply;
+    }
+
+    /**
+     * 以请求中的地址作为 BND.ADDR 的 SOCKS5 响应
+     */
+    public static byte[] socks5Reply(int rep, SocksRequest request) {
+        return socks5Reply(rep, request.addressType, request.address, request.port);
+    }
+
+    /**
+     * 使用实际地址的 SOCKS5 响应
+     */
+    public static byte[] socks5Reply(int rep, InetAddress address, int port) {
+        byte[] bytes = address.getAddress();
+        return socks5Reply(rep, bytes.length == 4 ? ATYP_IPV4 : ATYP_IPV6, bytes, port);
+    }
+
+    /**
+     * SOCKS5 UDP 报文头，格式与响应相同，只是前三个字节 RSV RSV FRAG 都为 0
+     */
+    public static byte[] udpHeader(InetAddress address, int port) {
+        byte[] header = socks5Reply(0x00, address, port);
+        header[0] = 0x00;
+        return header;
+    }
+
+    /**
+     * SOCKS4 响应  | VN | CD | DSTPORT | DSTIP |，CD 为 0x5A 成功，0x5B 失败
+     */
+    public static byte[] socks4Reply(int cd, int port, byte[] ip) {
+        return new byte[]{0x00, (byte) cd, (byte) (port >> 8), (byte) port, ip[0], ip[1], ip[2], ip[3]};
+    }
+
+    private static int indexOfNul(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String hostOf(int addressType, byte[] address) {
+        if (addressType == ATYP_DOMAIN) {
+            return new String(address, StandardCharsets.US_ASCII);
+        }
+        try {
+            // 字节形式的地址不会触发域名解析
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 解析后的 SOCKS 请求
+     */
+    public static class SocksRequest {
+
+        public final int version;
+
+        public final int cmd;
+
+        public final int addressType;
+
+        // IPv4/IPv6 为地址字节，域名为域名字节
+        public final byte[] address;
+
+        public final String host;
+
+        public final int port;
+
+        // SOCKS4 的 USERID，SOCKS5 为 null
+        public final String userId;
+
+        SocksRequest(int version, int cmd, int addressType, byte[] address, String host, int port, String userId) {
+            this.version = version;
+            this.cmd = cmd;
+            this.addressType = addressType;
+            this.address = address;
+            this.host = host;
+            this.port = port;
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * 不支持的地址类型，SOCKS5 需回复 0x08
+     */
+    public static class UnsupportedAddressTypeException extends ProtocolException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedAddressTypeException(int addressType) {
+            super("not support address type: " + addressType);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.util.LatencyHistogram;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端到代理的 TLS 加密
+ * 启用后在 proxy.tls.port 上额外监听，接收的连接先完成 TLS 握手，之后与明文端口完全相同：
+ * 同样按第一个字节分发给 SOCKS4/SOCKS5/HTTP，用户名密码只在加密通道内传输。
+ * 监听使用普通 ServerSocket，连接包装为服务端模式的 SSLSocket（内部由 JDK 的 SSLEngine 实现），
+ * 握手在任务线程内进行，不占用接收线程；TLS 连接没有可注册到事件循环的通道，转发总是使用阻塞流，
+ * 目标连接是 NIO 引擎建立的通道时直接读写通道，两种引擎下都可以全双工转发。
+ * 服务端会话缓存保存已协商的会话，客户端重连时恢复会话（TLS1.2 会话 ID / TLS1.3 PSK，JDK 支持时可用无状态会话票据），
+ * 省去证书验证与密钥交换；按完整握手与恢复握手分别统计次数、耗时与 CPU 时间。
+ */
+public class TlsService {
+
+    private static final Logger log = Logger.get("tls");
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile int port = 9443;
+
+    private static volatile int handshakeTimeout = 10000;
+
+    private static volatile SSLSocketFactory socketFactory;
+
+    private static volatile SSLSessionContext sessionContext;
+
+    private static volatile String[] protocols;
+
+    private static volatile String[] cipherSuites;
+
+    private static final LatencyHistogram fullHandshake = new LatencyHistogram();
+
+    private static final LatencyHistogram resumedHandshake = new LatencyHistogram();
+
+    private static final LongAdder fullCpuNanos = new LongAdder();
+
+    private static final LongAdder resumedCpuNanos = new LongAdder();
+
+    private static final LongAdder failureCount = new LongAdder();
+
+    /**
+     * proxy.tls.enable 是否启用 TLS 监听
+     * proxy.tls.port TLS 监听端口
+     * proxy.tls.keystore / proxy.tls.keystorePassword / proxy.tls.keystoreType 服务端证书与私钥
+     * proxy.tls.protocols 启用的协议版本，逗号分隔，不配置时使用 JDK 默认
+     * proxy.tls.ciphers 启用的加密套件，逗号分隔，不配置时使用 JDK 默认
+     * proxy.tls.sessionCacheSize 服务端会话缓存数量，0 表示不限制
+     * proxy.tls.sessionTimeout 会话可恢复的秒数
+     * proxy.tls.sessionTicket 是否使用无状态会话票据，服务端不再缓存会话（JDK 不支持时忽略）
+     * proxy.tls.handshakeTimeout TLS 握手超时毫秒数
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) throws IOException, GeneralSecurityException {
+        enabled = Boolean.parseBoolean(properties.getProperty("proxy.tls.enable", "false").trim());
+        if (!enabled) {
+            return;
+        }
+        port = Integer.parseInt(properties.getProperty("proxy.tls.port", "9443").trim());
+        handshakeTimeout = Integer.parseInt(properties.getProperty("proxy.tls.handshakeTimeout", "10000").trim());
+        // 必须在创建 SSLContext 之前设置
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                properties.getProperty("proxy.tls.sessionTicket", "true").trim());
+
+        String keystore = properties.getProperty("proxy.tls.keystore", "").trim();
+        if (keystore.isEmpty()) {
+            throw new IllegalArgumentException("proxy.tls.keystore is required when proxy.tls.enable=true");
+        }
+        char[] password = properties.getProperty("proxy.tls.keystorePassword", "").toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(properties.getProperty("proxy.tls.keystoreType", "PKCS12").trim());
+        try (InputStream input = Files.newInputStream(Paths.get(keystore))) {
+            keyStore.load(input, password);
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Integer.parseInt(properties.getProperty("proxy.tls.sessionCacheSize", "20480").trim()));
+        sessions.setSessionTimeout(Integer.parseInt(properties.getProperty("proxy.tls.sessionTimeout", "86400").trim()));
+        sessionContext = sessions;
+
+        String[] supportedProtocols = context.getSupportedSSLParameters().getProtocols();
+        protocols = select(properties.getProperty("proxy.tls.protocols"), supportedProtocols, "protocol");
+        String[] supportedCiphers = context.getSupportedSSLParameters().getCipherSuites();
+        cipherSuites = select(properties.getProperty("proxy.tls.ciphers"), supportedCiphers, "cipher suite");
+        socketFactory = context.getSocketFactory();
+        log.info("tls enabled on port {}, protocols {}", port,
+                protocols != null ? Arrays.toString(protocols) : Arrays.toString(context.getDefaultSSLParameters().getProtocols()));
+    }
+
+    /**
+     * 从配置中选出当前 JDK 支持的项，不支持的项忽略并告警
+     *
+     * @return 没有配置时返回 null，使用 JDK 默认
+     */
+    private static String[] select(String config, String[] supported, String name) {
+        if (config == null || config.trim().isEmpty()) {
+            return null;
+        }
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> selected = new ArrayList<>();
+        for (String item : config.split(",")) {
+            String value = item.trim();
+            if (supportedList.contains(value)) {
+                selected.add(value);
+            } else if (!value.isEmpty()) {
+                log.warn("tls {} {} not supported by current jdk, ignored", name, value);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("no supported tls " + name + " in: " + config);
+        }
+        return selected.toArray(new String[0]);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static int getPort() {
+        return port;
+    }
+
+    /**
+     * 在接收线程内调用：把接收的连接包装为服务端模式的 SSLSocket，不做任何读写，握手在第一次读写或 handshake 时进行
+     * 包装后的连接关闭时同时关闭原连接
+     */
+    public static SSLSocket wrap(Socket socket) {
+        try {
+            // 握手的每一轮由多个小记录分次写出，避免 Nagle 与对端延迟确认叠加造成几十毫秒的等待
+            socket.setTcpNoDelay(true);
+            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket,
+                    socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            if (protocols != null) {
+                sslSocket.setEnabledProtocols(protocols);
+            }
+            if (cipherSuites != null) {
+                sslSocket.setEnabledCipherSuites(cipherSuites);
+            }
+            return sslSocket;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 完成 TLS 握手并统计，失败时关闭连接
+     *
+     * @return 握手是否成功
+     */
+    public static boolean handshake(SSLSocket socket) {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long startCpu = threadCpuNanos();
+        try {
+            socket.setSoTimeout(handshakeTimeout);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            failureCount.increment();
+            log.warn("tls handshake failed from {} {}", socket.getRemoteSocketAddress(), e.toString());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        long cpu = startCpu < 0 ? 0 : threadCpuNanos() - startCpu;
+        SSLSession session = socket.getSession();
+        // 恢复的会话沿用第一次完整握手时的创建时间
+        boolean resumed = session.getCreationTime() < startMillis;
+        if (resumed) {
+            resumedHandshake.recordSince(startNanos);
+            resumedCpuNanos.add(cpu);
+        } else {
+            fullHandshake.recordSince(startNanos);
+            fullCpuNanos.add(cpu);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("tls handshake {} {} {} resumed={}", socket.getRemoteSocketAddress(), session.getProtocol(),
+                    session.getCipherSuite(), resumed);
+        }
+        return true;
+    }
+
+    /**
+     * 当前线程已使用的 CPU 纳秒数，JVM 不支持时返回 -1
+     */
+    private static long threadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @param resumed true 为恢复会话的握手，false 为完整握手
+     */
+    public static LatencyHistogram getHandshakeHistogram(boolean resumed) {
+        return resumed ? resumedHandshake : fullHandshake;
+    }
+
+    /**
+     * 握手消耗的 CPU 秒数
+     *
+     * @param resumed true 为恢复会话的握手，false 为完整握手
+     */
+    public static double getHandshakeCpuSeconds(boolean resumed) {
+        return (resumed ? resumedCpuNanos : fullCpuNanos).sum() / 1e9;
+    }
+
+    public static long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * 握手中恢复会话的比例
+     */
+    public static double getResumptionRate() {
+        long resumed = resumedHandshake.getCount();
+        long total = resumed + fullHandshake.getCount();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * 服务端会话缓存中的会话数
+     */
+    public static int getCachedSessionCount() {
+        SSLSessionContext context = sessionContext;
+        if (context == null) {
+            return 0;
+        }
+        int count = 0;
+        for (java.util.Enumeration<byte[]> ids = context.getIds(); ids.hasMoreElements(); ids.nextElement()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,548 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+import com.ocean.proxy.server.service.SocksCodec.SocksRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SOCKS5 UDP ASSOCIATE 转发
+ * 每个关联使用两个 DatagramChannel：一个绑定在控制连接的本地地址上与客户端收发，一个与目标收发，
+ * 全部注册到固定数量的事件循环线程，线程数与关联数无关。通道就绪时连续非阻塞接收一批数据报，
+ * 发往客户端的数据报在接收缓冲区前部预留报文头空间，报文头直接写在数据前面，数据不做复制。
+ * 关联的生命周期与 TCP 控制连接绑定：控制连接关闭、会话空闲超时或出错时关联随之关闭。
+ * UDP 本身不保证送达，发送缓冲区已满、报文头错误、分片报文、目标域名解析失败时直接丢弃并计数。
+ */
+public class UdpRelayService {
+
+    private static final Logger log = Logger.get("udp");
+
+    // UDP 报文头最大长度  | RSV(2) | FRAG(1) | ATYP(1) | IPv6(16) | PORT(2) |
+    private static final int MAX_HEADER = 22;
+
+    private static final int MAX_DATAGRAM = 65535;
+
+    private static volatile int threads = 1;
+
+    private static volatile int batchSize = 64;
+
+    private static volatile int socketBuffer = 0;
+
+    private static volatile EventLoop[] eventLoops;
+
+    private static final AtomicInteger nextLoop = new AtomicInteger();
+
+    private static final AtomicInteger associationCount = new AtomicInteger();
+
+    private static final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * proxy.udp.threads 事件循环线程数，第一个关联建立时才启动
+     * proxy.udp.batchSize 通道每次就绪时最多连续接收的数据报数
+     * proxy.udp.socketBuffer 数据报通道的收发缓冲区字节数，0 使用系统默认值
+     *
+     * @param properties 配置
+     */
+    public static void init(Properties properties) {
+        threads = Math.max(1, Integer.parseInt(properties.getProperty("proxy.udp.threads", "1").trim()));
+        batchSize = Math.max(1, Integer.parseInt(properties.getProperty("proxy.udp.batchSize", "64").trim()));
+        socketBuffer = Integer.parseInt(properties.getProperty("proxy.udp.socketBuffer", "0").trim());
+    }
+
+    /**
+     * 为控制连接建立 UDP 关联，返回的关联还没有开始转发
+     * 调用方写出成功响应之后再调用 start：控制通道注册到事件循环时切换为非阻塞模式，之后不能再通过阻塞流写响应；
+     * 写响应失败时调用 abort 释放关联
+     *
+     * @param controlSocket 客户端的 TCP 控制连接，之后由关联负责关闭
+     * @param request       UDP ASSOCIATE 请求，DST.PORT 为客户端发送数据报使用的端口，未知时为 0
+     */
+    public static Association associate(Socket controlSocket, SocksRequest request) throws IOException {
+        EventLoop loop = nextLoop();
+        DatagramChannel clientChannel = openChannel(new InetSocketAddress(controlSocket.getLocalAddress(), 0));
+        DatagramChannel remoteChannel;
+        InetSocketAddress relayAddress;
+        try {
+            remoteChannel = openChannel(new InetSocketAddress(0));
+        } catch (IOException e) {
+            closeQuietly(clientChannel);
+            throw e;
+        }
+        try {
+            relayAddress = (InetSocketAddress) clientChannel.getLocalAddress();
+        } catch (IOException e) {
+            closeQuietly(clientChannel);
+            closeQuietly(remoteChannel);
+            throw e;
+        }
+        RelaySession relaySession = new RelaySession(controlSocket, null);
+        Association association = new Association(loop, relaySession, clientChannel, remoteChannel, relayAddress,
+                controlSocket.getInetAddress(), request.port);
+        relaySession.setCloseHandler(() -> loop.execute(association::close));
+        associationCount.incrementAndGet();
+        SessionMonitor.register(relaySession);
+        return association;
+    }
+
+    private static synchronized EventLoop nextLoop() throws IOException {
+        EventLoop[] loops = eventLoops;
+        if (loops == null) {
+            loops = new EventLoop[threads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("udp-relay-" + i);
+                loops[i].start();
+            }
+            eventLoops = loops;
+            log.info("UDP relay started with {} event loops", loops.length);
+        }
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private static DatagramChannel openChannel(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (socketBuffer > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+            }
+            channel.bind(address);
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private static void watchControl(RelaySession relaySession) {
+        byte[] discard = new byte[256];
+        try {
+            InputStream input = relaySession.getClientSocket().getInputStream();
+            // 控制连接上不应再有数据，读到 EOF 即客户端结束关联
+            while (input.read(discard) >= 0) {
+            }
+        } catch (IOException ignored) {
+        } finally {
+            relaySession.close();
+        }
+    }
+
+    public static int getAssociationCount() {
+        return associationCount.get();
+    }
+
+    public static long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 单个事件循环，独占一个线程与一个 Selector
+     */
+    private static class EventLoop extends Thread {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean wakeup = new AtomicBoolean();
+
+        // 事件循环共享的接收缓冲区，前部预留报文头空间
+        private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(MAX_HEADER + MAX_DATAGRAM);
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            taskQueue.add(task);
+            if (Thread.currentThread() != this && wakeup.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeup.set(false);
+                    runTasks();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        ((Association) key.attachment()).handle(key);
+                    }
+                } catch (Throwable e) {
+                    // 单个关联的异常在 handle 内部处理，这里只兜底防止事件循环退出
+                    log.error("udp event loop error", e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = taskQueue.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("udp event loop error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个 UDP 关联，register 之后的方法只在所属事件循环线程内调用
+     */
+    public static class Association {
+
+        final EventLoop loop;
+
+        final RelaySession relaySession;
+
+        final String sessionId;
+
+        final DatagramChannel clientChannel;
+
+        final DatagramChannel remoteChannel;
+
+        final InetSocketAddress relayAddress;
+
+        final SocketChannel controlChannel;
+
+        // 只接收来自控制连接客户端 IP 的数据报
+        final InetAddress clientIp;
+
+        // 请求中声明的客户端端口，为 0 时以第一个数据报的来源端口为准
+        final int clientPort;
+
+        InetSocketAddress clientAddress;
+
+        // 最近一个 IP 目标的报文头与解析结果，连续发往同一目标时省去解析
+        byte[] lastHeader;
+
+        InetSocketAddress lastTarget;
+
+        // 最近一个来源的报文头，连续收到同一来源时省去编码
+        InetSocketAddress lastSource;
+
+        byte[] lastSourceHeader;
+
+        boolean closed;
+
+        Association(EventLoop loop, RelaySession relaySession, DatagramChannel clientChannel, DatagramChannel remoteChannel,
+                    InetSocketAddress relayAddress, InetAddress clientIp, int clientPort) {
+            this.loop = loop;
+            this.relaySession = relaySession;
+            this.sessionId = relaySession.getSessionId();
+            this.clientChannel = clientChannel;
+            this.remoteChannel = remoteChannel;
+            this.relayAddress = relayAddress;
+            this.controlChannel = relaySession.getClientSocket().getChannel();
+            this.clientIp = clientIp;
+            this.clientPort = clientPort;
+        }
+
+        /**
+         * 客户端应发往的中继地址，用作响应的 BND.ADDR/BND.PORT
+         */
+        public InetSocketAddress getRelayAddress() {
+            return relayAddress;
+        }
+
+        /**
+         * 成功响应写出之后调用：开始转发数据报并监视控制连接，失败时关联已释放
+         */
+        public void start() throws IOException {
+            if (controlChannel == null) {
+                // 阻塞连接没有通道可注册，由一个任务阻塞读取来感知控制连接关闭
+                try {
+                    ProxyServerApplication.getExecutor().execute(() -> watchControl(relaySession));
+                } catch (RejectedExecutionException e) {
+                    relaySession.close();
+                    throw new IOException("udp associate rejected", e);
+                }
+            }
+            loop.execute(this::register);
+        }
+
+        /**
+         * 响应没能写出时调用，关闭控制连接并释放关联
+         */
+        public void abort() {
+            relaySession.close();
+        }
+
+        void register() {
+            if (closed) {
+                return;
+            }
+            try {
+                clientChannel.register(loop.selector, SelectionKey.OP_READ, this);
+                remoteChannel.register(loop.selector, SelectionKey.OP_READ, this);
+                if (controlChannel != null) {
+                    controlChannel.configureBlocking(false);
+                    controlChannel.register(loop.selector, SelectionKey.OP_READ, this);
+                }
+                log.info("udp associate {} relay {} for {}", sessionId, clientChannel.getLocalAddress(), clientIp.getHostAddress());
+            } catch (IOException e) {
+                log.error("register udp association failed:{}", sessionId, e);
+                close();
+            }
+        }
+
+        void handle(SelectionKey key) {
+            if (closed) {
+                return;
+            }
+            try {
+                Channel channel = key.channel();
+                if (channel == clientChannel) {
+                    receiveFromClient();
+                } else if (channel == remoteChannel) {
+                    receiveFromRemote();
+                } else {
+                    readControl();
+                }
+            } catch (CancelledKeyException e) {
+                close();
+            } catch (IOException e) {
+                log.warn("udp relay error:{} {}", sessionId, e.toString());
+                close();
+            }
+        }
+
+        private void readControl() throws IOException {
+            ByteBuffer buffer = loop.ioBuffer;
+            buffer.clear();
+            if (controlChannel.read(buffer) < 0) {
+                close();
+            }
+        }
+
+        private void receiveFromClient() throws IOException {
+            ByteBuffer buffer = loop.ioBuffer;
+            for (int i = 0; i < batchSize; i++) {
+                buffer.clear();
+                InetSocketAddress source = (InetSocketAddress) clientChannel.receive(buffer);
+                if (source == null) {
+                    return;
+                }
+                buffer.flip();
+                if (!acceptClient(source)) {
+                    droppedCount.increment();
+                    continue;
+                }
+                forwardToRemote(buffer);
+            }
+        }
+
+        private boolean acceptClient(InetSocketAddress source) {
+            if (clientAddress != null) {
+                return clientAddress.equals(source);
+            }
+            if (!clientIp.equals(source.getAddress()) || (clientPort != 0 && clientPort != source.getPort())) {
+                return false;
+            }
+            clientAddress = source;
+            return true;
+        }
+
+        private void forwardToRemote(ByteBuffer buffer) throws IOException {
+            if (matchLastHeader(buffer)) {
+                // 缓存的只是解析结果，每个数据报仍按当前规则检查，ACL 重新加载后对已有关联立即生效（只是一次网段查找）
+                if (!AccessControl.isAllowed(null, lastTarget.getAddress())) {
+                    lastHeader = null;
+                    lastTarget = null;
+                    droppedCount.increment();
+                    return;
+                }
+                send(remoteChannel, buffer, lastTarget, buffer.remaining(), true);
+                return;
+            }
+            int start = buffer.position();
+            SocksRequest header;
+            try {
+                header = SocksCodec.decodeUdpHeader(buffer);
+            } catch (ProtocolException e) {
+                log.debug("drop udp datagram:{} {}", sessionId, e.getMessage());
+                header = null;
+            }
+            if (header == null) {
+                droppedCount.increment();
+                return;
+            }
+            if (header.addressType != SocksCodec.ATYP_DOMAIN) {
+                InetSocketAddress target = new InetSocketAddress(InetAddress.getByAddress(header.address), header.port);
+                // 被拒绝的目标不缓存报文头，每个数据报都会重新检查并丢弃
+                if (!AccessControl.isAllowed(null, target.getAddress())) {
+                    droppedCount.increment();
+                    return;
+                }
+                byte[] headerBytes = new byte[buffer.position() - start];
+                for (int i = 0; i < headerBytes.length; i++) {
+                    headerBytes[i] = buffer.get(start + i);
+                }
+                lastHeader = headerBytes;
+                lastTarget = target;
+                send(remoteChannel, buffer, target, buffer.remaining(), true);
+                return;
+            }
+            // 域名目标走 DnsResolver 的缓存，缓存未命中时复制数据等解析完成后在事件循环内发送
+            CompletableFuture<InetAddress[]> future = DnsResolver.resolveAsync(header.host);
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                InetAddress address = future.join()[0];
+                if (!AccessControl.isAllowed(header.host, address)) {
+                    droppedCount.increment();
+                    return;
+                }
+                send(remoteChannel, buffer, new InetSocketAddress(address, header.port), buffer.remaining(), true);
+                return;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(buffer.remaining());
+            payload.put(buffer);
+            payload.flip();
+            String host = header.host;
+            int port = header.port;
+            future.whenComplete((addresses, error) -> loop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                if (error != null) {
+                    log.debug("drop udp datagram:{} resolve {} failed", sessionId, host);
+                    droppedCount.increment();
+                    return;
+                }
+                if (!AccessControl.isAllowed(host, addresses[0])) {
+                    droppedCount.increment();
+                    return;
+                }
+                send(remoteChannel, payload, new InetSocketAddress(addresses[0], port), payload.remaining(), true);
+            }));
+        }
+
+        /**
+         * 报文头与上一个 IP 目标相同时跳过报文头并返回 true
+         */
+        private boolean matchLastHeader(ByteBuffer buffer) {
+            byte[] header = lastHeader;
+            if (header == null || buffer.remaining() < header.length) {
+                return false;
+            }
+            int start = buffer.position();
+            for (int i = 0; i < header.length; i++) {
+                if (buffer.get(start + i) != header[i]) {
+                    return false;
+                }
+            }
+            buffer.position(start + header.length);
+            return true;
+        }
+
+        private void receiveFromRemote() throws IOException {
+            ByteBuffer buffer = loop.ioBuffer;
+            for (int i = 0; i < batchSize; i++) {
+                buffer.clear();
+                buffer.position(MAX_HEADER);
+                InetSocketAddress source = (InetSocketAddress) remoteChannel.receive(buffer);
+                if (source == null) {
+                    return;
+                }
+                if (clientAddress == null) {
+                    // 客户端还没有发送过数据报，不知道回复地址
+                    droppedCount.increment();
+                    continue;
+                }
+                buffer.flip();
+                byte[] header = headerFor(source);
+                int start = MAX_HEADER - header.length;
+                for (int j = 0; j < header.length; j++) {
+                    buffer.put(start + j, header[j]);
+                }
+                buffer.position(start);
+                send(clientChannel, buffer, clientAddress, buffer.limit() - MAX_HEADER, false);
+            }
+        }
+
+        private byte[] headerFor(InetSocketAddress source) {
+            if (!source.equals(lastSource)) {
+                lastSourceHeader = SocksCodec.udpHeader(source.getAddress(), source.getPort());
+                lastSource = source;
+            }
+            return lastSourceHeader;
+        }
+
+        /**
+         * 非阻塞发送，发送缓冲区已满时丢弃
+         *
+         * @param payloadLength 不含报文头的数据长度，用于流量统计
+         */
+        private void send(DatagramChannel channel, ByteBuffer buffer, InetSocketAddress to, int payloadLength, boolean upstream) {
+            try {
+                if (channel.send(buffer, to) == 0) {
+                    droppedCount.increment();
+                    return;
+                }
+            } catch (IOException e) {
+                // 单个目标不可达不影响整个关联
+                log.debug("udp send failed:{} {} {}", sessionId, to, e.toString());
+                droppedCount.increment();
+                return;
+            }
+            if (upstream) {
+                relaySession.recordUpstream(payloadLength);
+            } else {
+                relaySession.recordDownstream(payloadLength);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            associationCount.decrementAndGet();
+            closeQuietly(clientChannel);
+            closeQuietly(remoteChannel);
+            try {
+                relaySession.getClientSocket().close();
+            } catch (IOException ignored) {
+            }
+            relaySession.close();
+            log.info("close udp association ：{}", sessionId);
+        }
+    }
+}
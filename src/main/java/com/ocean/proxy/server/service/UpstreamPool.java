@@ -0,0 +1,236 @@
+package com.ocean.proxy.server.service;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 端口转发的上游连接池
+ * 预先建立到转发目标的连接，新客户端直接取用，省去建连耗时；连接用完即丢弃，不会归还。
+ * 空闲连接数保持在 minIdle 与 maxSize 之间，并根据上一个检查周期的取用次数调整；
+ * 后台定期丢弃超过最大空闲时间或已被对端关闭（收到 FIN/RST）的连接。
+ * 检查时逐个对空闲连接做一次 1 毫秒超时的单字节阻塞读取，不发送数据；对端主机宕机、断网这类没有 FIN/RST 的失效检测不到，
+ * 这类连接只能靠最大空闲时间淘汰，所以 maxIdleTime 不宜设置过长。
+ * 如果上游在客户端发送数据之前就主动发送数据（如 SSH、SMTP 的欢迎信息），预建连接会丢失这部分数据，
+ * 检测到这种情况后该端口停止预建连接。
+ */
+public class UpstreamPool {
+
+    private static final Logger log = Logger.get("forward");
+
+    private final String host;
+
+    private final int port;
+
+    private final int minIdle;
+
+    private final int maxSize;
+
+    private final long maxIdleMillis;
+
+    private final Deque<PooledConnection> idleConnections = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicInteger borrowsInPeriod = new AtomicInteger();
+
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private volatile int targetIdle;
+
+    private volatile boolean disabled;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder createCount = new LongAdder();
+
+    private final LongAdder evictCount = new LongAdder();
+
+    /**
+     * @param host            转发目标地址
+     * @param port            转发目标端口
+     * @param minIdle         最少空闲连接数
+     * @param maxSize         最多空闲连接数
+     * @param maxIdleSeconds  连接最大空闲秒数
+     * @param checkSeconds    空闲连接检查间隔秒数
+     */
+    public UpstreamPool(String host, int port, int minIdle, int maxSize, long maxIdleSeconds, long checkSeconds) {
+        this.host = host;
+        this.port = port;
+        this.minIdle = minIdle;
+        this.maxSize = Math.max(maxSize, minIdle);
+        this.maxIdleMillis = TimeUnit.SECONDS.toMillis(maxIdleSeconds);
+        this.targetIdle = minIdle;
+        refillAsync();
+        scheduleCheck(checkSeconds);
+    }
+
+    /**
+     * 取一个已连接的上游连接，池中没有可用连接时直接新建
+     */
+    public Socket borrow() throws IOException {
+        borrowsInPeriod.incrementAndGet();
+        PooledConnection connection;
+        while ((connection = idleConnections.pollLast()) != null) {
+            idleCount.decrementAndGet();
+            Socket socket = connection.socket;
+            if (!socket.isClosed() && !socket.isInputShutdown() && !isExpired(connection, System.currentTimeMillis())) {
+                hitCount.increment();
+                refillAsync();
+                return socket;
+            }
+            evict(connection);
+        }
+        missCount.increment();
+        refillAsync();
+        return Dialer.connect(host, port);
+    }
+
+    private boolean isExpired(PooledConnection connection, long now) {
+        return now - connection.createTime > maxIdleMillis;
+    }
+
+    private void evict(PooledConnection connection) {
+        evictCount.increment();
+        try {
+            connection.socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void refillAsync() {
+        if (disabled || idleCount.get() >= targetIdle || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ProxyServerApplication.getExecutor().execute(this::refill);
+        } catch (RuntimeException e) {
+            refilling.set(false);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (!disabled && idleCount.get() < targetIdle) {
+                Socket socket = Dialer.connect(host, port);
+                createCount.increment();
+                idleConnections.offerLast(new PooledConnection(socket));
+                idleCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            log.warn("upstream pool connect failed {}:{} {}", host, port, e.getMessage());
+        } finally {
+            refilling.set(false);
+        }
+    }
+
+    private void scheduleCheck(long checkSeconds) {
+        SessionMonitor.timer().newTimeout(() -> {
+            try {
+                ProxyServerApplication.getExecutor().execute(this::check);
+            } catch (RuntimeException e) {
+                log.warn("upstream pool check rejected {}:{}", host, port);
+            }
+            scheduleCheck(checkSeconds);
+        }, checkSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 定期检查：丢弃过期与已被对端关闭的连接，并根据上个周期的取用次数调整空闲连接目标数
+     */
+    private void check() {
+        int borrows = borrowsInPeriod.getAndSet(0);
+        targetIdle = Math.max(minIdle, Math.min(maxSize, borrows));
+        long now = System.currentTimeMillis();
+        // 逐个取出检查，检查期间连接不会被取用
+        int size = idleCount.get();
+        for (int i = 0; i < size; i++) {
+            PooledConnection connection = idleConnections.pollFirst();
+            if (connection == null) {
+                break;
+            }
+            idleCount.decrementAndGet();
+            int state = isExpired(connection, now) ? -1 : probe(connection.socket);
+            if (state == 0) {
+                idleConnections.offerLast(connection);
+                idleCount.incrementAndGet();
+                continue;
+            }
+            evict(connection);
+            if (state > 0 && !disabled) {
+                disabled = true;
+                log.warn("upstream {}:{} sends data before client, disable connection pool", host, port);
+            }
+        }
+        refillAsync();
+    }
+
+    /**
+     * 以 1 毫秒的 SO_TIMEOUT 阻塞读取一个字节：超时为 0 没有数据，读到结束或出错为 -1 已关闭（对端 FIN/RST），
+     * 读到数据为 1 对端主动发送了数据；每个空闲连接最多等待 1 毫秒，检查在工作线程内依次进行
+     * 返回 0 只说明对端没有关闭连接，不代表对端仍然存活
+     */
+    private static int probe(Socket socket) {
+        if (socket.isClosed()) {
+            return -1;
+        }
+        try {
+            socket.setSoTimeout(1);
+            InputStream input = socket.getInputStream();
+            int read = input.read();
+            return read < 0 ? -1 : 1;
+        } catch (SocketTimeoutException e) {
+            try {
+                socket.setSoTimeout(0);
+                return 0;
+            } catch (IOException ioException) {
+                return -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getCreateCount() {
+        return createCount.sum();
+    }
+
+    public long getEvictCount() {
+        return evictCount.sum();
+    }
+
+    private static class PooledConnection {
+
+        final Socket socket;
+
+        final long createTime = System.currentTimeMillis();
+
+        PooledConnection(Socket socket) {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ocean.proxy.server.tool;
+
+import com.ocean.proxy.server.service.AuthService;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 生成用户文件中使用的密码散列
+ * <p>
+ * 用法：java -cp proxy-server.jar com.ocean.proxy.server.tool.HashPassword [用户名] [迭代次数]
+ * 从终端（或标准输入）读取密码，输出一行 用户名=pbkdf2-sha256$...，追加到 user.txt 即可。
+ * 部署目录下可以使用 bin/hashpassword.sh，参数相同。
+ */
+public class HashPassword {
+
+    public static void main(String[] args) throws IOException {
+        String username = args.length > 0 ? args[0] : null;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        String password;
+        Console console = System.console();
+        if (console != null) {
+            char[] chars = console.readPassword("password: ");
+            char[] confirm = console.readPassword("confirm password: ");
+            if (chars == null || confirm == null || !new String(chars).equals(new String(confirm))) {
+                System.err.println("passwords do not match");
+                System.exit(1);
+                return;
+            }
+            password = new String(chars);
+        } else {
+            // 非终端时从标准输入读取一行，便于脚本调用
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            password = reader.readLine();
+        }
+        if (password == null || password.isEmpty()) {
+            System.err.println("empty password");
+            System.exit(1);
+            return;
+        }
+        String hash = AuthService.hash(password, iterations);
+        System.out.println(username != null ? username + "=" + hash : hash);
+    }
+}
@@ -0,0 +1,93 @@
+package com.ocean.proxy.server.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测用的本地目标服务
+ * echo 模式把收到的数据原样返回；sink 模式只接收丢弃，对端关闭输出后关闭连接。
+ */
+public class LoadTarget {
+
+    private final boolean echo;
+
+    private final ServerSocket serverSocket;
+
+    private final LongAdder receivedBytes = new LongAdder();
+
+    private final LongAdder connections = new LongAdder();
+
+    /**
+     * @param echo 是否回显
+     * @param port 监听端口，0 为随机端口
+     */
+    public LoadTarget(boolean echo, int port) throws IOException {
+        this.echo = echo;
+        this.serverSocket = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "load-target-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.increment();
+                Thread handler = new Thread(() -> handle(socket), "load-target");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                receivedBytes.add(n);
+                if (echo) {
+                    output.write(buffer, 0, n);
+                }
+            }
+        } catch (IOException ignored) {
+            // 压测客户端可能直接重置连接
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.ocean.proxy.server.tool;
+
+import com.ocean.proxy.server.ProxyServerApplication;
+import com.ocean.proxy.server.log.Logger;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本机回环压测工具
+ * 启动本地 echo/sink 目标服务，用 N 个并发客户端经代理（SOCKS4/SOCKS4a/SOCKS5，或端口转发）反复建立连接并收发数据，
+ * 每秒输出一次进度，结束时输出连接数/秒、握手耗时分位数、吞吐量以及失败与拒绝次数。
+ * <p>
+ * 用法：java -cp proxy-server.jar com.ocean.proxy.server.tool.LoadTest --mode=socks5 --concurrency=100 --duration=30
+ * 部署目录下可以使用 bin/loadtest.sh，参数相同，--help 查看全部参数。
+ */
+public class LoadTest {
+
+    private static final Logger log = Logger.get("loadtest");
+
+    private static final String USAGE = String.join("\n",
+            "usage: LoadTest [--name=value ...]",
+            "  --mode=socks5|socks4|socks4a|forward  压测协议，forward 直接连接端口转发的监听端口，默认 socks5",
+            "  --proxy=127.0.0.1:9109               代理或端口转发的地址",
+            "  --target=echo|sink                   目标服务类型，默认 echo",
+            "  --targetPort=0                       目标服务端口，0 为随机端口；forward 模式需与 forward.portList 的目标端口一致",
+            "  --targetHost=127.0.0.1               客户端请求代理连接的目标地址，可以是域名",
+            "  --concurrency=50                     并发客户端数",
+            "  --duration=10                        压测秒数",
+            "  --payload=1024                       每轮发送的字节数，0 只测握手",
+            "  --rounds=1                           每个连接的收发轮数",
+            "  --user= --password=                  SOCKS5 用户名密码认证",
+            "  --timeout=5000                       连接与读取超时毫秒数",
+            "  --embedded=false                     在本进程内启动代理服务（读取 classpath 中的 application.properties）");
+
+    private final Map<String, String> options;
+
+    private final String mode;
+
+    private final InetSocketAddress proxyAddress;
+
+    private final String targetHost;
+
+    private final int payload;
+
+    private final int rounds;
+
+    private final int timeout;
+
+    private final boolean echo;
+
+    private final String user;
+
+    private final String password;
+
+    private byte[] payloadBytes;
+
+    private int targetPort;
+
+    private final LongAdder connections = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    // 第一个失败的原因，在结果中输出
+    private final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private volatile long deadline;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if ("--help".equals(arg) || "-h".equals(arg) || !arg.startsWith("--")) {
+                System.out.println(USAGE);
+                return;
+            }
+            int index = arg.indexOf('=');
+            options.put(index > 0 ? arg.substring(2, index) : arg.substring(2), index > 0 ? arg.substring(index + 1) : "true");
+        }
+        new LoadTest(options).run();
+    }
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.mode = option("mode", "socks5").toLowerCase();
+        if (!Arrays.asList("socks5", "socks4", "socks4a", "forward").contains(mode)) {
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+        String proxy = option("proxy", "127.0.0.1:9109");
+        int colon = proxy.lastIndexOf(':');
+        this.proxyAddress = new InetSocketAddress(proxy.substring(0, colon), Integer.parseInt(proxy.substring(colon + 1)));
+        this.targetHost = option("targetHost", "127.0.0.1");
+        this.payload = Integer.parseInt(option("payload", "1024"));
+        this.rounds = Integer.parseInt(option("rounds", "1"));
+        this.timeout = Integer.parseInt(option("timeout", "5000"));
+        this.echo = !"sink".equalsIgnoreCase(option("target", "echo"));
+        this.user = option("user", "");
+        this.password = option("password", "");
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    void run() throws Exception {
+        LoadTarget target = new LoadTarget(echo, Integer.parseInt(option("targetPort", "0")));
+        targetPort = target.getPort();
+        if (Boolean.parseBoolean(option("embedded", "false"))) {
+            startEmbeddedProxy();
+        }
+        payloadBytes = new byte[payload];
+        Arrays.fill(payloadBytes, (byte) 'x');
+        int concurrency = Integer.parseInt(option("concurrency", "50"));
+        int duration = Integer.parseInt(option("duration", "10"));
+        System.out.printf("mode=%s proxy=%s:%d target=%s:%d(%s) concurrency=%d duration=%ds payload=%d rounds=%d auth=%s%n",
+                mode, proxyAddress.getHostString(), proxyAddress.getPort(), targetHost, targetPort, echo ? "echo" : "sink", concurrency, duration, payload, rounds,
+                user.isEmpty() ? "none" : "password");
+
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(duration);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-client-" + i);
+            thread.setDaemon(true);
+            worker.thread = thread;
+            thread.start();
+        }
+        long lastConnections = 0;
+        long lastBytes = 0;
+        for (int second = 1; second <= duration; second++) {
+            long wait = start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            long totalConnections = connections.sum();
+            long totalBytes = bytes.sum();
+            System.out.printf("[%3ds] conn/s=%-8d MB/s=%-10.2f errors=%d rejected=%d%n", second, totalConnections - lastConnections,
+                    (totalBytes - lastBytes) / 1048576.0, errors.sum(), rejections.sum());
+            lastConnections = totalConnections;
+            lastBytes = totalBytes;
+        }
+        for (Worker worker : workers) {
+            worker.thread.join(timeout * 2L);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] samples = merge(workers);
+        System.out.println("==================== summary ====================");
+        System.out.printf("connections   %d (%.1f/s)%n", connections.sum(), connections.sum() / seconds);
+        System.out.printf("throughput    %.2f MB/s (%d bytes)%n", bytes.sum() / 1048576.0 / seconds, bytes.sum());
+        System.out.printf("handshake     p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms (%d samples)%n",
+                percentile(samples, 0.5), percentile(samples, 0.99), percentile(samples, 0.999), percentile(samples, 1.0), samples.length);
+        Exception error = firstError.get();
+        System.out.printf("errors        %d%s%n", errors.sum(), error == null ? "" : " (first: " + error + ")");
+        System.out.printf("rejected      %d%n", rejections.sum());
+        System.out.printf("target        connections=%d received=%d bytes%n", target.getConnections(), target.getReceivedBytes());
+        target.close();
+        System.exit(0);
+    }
+
+    private void startEmbeddedProxy() throws InterruptedException {
+        Thread server = new Thread(() -> {
+            try {
+                ProxyServerApplication.main(new String[]{String.valueOf(proxyAddress.getPort())});
+            } catch (Exception e) {
+                // 没有启动时下面等待监听端口超时，压测直接结束
+                log.error("embedded proxy failed", e);
+            }
+        }, "embedded-proxy");
+        server.setDaemon(true);
+        server.start();
+        // 等待监听端口就绪
+        long wait = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < wait) {
+            try (Socket probe = new Socket()) {
+                probe.connect(proxyAddress, 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("embedded proxy did not start on " + proxyAddress);
+    }
+
+    private static long[] merge(List<Worker> workers) {
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.sampleCount;
+        }
+        long[] all = new long[size];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.samples, 0, all, offset, worker.sampleCount);
+            offset += worker.sampleCount;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    /**
+     * 一个并发客户端：循环建立连接、握手、收发数据、关闭，直到压测结束
+     */
+    private class Worker implements Runnable {
+
+        Thread thread;
+
+        long[] samples = new long[1024];
+
+        int sampleCount;
+
+        private final byte[] readBuffer = new byte[Math.max(payload, 512)];
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                try {
+                    runOnce();
+                } catch (IOException | RuntimeException e) {
+                    // 非 IO 异常同样计为失败，不让一个并发客户端悄悄退出
+                    errors.increment();
+                    firstError.compareAndSet(null, e);
+                }
+            }
+        }
+
+        private void runOnce() throws IOException {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout);
+                socket.connect(proxyAddress, timeout);
+                InputStream input = socket.getInputStream();
+                OutputStream output = socket.getOutputStream();
+                DataInputStream dataInput = new DataInputStream(input);
+                if (!handshake(dataInput, output)) {
+                    rejections.increment();
+                    return;
+                }
+                record(System.nanoTime() - start);
+                for (int i = 0; i < rounds && payload > 0; i++) {
+                    output.write(payloadBytes);
+                    if (echo) {
+                        dataInput.readFully(readBuffer, 0, payload);
+                    }
+                    bytes.add(payload);
+                }
+                if (!echo) {
+                    // 等待目标读完并关闭，确认数据全部送达
+                    socket.shutdownOutput();
+                    while (input.read(readBuffer) != -1) {
+                        // 丢弃
+                    }
+                }
+                // 直接重置连接，避免客户端大量 TIME_WAIT 耗尽本地端口
+                socket.setSoLinger(true, 0);
+                connections.increment();
+            }
+        }
+
+        private void record(long nanos) {
+            if (sampleCount == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampleCount++] = nanos;
+        }
+
+        private boolean handshake(DataInputStream input, OutputStream output) throws IOException {
+            switch (mode) {
+                case "socks5":
+                    return socks5(input, output);
+                case "socks4":
+                    return socks4(input, output, false);
+                case "socks4a":
+                    return socks4(input, output, true);
+                default:
+                    return true;
+            }
+        }
+
+        private boolean socks5(DataInputStream input, OutputStream output) throws IOException {
+            boolean auth = !user.isEmpty();
+            output.write(new byte[]{0x05, 0x01, (byte) (auth ? 0x02 : 0x00)});
+            byte[] reply = new byte[2];
+            input.readFully(reply);
+            if (reply[1] == 0x02) {
+                byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+                byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+                byte[] request = new byte[3 + userBytes.length + passwordBytes.length];
+                request[0] = 0x01;
+                request[1] = (byte) userBytes.length;
+                System.arraycopy(userBytes, 0, request, 2, userBytes.length);
+                request[2 + userBytes.length] = (byte) passwordBytes.length;
+                System.arraycopy(passwordBytes, 0, request, 3 + userBytes.length, passwordBytes.length);
+                output.write(request);
+                input.readFully(reply);
+                if (reply[1] != 0x00) {
+                    return false;
+                }
+            } else if (reply[1] != 0x00) {
+                return false;
+            }
+            byte[] address = addressBytes();
+            byte[] host = targetHost.getBytes(StandardCharsets.US_ASCII);
+            byte[] request;
+            if (address != null) {
+                request = new byte[4 + address.length + 2];
+                request[3] = (byte) (address.length == 4 ? 0x01 : 0x04);
+                System.arraycopy(address, 0, request, 4, address.length);
+            } else {
+                request = new byte[5 + host.length + 2];
+                request[3] = 0x03;
+                request[4] = (byte) host.length;
+                System.arraycopy(host, 0, request, 5, host.length);
+            }
+            request[0] = 0x05;
+            request[1] = 0x01;
+            request[request.length - 2] = (byte) (targetPort >> 8);
+            request[request.length - 1] = (byte) targetPort;
+            output.write(request);
+            // | VER | REP | RSV | ATYP | BND.ADDR | BND.PORT |
+            byte[] head = new byte[4];
+            input.readFully(head);
+            int addressLength = head[3] == 0x01 ? 4 : head[3] == 0x04 ? 16 : input.readUnsignedByte();
+            input.readFully(readBuffer, 0, addressLength + 2);
+            return head[1] == 0x00;
+        }
+
+        private boolean socks4(DataInputStream input, OutputStream output, boolean socks4a) throws IOException {
+            byte[] address = socks4a ? new byte[]{0, 0, 0, 1} : addressBytes();
+            if (address == null || address.length != 4) {
+                throw new IllegalArgumentException("socks4 requires an IPv4 targetHost");
+            }
+            byte[] host = socks4a ? targetHost.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+            // | VN | CD | DSTPORT | DSTIP | USERID | NUL | (SOCKS4a) HOST | NUL |
+            byte[] request = new byte[9 + (socks4a ? host.length + 1 : 0)];
+            request[0] = 0x04;
+            request[1] = 0x01;
+            request[2] = (byte) (targetPort >> 8);
+            request[3] = (byte) targetPort;
+            System.arraycopy(address, 0, request, 4, 4);
+            if (socks4a) {
+                System.arraycopy(host, 0, request, 9, host.length);
+            }
+            output.write(request);
+            byte[] reply = new byte[2];
+            input.readFully(reply);
+            if (reply[1] != 0x5A) {
+                return false;
+            }
+            input.readFully(readBuffer, 0, 6);
+            return true;
+        }
+
+        private byte[] addressBytes() {
+            if (!targetHost.matches("[0-9.]+") && targetHost.indexOf(':') < 0) {
+                return null;
+            }
+            try {
+                return InetAddress.getByName(targetHost).getAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.ocean.proxy.server.util;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Description: CIDR 前缀树
+ * IPv4 与 IPv6 各一棵按位展开的二叉树，网段的前缀位走到的节点上保存值。
+ * 节点以下标表示，子节点存放在一个 int 数组中，每个节点只占 12 字节，十万级网段也只需几 MB。
+ * 查询时沿地址的位向下走，最多 32/128 步，耗时与网段数量无关：
+ * match 返回路径上满足条件的最小值（值为规则序号时即第一条匹配的规则），
+ * longestMatch 返回最长前缀（最具体的网段）上最后添加的值。
+ * 建好后只读，可多线程并发查询。
+ */
+public class CidrTree {
+
+    public static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private static final int V4_ROOT = 0;
+
+    private static final int V6_ROOT = 1;
+
+    // 节点 * 2 + 位 -> 子节点，0 表示没有（根节点不会是子节点）
+    private int[] children = new int[64];
+
+    private final RuleLists rules = new RuleLists();
+
+    private int nodeCount = 2;
+
+    private int size;
+
+    public CidrTree() {
+        rules.ensureNodes(children.length / 2);
+    }
+
+    /**
+     * 添加网段，match 要求值按升序添加
+     *
+     * @param address      网段地址，4 或 16 字节
+     * @param prefixLength 前缀位数
+     * @param value        值，例如规则序号
+     */
+    public void add(byte[] address, int prefixLength, int value) {
+        int bits = address.length * 8;
+        if (prefixLength < 0 || prefixLength > bits) {
+            throw new IllegalArgumentException("invalid prefix length: " + prefixLength);
+        }
+        int node = address.length == 4 ? V4_ROOT : V6_ROOT;
+        for (int i = 0; i < prefixLength; i++) {
+            int slot = node * 2 + bit(address, i);
+            if (children[slot] == 0) {
+                if (nodeCount * 2 == children.length) {
+                    children = Arrays.copyOf(children, children.length * 2);
+                    rules.ensureNodes(children.length / 2);
+                }
+                children[slot] = nodeCount++;
+            }
+            node = children[slot];
+        }
+        rules.add(node, value);
+        size++;
+    }
+
+    /**
+     * 查询地址匹配的最小值
+     *
+     * @param address 4 或 16 字节地址
+     * @param accept  值的额外条件（例如端口），为 null 时不检查
+     * @return 满足条件的最小值，没有时返回 NO_MATCH
+     */
+    public int match(byte[] address, IntPredicate accept) {
+        int node = address.length == 4 ? V4_ROOT : V6_ROOT;
+        int best = rules.first(node, accept);
+        int bits = address.length * 8;
+        for (int i = 0; i < bits; i++) {
+            node = children[node * 2 + bit(address, i)];
+            if (node == 0) {
+                break;
+            }
+            best = Math.min(best, rules.first(node, accept));
+        }
+        return best;
+    }
+
+    /**
+     * 查询包含地址的最长前缀网段
+     *
+     * @param address 4 或 16 字节地址
+     * @return 最长前缀上最后添加的值，没有时返回 NO_MATCH
+     */
+    public int longestMatch(byte[] address) {
+        int node = address.length == 4 ? V4_ROOT : V6_ROOT;
+        int matched = rules.isEmpty(node) ? -1 : node;
+        int bits = address.length * 8;
+        for (int i = 0; i < bits; i++) {
+            node = children[node * 2 + bit(address, i)];
+            if (node == 0) {
+                break;
+            }
+            if (!rules.isEmpty(node)) {
+                matched = node;
+            }
+        }
+        return matched < 0 ? NO_MATCH : rules.last(matched);
+    }
+
+    /**
+     * 释放建树时预留的数组空间
+     */
+    public void trim() {
+        children = Arrays.copyOf(children, nodeCount * 2);
+        rules.trim(nodeCount);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int bit(byte[] address, int index) {
+        return (address[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+}
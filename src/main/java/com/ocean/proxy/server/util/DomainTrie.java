@@ -0,0 +1,199 @@
+package com.ocean.proxy.server.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Description: 域名后缀树
+ * 按标签从右往左建树，后缀 example.com 匹配 example.com 与 *.example.com，不匹配 badexample.com。
+ * 为了在十万级域名时仍占用较少内存，节点以下标表示：相同的标签只保存一份并编号，
+ * 父节点到子节点的边放在一个以（父节点, 标签编号）为键的开放寻址哈希表中，每个节点不再单独持有 Map。
+ * 查询时沿域名标签走一遍，耗时只与标签数有关：
+ * match 返回路径上满足条件的最小值（值为规则序号时即第一条匹配的规则），
+ * longestMatch 返回最长后缀（最具体的域名）上最后添加的值。
+ * 建好后只读，可多线程并发查询。
+ */
+public class DomainTrie {
+
+    public static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private static final int ROOT = 0;
+
+    private final Map<String, Integer> labels = new HashMap<>();
+
+    // 边的键 (父节点 << 32 | 标签编号 + 1)，0 表示空槽
+    private long[] edgeKeys = new long[64];
+
+    private int[] edgeChildren = new int[64];
+
+    private int edgeCount;
+
+    private final RuleLists rules = new RuleLists();
+
+    private int nodeCount = 1;
+
+    private int size;
+
+    public DomainTrie() {
+        rules.ensureNodes(16);
+    }
+
+    /**
+     * 添加后缀，match 要求值按升序添加
+     *
+     * @param suffix 域名后缀，不区分大小写，开头的 . 或 *. 会被忽略
+     * @param value  值，例如规则序号
+     */
+    public void add(String suffix, int value) {
+        String domain = normalize(suffix);
+        if (domain.startsWith("*.")) {
+            domain = domain.substring(2);
+        } else if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+        int node = ROOT;
+        int end = domain.length();
+        while (end > 0) {
+            int dot = domain.lastIndexOf('.', end - 1);
+            String label = domain.substring(dot + 1, end);
+            Integer id = labels.get(label);
+            if (id == null) {
+                id = labels.size();
+                labels.put(label, id);
+            }
+            int child = child(node, id);
+            if (child < 0) {
+                child = nodeCount++;
+                rules.ensureNodes(nodeCount);
+                putEdge(node, id, child);
+            }
+            node = child;
+            end = dot;
+        }
+        rules.add(node, value);
+        size++;
+    }
+
+    /**
+     * 查询域名匹配的最小值
+     *
+     * @param domain 域名
+     * @param accept 值的额外条件（例如端口），为 null 时不检查
+     * @return 满足条件的最小值，没有时返回 NO_MATCH
+     */
+    public int match(String domain, IntPredicate accept) {
+        String host = normalize(domain);
+        int best = NO_MATCH;
+        int node = ROOT;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = next(node, host, dot + 1, end);
+            if (node < 0) {
+                break;
+            }
+            best = Math.min(best, rules.first(node, accept));
+            end = dot;
+        }
+        return best;
+    }
+
+    /**
+     * 查询域名匹配的最长后缀
+     *
+     * @return 最长后缀上最后添加的值，没有时返回 NO_MATCH
+     */
+    public int longestMatch(String domain) {
+        String host = normalize(domain);
+        int matched = -1;
+        int node = ROOT;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = next(node, host, dot + 1, end);
+            if (node < 0) {
+                break;
+            }
+            if (!rules.isEmpty(node)) {
+                matched = node;
+            }
+            end = dot;
+        }
+        return matched < 0 ? NO_MATCH : rules.last(matched);
+    }
+
+    /**
+     * 释放建树时预留的数组空间
+     */
+    public void trim() {
+        rules.trim(nodeCount);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int next(int node, String host, int start, int end) {
+        Integer id = labels.get(host.substring(start, end));
+        return id == null ? -1 : child(node, id);
+    }
+
+    private int child(int node, int labelId) {
+        long key = edgeKey(node, labelId);
+        int mask = edgeKeys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = edgeKeys[slot];
+            if (current == 0) {
+                return -1;
+            }
+            if (current == key) {
+                return edgeChildren[slot];
+            }
+        }
+    }
+
+    private void putEdge(int node, int labelId, int child) {
+        // 负载因子不超过 0.5
+        if ((edgeCount + 1) * 2 > edgeKeys.length) {
+            long[] oldKeys = edgeKeys;
+            int[] oldChildren = edgeChildren;
+            edgeKeys = new long[oldKeys.length * 2];
+            edgeChildren = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldChildren[i]);
+                }
+            }
+        }
+        insert(edgeKey(node, labelId), child);
+        edgeCount++;
+    }
+
+    private void insert(long key, int child) {
+        int mask = edgeKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (edgeKeys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        edgeKeys[slot] = key;
+        edgeChildren[slot] = child;
+    }
+
+    private static long edgeKey(int node, int labelId) {
+        return ((long) node << 32) | (labelId + 1L);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static String normalize(String domain) {
+        String host = domain.toLowerCase();
+        // 完全限定域名末尾的 .
+        return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+    }
+}
@@ -0,0 +1,91 @@
+package com.ocean.proxy.server.util;
+
+import com.ocean.proxy.server.log.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 配置文件变化监听
+ * 所有被监听的文件共用一个 WatchService 与一个守护线程。编辑器保存文件通常会先截断再写入，
+ * 收到事件后再等待 RELOAD_DELAY_MILLIS 没有新事件才回调，一次保存只回调一次。
+ * 回调在监听线程内执行，应自行处理加载失败（保留原有数据）。
+ */
+public class FileWatcher {
+
+    private static final Logger log = Logger.get("server");
+
+    private static final long RELOAD_DELAY_MILLIS = 200;
+
+    // 目录 -> (文件名 -> 回调)
+    private static final Map<Path, Map<Path, Runnable>> LISTENERS = new ConcurrentHashMap<>();
+
+    private static WatchService watchService;
+
+    /**
+     * 监听文件，文件创建或修改时回调
+     *
+     * @param file     文件路径
+     * @param onChange 回调
+     */
+    public static synchronized void watch(Path file, Runnable onChange) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path dir = absolute.getParent();
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            WatchService service = watchService;
+            Thread thread = new Thread(() -> run(service), "file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (!LISTENERS.containsKey(dir)) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        LISTENERS.computeIfAbsent(dir, k -> new ConcurrentHashMap<>()).put(absolute.getFileName(), onChange);
+    }
+
+    private static void run(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Set<Runnable> changed = new LinkedHashSet<>();
+            while (key != null) {
+                Map<Path, Runnable> files = LISTENERS.get((Path) key.watchable());
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Runnable listener = files == null ? null : files.get((Path) event.context());
+                    if (listener != null) {
+                        changed.add(listener);
+                    }
+                }
+                key.reset();
+                try {
+                    key = service.poll(RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+            for (Runnable listener : changed) {
+                try {
+                    listener.run();
+                } catch (Throwable e) {
+                    log.error("file change listener failed", e);
+                }
+            }
+        }
+    }
+}
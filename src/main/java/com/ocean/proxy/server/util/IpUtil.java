@@ -1,5 +1,8 @@
 package com.ocean.proxy.server.util;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 /**
  * <b>Description:</b>  <br/>
  * <b>@Author:</b> Ocean <br/>
@@ -14,4 +17,149 @@ public class IpUtil {
         }
         return result.deleteCharAt(result.length() - 1).toString();
     }
+
+    /**
+     * 严格解析 IP 字面量，不是 IP 时返回 null，不会发起 DNS 查询
+     * IPv4 只接受四段 0-255 的十进制数且不带前导零，不接受 2130706433、01.1.1.1 这类旧式写法；
+     * IPv6 必须包含冒号，可以带方括号，不接受带 % 的范围 ID
+     */
+    public static InetAddress parseLiteral(String host) {
+        byte[] bytes = parseIpv4(host);
+        if (bytes == null) {
+            String ipv6 = host;
+            if (host.length() > 2 && host.charAt(0) == '[' && host.charAt(host.length() - 1) == ']') {
+                ipv6 = host.substring(1, host.length() - 1);
+            }
+            bytes = ipv6.indexOf(':') >= 0 ? parseIpv6(ipv6) : null;
+        }
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static byte[] parseIpv4(String host) {
+        byte[] bytes = new byte[4];
+        int count = 0;
+        int start = 0;
+        while (count < 4) {
+            int end = host.indexOf('.', start);
+            if (end < 0) {
+                end = host.length();
+            }
+            int length = end - start;
+            if (length < 1 || length > 3 || (length > 1 && host.charAt(start) == '0')) {
+                return null;
+            }
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                char c = host.charAt(i);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (value > 255) {
+                return null;
+            }
+            bytes[count++] = (byte) value;
+            start = end + 1;
+            if (end == host.length()) {
+                break;
+            }
+        }
+        return count == 4 && start == host.length() + 1 ? bytes : null;
+    }
+
+    private static byte[] parseIpv6(String host) {
+        int[] words = new int[8];
+        int count = 0;
+        // :: 所在的位置，之后的段整体后移
+        int compress = -1;
+        int i = 0;
+        int n = host.length();
+        if (host.startsWith("::")) {
+            compress = 0;
+            i = 2;
+        } else if (host.startsWith(":")) {
+            return null;
+        }
+        while (i < n) {
+            if (count == 8) {
+                return null;
+            }
+            int end = host.indexOf(':', i);
+            if (end < 0) {
+                end = n;
+            }
+            String part = host.substring(i, end);
+            if (part.indexOf('.') >= 0) {
+                // 末尾内嵌的 IPv4，例如 ::ffff:1.2.3.4
+                byte[] ipv4 = end == n && count <= 6 ? parseIpv4(part) : null;
+                if (ipv4 == null) {
+                    return null;
+                }
+                words[count++] = (ipv4[0] & 0xFF) << 8 | ipv4[1] & 0xFF;
+                words[count++] = (ipv4[2] & 0xFF) << 8 | ipv4[3] & 0xFF;
+                break;
+            }
+            if (part.isEmpty() || part.length() > 4) {
+                return null;
+            }
+            int word = 0;
+            for (int j = 0; j < part.length(); j++) {
+                int digit = Character.digit(part.charAt(j), 16);
+                if (digit < 0) {
+                    return null;
+                }
+                word = word << 4 | digit;
+            }
+            words[count++] = word;
+            if (end == n) {
+                break;
+            }
+            if (end + 1 < n && host.charAt(end + 1) == ':') {
+                if (compress >= 0) {
+                    return null;
+                }
+                compress = count;
+                i = end + 2;
+            } else if (end + 1 == n) {
+                return null;
+            } else {
+                i = end + 1;
+            }
+        }
+        if (compress < 0 ? count != 8 : count > 7) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        int gap = 8 - count;
+        for (int k = 0; k < count; k++) {
+            int index = compress >= 0 && k >= compress ? k + gap : k;
+            bytes[index * 2] = (byte) (words[k] >>> 8);
+            bytes[index * 2 + 1] = (byte) words[k];
+        }
+        return bytes;
+    }
+
+    /**
+     * 只由数字和点组成或包含冒号，看起来是 IP 地址；这样的主机名不可能是域名
+     */
+    public static boolean looksLikeIp(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
 }
@@ -0,0 +1,93 @@
+package com.ocean.proxy.server.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description: 固定桶的耗时直方图
+ * 每个桶一个 LongAdder，多线程记录时没有锁竞争；桶上限按毫秒给出，最后一个桶收集超出上限的值。
+ */
+public class LatencyHistogram {
+
+    /**
+     * 默认桶上限，毫秒
+     */
+    public static final long[] DEFAULT_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final long[] boundNanos;
+
+    private final long[] boundMillis;
+
+    private final LongAdder[] buckets;
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        this(DEFAULT_BOUNDS);
+    }
+
+    /**
+     * @param boundMillis 递增的桶上限，毫秒
+     */
+    public LatencyHistogram(long[] boundMillis) {
+        this.boundMillis = boundMillis.clone();
+        this.boundNanos = new long[boundMillis.length];
+        for (int i = 0; i < boundMillis.length; i++) {
+            boundNanos[i] = TimeUnit.MILLISECONDS.toNanos(boundMillis[i]);
+        }
+        this.buckets = new LongAdder[boundMillis.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 纳秒
+     */
+    public void record(long nanos) {
+        int index = 0;
+        while (index < boundNanos.length && nanos > boundNanos[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 记录从 startNanos（System.nanoTime）到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public int bucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * 第 index 个桶的上限，毫秒，最后一个桶没有上限返回 Long.MAX_VALUE
+     */
+    public long getBoundMillis(int index) {
+        return index < boundMillis.length ? boundMillis[index] : Long.MAX_VALUE;
+    }
+
+    /**
+     * 第 index 个桶的记录次数（非累计）
+     */
+    public long getBucket(int index) {
+        return buckets[index].sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+}
@@ -0,0 +1,91 @@
+package com.ocean.proxy.server.util;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Description: 前缀树节点上的值列表
+ * 所有节点的值按单链表存放在两个 int 数组中，每个节点只占一个表头下标，避免每个节点一个对象或数组。
+ * 同一节点的值按添加顺序排列。
+ */
+class RuleLists {
+
+    private static final int NONE = -1;
+
+    // 节点 -> 第一个值的下标
+    private int[] heads = new int[0];
+
+    private int[] values = new int[16];
+
+    // 值下标 -> 同一节点下一个值的下标
+    private int[] next = new int[16];
+
+    private int size;
+
+    /**
+     * 保证节点数组至少能容纳 nodeCount 个节点
+     */
+    void ensureNodes(int nodeCount) {
+        if (nodeCount > heads.length) {
+            int old = heads.length;
+            heads = Arrays.copyOf(heads, Math.max(nodeCount, old * 2));
+            Arrays.fill(heads, old, heads.length, NONE);
+        }
+    }
+
+    void add(int node, int value) {
+        if (size == values.length) {
+            int capacity = Math.max(16, size * 2);
+            values = Arrays.copyOf(values, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        values[size] = value;
+        next[size] = NONE;
+        int index = heads[node];
+        if (index == NONE) {
+            heads[node] = size;
+        } else {
+            while (next[index] != NONE) {
+                index = next[index];
+            }
+            next[index] = size;
+        }
+        size++;
+    }
+
+    boolean isEmpty(int node) {
+        return heads[node] == NONE;
+    }
+
+    /**
+     * 节点上第一个满足条件的值，没有时返回 Integer.MAX_VALUE
+     */
+    int first(int node, IntPredicate accept) {
+        for (int index = heads[node]; index != NONE; index = next[index]) {
+            if (accept == null || accept.test(values[index])) {
+                return values[index];
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * 节点上最后添加的值，节点没有值时无意义
+     */
+    int last(int node) {
+        int index = heads[node];
+        while (next[index] != NONE) {
+            index = next[index];
+        }
+        return values[index];
+    }
+
+    /**
+     * 释放多余的数组空间，建好后调用
+     */
+    void trim(int nodeCount) {
+        heads = Arrays.copyOf(heads, nodeCount);
+        values = Arrays.copyOf(values, size);
+        next = Arrays.copyOf(next, size);
+    }
+}
@@ -0,0 +1,92 @@
+package com.ocean.proxy.server.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description: 无锁令牌桶
+ * 按 GCRA（通用信元速率算法）实现：只保存一个“理论到达时间”，每次消费把它向后推移 bytes/rate，
+ * 超出当前时间不超过突发容忍时间时无需等待，否则返回需要等待的纳秒数。
+ * 消费总是先记账（允许欠账），调用方按返回值暂停后续读取，因此不需要缓存多读到的数据，
+ * 长时间平均速率严格等于配置速率。多线程并发消费只依赖一次 CAS。
+ */
+public class TokenBucket {
+
+    private final long bytesPerSecond;
+
+    private final long burstNanos;
+
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param bytesPerSecond 每秒字节数，必须大于 0
+     * @param burstMillis    允许的突发时长，空闲后最多可以立即发送 bytesPerSecond * burstMillis / 1000 字节
+     */
+    public TokenBucket(long bytesPerSecond, long burstMillis) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(burstMillis, 1));
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 消费令牌
+     *
+     * @param bytes 已读取的字节数
+     * @return 下一次读取前需要等待的纳秒数，0 表示无需等待
+     */
+    public long consume(int bytes) {
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        while (true) {
+            long now = System.nanoTime();
+            long current = theoreticalArrival.get();
+            // 空闲期间积累的令牌不超过突发容量
+            long next = Math.max(current, now) + cost;
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                long wait = next - now - burstNanos;
+                return wait > 0 ? wait : 0;
+            }
+        }
+    }
+
+    /**
+     * 令牌足够时消费，不足时不消费也不欠账，用于按次数限流
+     *
+     * @param bytes 需要的令牌数
+     * @return 是否消费成功
+     */
+    public boolean tryConsume(int bytes) {
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        while (true) {
+            long now = System.nanoTime();
+            long current = theoreticalArrival.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 令牌已经回满，即最近没有消费，可以丢弃
+     */
+    public boolean isFull() {
+        return theoreticalArrival.get() <= System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 突发容量，字节
+     */
+    public long getBurstBytes() {
+        return bytesPerSecond * TimeUnit.NANOSECONDS.toMillis(burstNanos) / 1000;
+    }
+}
@@ -0,0 +1,94 @@
+package com.ocean.proxy.server.service;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * HttpCodec 报文头解析与消息体长度判断
+ */
+public class HttpCodecTest {
+
+    private static HttpCodec.HttpHead head(String text) throws ProtocolException {
+        return HttpCodec.decodeHead(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void testRemoveHopByHopKeepsFramingHeaders() throws Exception {
+        HttpCodec.HttpHead request = head("POST / HTTP/1.1\r\nHost: example.com\r\nContent-Length: 5\r\n"
+                + "Transfer-Encoding: chunked\r\nX-Trace: 1\r\nConnection: Content-Length, Transfer-Encoding, Host, X-Trace\r\n\r\n");
+        request.removeHopByHop();
+        assertEquals("5", request.get("Content-Length"));
+        assertEquals("chunked", request.get("Transfer-Encoding"));
+        assertEquals("example.com", request.get("Host"));
+        assertNull(request.get("X-Trace"));
+        assertNull(request.get("Connection"));
+    }
+
+    @Test
+    public void testRequestLength() throws Exception {
+        assertEquals(0, HttpCodec.requestLength(head("GET / HTTP/1.1\r\nHost: a\r\n\r\n")));
+        assertEquals(5, HttpCodec.requestLength(head("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n")));
+        assertEquals(HttpCodec.CHUNKED, HttpCodec.requestLength(head("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n")));
+    }
+
+    @Test
+    public void testRequestWithTransferEncodingAndContentLengthRejected() throws Exception {
+        assertRequestRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n");
+    }
+
+    @Test
+    public void testRequestWithUnsupportedTransferEncodingRejected() throws Exception {
+        assertRequestRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n\r\n");
+    }
+
+    @Test
+    public void testDuplicateOrInvalidContentLengthRejected() throws Exception {
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: 5, 5\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: +5\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertRequestRejected("POST / HTTP/1.1\r\nContent-Length: abc\r\n\r\n");
+    }
+
+    @Test
+    public void testWhitespaceBeforeColonRejected() {
+        try {
+            head("POST / HTTP/1.1\r\nTransfer-Encoding : chunked\r\n\r\n");
+            fail("header accepted");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void testResponseLength() throws Exception {
+        assertEquals(2, HttpCodec.responseLength(head("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n")));
+        assertEquals(HttpCodec.UNTIL_CLOSE, HttpCodec.responseLength(head("HTTP/1.1 200 OK\r\n\r\n")));
+        assertEquals(HttpCodec.UNTIL_CLOSE, HttpCodec.responseLength(head("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip\r\n\r\n")));
+        HttpCodec.HttpHead both = head("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Length: 2\r\n\r\n");
+        assertEquals(HttpCodec.CHUNKED, HttpCodec.responseLength(both));
+        assertNull(both.get("Content-Length"));
+        try {
+            HttpCodec.responseLength(head("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\n"));
+            fail("mismatched content-length accepted");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    private static void assertRequestRejected(String text) throws ProtocolException {
+        HttpCodec.HttpHead request = head(text);
+        try {
+            HttpCodec.requestLength(request);
+            fail("request accepted: " + text);
+        } catch (ProtocolException expected) {
+        }
+    }
+}
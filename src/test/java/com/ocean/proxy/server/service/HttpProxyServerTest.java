@@ -0,0 +1,190 @@
+package com.ocean.proxy.server.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 普通 HTTP 代理请求的报文边界：代理与本机目标之间按转发后的报文检查长度首部，以及目标连接是否回到连接池
+ */
+public class HttpProxyServerTest {
+
+    private ServerSocket proxy;
+
+    private ServerSocket upstream;
+
+    /**
+     * 目标每个连接上收到的请求原文
+     */
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger upstreamConnections = new AtomicInteger();
+
+    private volatile String upstreamResponse = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        upstream = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(() -> {
+            while (!proxy.isClosed()) {
+                Socket socket = proxy.accept();
+                daemon(() -> HttpProxyServer.handleClient(new HandshakeReader(socket), false));
+            }
+        });
+        daemon(() -> {
+            while (!upstream.isClosed()) {
+                Socket socket = upstream.accept();
+                upstreamConnections.incrementAndGet();
+                daemon(() -> serveUpstream(socket));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+        upstream.close();
+    }
+
+    @Test
+    public void testContentLengthListedInConnectionIsForwarded() throws Exception {
+        String response = exchange("POST " + target() + " HTTP/1.1\r\nHost: test\r\nConnection: Content-Length\r\n"
+                + "Content-Length: 5\r\n\r\nhello");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        String request = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertTrue(request, request.contains("Content-Length: 5\r\n"));
+        assertTrue(request, request.endsWith("\r\n\r\nhello"));
+    }
+
+    @Test
+    public void testHostReplacedWithRequestTargetAuthority() throws Exception {
+        String response = exchange("GET " + target() + " HTTP/1.1\r\nHost: admin.internal\r\nConnection: close\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        String request = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertTrue(request, request.contains("Host: 127.0.0.1:" + upstream.getLocalPort() + "\r\n"));
+        assertFalse(request, request.contains("admin.internal"));
+    }
+
+    @Test
+    public void testTransferEncodingWithContentLengthRejected() throws Exception {
+        String response = exchange("POST " + target() + " HTTP/1.1\r\nHost: test\r\nTransfer-Encoding: chunked\r\n"
+                + "Content-Length: 5\r\n\r\n0\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 400"));
+        assertEquals(0, upstreamConnections.get());
+    }
+
+    @Test
+    public void testDuplicateContentLengthRejected() throws Exception {
+        String response = exchange("POST " + target() + " HTTP/1.1\r\nHost: test\r\nContent-Length: 5\r\n"
+                + "Content-Length: 6\r\n\r\nhello!");
+        assertTrue(response, response.startsWith("HTTP/1.1 400"));
+        response = exchange("POST " + target() + " HTTP/1.1\r\nHost: test\r\nContent-Length: 5, 5\r\n\r\nhello");
+        assertTrue(response, response.startsWith("HTTP/1.1 400"));
+        assertEquals(0, upstreamConnections.get());
+    }
+
+    @Test
+    public void testUpstreamNotPooledAfterAmbiguousResponse() throws Exception {
+        upstreamResponse = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Length: 2\r\n\r\n2\r\nok\r\n0\r\n\r\n";
+        int idle = HttpProxyServer.getIdleUpstreamCount();
+        String response = exchange("GET " + target() + " HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertFalse(response, response.contains("Content-Length"));
+        assertEquals(idle, HttpProxyServer.getIdleUpstreamCount());
+    }
+
+    @Test
+    public void testUpstreamClosedAfterInvalidResponseLength() throws Exception {
+        upstreamResponse = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\nok";
+        int idle = HttpProxyServer.getIdleUpstreamCount();
+        String response = exchange("GET " + target() + " HTTP/1.1\r\nHost: test\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 502"));
+        assertEquals(idle, HttpProxyServer.getIdleUpstreamCount());
+    }
+
+    private String target() {
+        return "http://127.0.0.1:" + upstream.getLocalPort() + "/";
+    }
+
+    /**
+     * 发送一个请求，读到代理关闭连接或超时为止
+     */
+    private String exchange(String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getLocalPort())) {
+            socket.setSoTimeout(2000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] bytes = new byte[4096];
+            try {
+                for (int read; (read = socket.getInputStream().read(bytes)) >= 0; ) {
+                    out.write(bytes, 0, read);
+                }
+            } catch (IOException ignored) {
+                // 长连接上的响应读到超时为止
+            }
+            return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * 目标：读完一个请求头与 Content-Length 指定的消息体后写回配置的响应
+     */
+    private void serveUpstream(Socket socket) throws IOException {
+        try (Socket closing = socket) {
+            InputStream input = closing.getInputStream();
+            while (true) {
+                StringBuilder text = new StringBuilder();
+                while (text.indexOf("\r\n\r\n") < 0) {
+                    int b = input.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    text.append((char) b);
+                }
+                int index = text.indexOf("Content-Length: ");
+                int length = index < 0 ? 0 : Integer.parseInt(text.substring(index + 16, text.indexOf("\r\n", index)));
+                for (int i = 0; i < length; i++) {
+                    text.append((char) input.read());
+                }
+                received.add(text.toString());
+                closing.getOutputStream().write(upstreamResponse.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+    }
+
+    private static void daemon(IoTask task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException ignored) {
+                // 关闭监听时退出
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,60 @@
+package com.ocean.proxy.server.util;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IpUtil.parseLiteral 只接受标准写法的 IP 字面量
+ */
+public class IpUtilTest {
+
+    @Test
+    public void testIpv4() throws Exception {
+        assertEquals(InetAddress.getByAddress(new byte[]{1, 2, 3, 4}), IpUtil.parseLiteral("1.2.3.4"));
+        assertEquals("255.0.0.10", IpUtil.parseLiteral("255.0.0.10").getHostAddress());
+    }
+
+    @Test
+    public void testInvalidIpv4() {
+        for (String host : new String[]{"999.1.1.1", "1.2.3.4.5", "1.2.3", "1.2.3.", ".1.2.3", "2130706433",
+                "01.1.1.1", "0x7f.0.0.1", "1.2.3.-4", "", "example.com", "1.2.3.4a"}) {
+            assertNull(host, IpUtil.parseLiteral(host));
+        }
+    }
+
+    @Test
+    public void testIpv6() {
+        assertEquals("0:0:0:0:0:0:0:1", IpUtil.parseLiteral("::1").getHostAddress());
+        assertEquals("0:0:0:0:0:0:0:1", IpUtil.parseLiteral("[::1]").getHostAddress());
+        assertEquals("0:0:0:0:0:0:0:0", IpUtil.parseLiteral("::").getHostAddress());
+        assertEquals("2001:db8:0:0:0:0:0:ff", IpUtil.parseLiteral("2001:DB8::ff").getHostAddress());
+        assertEquals("1:0:0:0:0:0:0:0", IpUtil.parseLiteral("1::").getHostAddress());
+        assertEquals("1:2:3:4:5:6:7:8", IpUtil.parseLiteral("1:2:3:4:5:6:7:8").getHostAddress());
+        assertEquals("0:0:0:0:0:0:102:304", IpUtil.parseLiteral("::1.2.3.4").getHostAddress());
+        // IPv4 映射地址与 JDK 一样返回 IPv4
+        assertEquals("1.2.3.4", IpUtil.parseLiteral("::ffff:1.2.3.4").getHostAddress());
+    }
+
+    @Test
+    public void testInvalidIpv6() {
+        for (String host : new String[]{":1", "1:", "1:::2", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7", "12345::1",
+                "::g", "fe80::1%eth0", "[::1", "::1.2.3.256", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4"}) {
+            assertNull(host, IpUtil.parseLiteral(host));
+        }
+    }
+
+    @Test
+    public void testLooksLikeIp() {
+        assertTrue(IpUtil.looksLikeIp("2130706433"));
+        assertTrue(IpUtil.looksLikeIp("01.1.1.1"));
+        assertTrue(IpUtil.looksLikeIp("fe80::1%eth0"));
+        assertFalse(IpUtil.looksLikeIp("123.com"));
+        assertFalse(IpUtil.looksLikeIp(""));
+    }
+}